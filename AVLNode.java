@@ -2,21 +2,36 @@ import java.io.*;
 
 /**
  * AVLNode represents a node in the AVL tree, holding a Contact.
+ * Nodes are immutable once built: the tree copies the path it changes instead of
+ * modifying nodes in place, so any root ever published stays a consistent snapshot.
  */
 public class AVLNode implements Serializable {
-    public Contact contact;
-    public AVLNode left;
-    public AVLNode right;
-    public int height;
+    public final Contact contact;
+    public final AVLNode left;
+    public final AVLNode right;
+    public final int height;
+    /** Number of nodes in the subtree rooted at this node. */
+    public final int size;
 
     /**
-     * Constructs an AVLNode with the given contact.
+     * Constructs a leaf AVLNode with the given contact.
      * @param contact The contact to store in this node
      */
     public AVLNode(Contact contact) {
+        this(contact, null, null);
+    }
+
+    /**
+     * Constructs an AVLNode with the given contact and children.
+     * @param contact The contact to store in this node
+     * @param left The left subtree, or null
+     * @param right The right subtree, or null
+     */
+    public AVLNode(Contact contact, AVLNode left, AVLNode right) {
         this.contact = contact;
-        this.left = null;
-        this.right = null;
-        this.height = 1;
+        this.left = left;
+        this.right = right;
+        this.height = 1 + Math.max(left == null ? 0 : left.height, right == null ? 0 : right.height);
+        this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
     }
-} 
\ No newline at end of file
+}
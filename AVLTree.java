@@ -1,57 +1,302 @@
 import java.io.*;
 import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * AVLTree is a self-balancing binary search tree for managing Contact objects.
  * Provides efficient add, update, delete, and search operations.
+ * The tree is persistent: insert and delete copy only the O(log n) path they change
+ * and publish the new root atomically, so {@link #snapshot()} gives readers on any
+ * thread a consistent view they can traverse without locks while writers carry on.
+ * Writers, and the secondary indexes, are guarded by the tree's monitor.
  */
 public class AVLTree implements Serializable {
-    public AVLNode root;
+    private volatile AVLNode root;
 
-    // right rotation
-    private AVLNode rightRotate(AVLNode y) {
-        AVLNode x = y.left;
-        AVLNode T2 = x.right;
+    // secondary indexes: normalized phone / email -> contacts in the tree
+    private final Map<String, List<Contact>> phoneIndex = new HashMap<>();
+    private final Map<String, List<Contact>> emailIndex = new HashMap<>();
+    // case-folded name -> contacts, ordered so a prefix is one contiguous range
+    private final TreeMap<String, List<Contact>> nameIndex = new TreeMap<>();
+    // trigram index for substring search over name, phone and email
+    private final TrigramIndex substringIndex = new TrigramIndex();
+    // bitmap index from each group to the contacts in it
+    private final GroupIndex groupIndex = new GroupIndex();
+    // favorite contacts in tree order, so listing them costs O(favorites)
+    private final TreeSet<Contact> favorites = new TreeSet<>(CONTACT_ORDER);
+    private static final Comparator<Contact> CONTACT_ORDER = (Comparator<Contact> & Serializable) AVLTree::compareContacts;
+    // write-ahead journal every change is recorded in, if attached
+    private transient ContactJournal journal;
+    // whether each write waits for its journal record to be synced
+    private transient boolean durable;
 
-        x.right = y;
-        y.left = T2;
+    /**
+     * An immutable view of the tree at one point in time. Later edits to the tree
+     * do not affect it, so it can be traversed from any thread without locking.
+     */
+    public static final class Snapshot implements Iterable<Contact> {
+        private final AVLNode root;
+
+        private Snapshot(AVLNode root) {
+            this.root = root;
+        }
+
+        /**
+         * Returns the number of contacts in the snapshot.
+         * @return Contact count
+         */
+        public int size() {
+            return getSize(root);
+        }
+
+        // the root node, for tests that check the shape of the tree
+        AVLNode root() {
+            return root;
+        }
+
+        /**
+         * Returns the contact at a position in name order, in O(log n).
+         * @param index Zero-based position
+         * @return The contact at that position
+         */
+        public Contact select(int index) {
+            return AVLTree.select(root, index);
+        }
+
+        /**
+         * Checks whether the snapshot holds a contact with the same name, phone number
+         * and email, in O(log n).
+         * @param key The contact to look for
+         * @return true if it is present
+         */
+        public boolean contains(Contact key) {
+            AVLNode node = root;
+            while (node != null) {
+                int comparison = compareContacts(key, node.contact);
+                if (comparison == 0) return true;
+                node = comparison < 0 ? node.left : node.right;
+            }
+            return false;
+        }
 
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
+        /**
+         * Returns a page of contacts in name order, in O(log n + limit).
+         * @param offset Zero-based position of the first contact
+         * @param limit Maximum number of contacts to return
+         * @return List of up to limit contacts
+         */
+        public List<Contact> getPage(int offset, int limit) {
+            return AVLTree.getPage(root, offset, limit);
+        }
+
+        /**
+         * Returns a list of all contacts in the snapshot, in name order.
+         * @return List of Contact objects
+         */
+        public List<Contact> getContactList() {
+            List<Contact> csList = new ArrayList<>(size());
+            inOrderTraversal(root, csList);
+            return csList;
+        }
+
+        /**
+         * Iterates the contacts in name order without copying them.
+         * @return In-order iterator
+         */
+        @Override
+        public Iterator<Contact> iterator() {
+            return new InOrderIterator(root);
+        }
+
+        /**
+         * Builds a snapshot holding a collection of contacts, dropping repeats.
+         * @param contacts The contacts, in any order
+         * @return A balanced snapshot of the distinct contacts
+         */
+        public static Snapshot of(Collection<Contact> contacts) {
+            List<Contact> sorted = sortedDistinct(new ArrayList<>(contacts));
+            return new Snapshot(buildBalanced(sorted, 0, sorted.size() - 1));
+        }
+
+        /**
+         * Builds a snapshot from contacts that are already sorted and distinct, in
+         * linear time with no comparisons. The order is trusted, not checked.
+         * @param sorted The contacts in tree order, e.g. as written by SnapshotFile
+         * @return A balanced snapshot of the contacts
+         */
+        public static Snapshot ofSorted(List<Contact> sorted) {
+            return new Snapshot(buildBalanced(sorted, 0, sorted.size() - 1));
+        }
+
+        /**
+         * Splits the snapshot around a key in O(log n).
+         * @param key The contact to split at, matched by name, phone number and email
+         * @return Two snapshots: the contacts before the key and the contacts after it;
+         *         a contact equal to the key is in neither
+         */
+        public Snapshot[] split(Contact key) {
+            Split parts = AVLTree.split(root, key);
+            return new Snapshot[]{new Snapshot(parts.less), new Snapshot(parts.greater)};
+        }
+
+        /**
+         * Joins two snapshots in O(log n) when every contact of the first sorts before
+         * every contact of the second, e.g. the two halves returned by split.
+         * @param less The snapshot with the smaller contacts
+         * @param greater The snapshot with the larger contacts
+         * @return A snapshot with the contacts of both
+         */
+        public static Snapshot join(Snapshot less, Snapshot greater) {
+            return new Snapshot(concat(less.root, greater.root));
+        }
 
-        return x;
+        /**
+         * Returns the contacts in either snapshot in O(m log(n/m + 1)), where m is the
+         * size of the smaller one. Where both hold the same key this snapshot's
+         * contact is kept.
+         * @param other The other snapshot
+         * @return The union
+         */
+        public Snapshot union(Snapshot other) {
+            return new Snapshot(AVLTree.union(root, other.root));
+        }
+
+        /**
+         * Returns the contacts present in both snapshots, as stored in this one,
+         * in O(m log(n/m + 1)).
+         * @param other The other snapshot
+         * @return The intersection
+         */
+        public Snapshot intersection(Snapshot other) {
+            return new Snapshot(AVLTree.intersection(root, other.root));
+        }
+
+        /**
+         * Returns the contacts of this snapshot that are not in the other, in
+         * O(m log(n/m + 1)).
+         * @param other The contacts to leave out
+         * @return The difference
+         */
+        public Snapshot difference(Snapshot other) {
+            return new Snapshot(AVLTree.difference(root, other.root));
+        }
+
+        /**
+         * Compares this snapshot with a newer version of the same book.
+         * @param other The newer version
+         * @return The contacts added and removed going from this snapshot to the other
+         */
+        public Diff diff(Snapshot other) {
+            Snapshot added = other.difference(this);
+            Snapshot removed = difference(other);
+            return new Diff(added, removed, other.size() - added.size());
+        }
+    }
+
+    /**
+     * The differences between two snapshots. A contact whose name, phone number or
+     * email changed shows up as one removal and one addition.
+     */
+    public static final class Diff {
+        /** Contacts only in the newer snapshot. */
+        public final Snapshot added;
+        /** Contacts only in the older snapshot. */
+        public final Snapshot removed;
+        /** Number of contacts in both. */
+        public final int unchanged;
+
+        public Diff(Snapshot added, Snapshot removed, int unchanged) {
+            this.added = added;
+            this.removed = removed;
+            this.unchanged = unchanged;
+        }
+    }
+
+    // in-order iterator over an immutable subtree
+    private static final class InOrderIterator implements Iterator<Contact> {
+        private final Deque<AVLNode> stack = new ArrayDeque<>();
+
+        InOrderIterator(AVLNode root) {
+            pushLeft(root);
+        }
+
+        private void pushLeft(AVLNode node) {
+            for (; node != null; node = node.left) {
+                stack.push(node);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Contact next() {
+            if (stack.isEmpty()) throw new NoSuchElementException();
+            AVLNode node = stack.pop();
+            pushLeft(node.right);
+            return node.contact;
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the tree as it is now.
+     * @return The current snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(root);
     }
 
     // gets height
-    private int getHeight(AVLNode node) {
+    private static int getHeight(AVLNode node) {
         if (node == null)
             return 0;
         return node.height;
     }
 
-    // left rotation
-    private AVLNode leftRotate(AVLNode x) {
-        AVLNode y = x.right;
-        AVLNode T2 = y.left;
-
-        y.left = x;
-        x.right = T2;
+    // gets subtree size
+    private static int getSize(AVLNode node) {
+        if (node == null)
+            return 0;
+        return node.size;
+    }
 
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
+    // right rotation, copying the two nodes involved
+    private static AVLNode rightRotate(Contact contact, AVLNode left, AVLNode right) {
+        return new AVLNode(left.contact, left.left, new AVLNode(contact, left.right, right));
+    }
 
-        return y;
+    // left rotation, copying the two nodes involved
+    private static AVLNode leftRotate(Contact contact, AVLNode left, AVLNode right) {
+        return new AVLNode(right.contact, new AVLNode(contact, left, right.left), right.right);
     }
 
-    // gets height difference
-    private int getBalance(AVLNode node) {
-        if (node == null)
-            return 0;
-        return getHeight(node.left) - getHeight(node.right);
+    // builds a node from a contact and two subtrees whose heights differ by at most 2,
+    // rotating if needed to restore the AVL balance
+    private static AVLNode balance(Contact contact, AVLNode left, AVLNode right) {
+        int balance = getHeight(left) - getHeight(right);
+        if (balance > 1) {
+            if (getHeight(left.left) < getHeight(left.right)) {
+                left = leftRotate(left.contact, left.left, left.right);
+            }
+            return rightRotate(contact, left, right);
+        }
+        if (balance < -1) {
+            if (getHeight(right.right) < getHeight(right.left)) {
+                right = rightRotate(right.contact, right.left, right.right);
+            }
+            return leftRotate(contact, left, right);
+        }
+        return new AVLNode(contact, left, right);
     }
 
     // Compare two contacts for ordering
-    private int compareContacts(Contact c1, Contact c2) {
+    private static int compareContacts(Contact c1, Contact c2) {
         int nameCompare = c1.name.compareTo(c2.name);
         if (nameCompare != 0) return nameCompare;
         
@@ -61,8 +306,8 @@ public class AVLTree implements Serializable {
         return c1.email.compareTo(c2.email);
     }
 
-    // insert operation
-    private AVLNode insert(AVLNode node, Contact contact) {
+    // insert operation; returns the same node if the contact is already present
+    private static AVLNode insert(AVLNode node, Contact contact) {
         if (node == null) {
             return new AVLNode(contact);
         }
@@ -70,88 +315,122 @@ public class AVLTree implements Serializable {
         int comparison = compareContacts(contact, node.contact);
         
         if (comparison < 0) {
-            node.left = insert(node.left, contact);
+            AVLNode left = insert(node.left, contact);
+            return left == node.left ? node : balance(node.contact, left, node.right);
         } else if (comparison > 0) {
-            node.right = insert(node.right, contact);
+            AVLNode right = insert(node.right, contact);
+            return right == node.right ? node : balance(node.contact, node.left, right);
         } else {
             // Duplicate contact - don't insert
             return node;
         }
-
-        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
-
-        int balance = getBalance(node);
-
-        if (balance > 1) {
-            if (compareContacts(contact, node.left.contact) > 0) {
-                node.left = leftRotate(node.left);
-            }
-            return rightRotate(node);
-        }
-        if (balance < -1) {
-            if (compareContacts(contact, node.right.contact) < 0) {
-                node.right = rightRotate(node.right);
-            }
-            return leftRotate(node);
-        }
-
-        return node;
     }
 
     /**
      * Deletes a contact from the AVL tree.
-     * @param node The root node to start deletion
      * @param name The contact's name
      * @param phoneNumber The contact's phone number
      * @param email The contact's email
-     * @return The new root after deletion
+     * @return true if the contact was deleted, false if not found
      */
-    public AVLNode delete(AVLNode node, String name, String phoneNumber, String email) {
-        if (node == null) {
-            return null;
+    public synchronized boolean delete(String name, String phoneNumber, String email) {
+        AVLNode target = findNodeById(root, name, phoneNumber, email);
+        if (target == null) {
+            return false;
         }
+        unindexContact(target.contact);
+        root = deleteNode(root, target.contact);
+        logChange(Collections.singletonList(target.contact), Collections.<Contact>emptyList());
+        return true;
+    }
 
-        AVLNode node1 = findNodeById(root, name, phoneNumber, email);
-        if (node1 != null) {
-            if (node.left == null) {
-                return node.right;
-            } else if (node.right == null) {
-                return node.left;
-            }
-            node.contact = findMin(node.right);
-            node.right = delete(node.right, node.contact.name, node.contact.phoneNumber, node.contact.email);
+    /**
+     * Adds every contact of a snapshot that is not already in the tree, merging the
+     * two trees with a split/join union in O(m log(n/m + 1)).
+     * @param other The contacts to add
+     * @return Number of contacts added
+     */
+    public synchronized int addAll(Snapshot other) {
+        List<Contact> added = other.difference(new Snapshot(root)).getContactList();
+        if (added.isEmpty()) {
+            return 0;
         }
-        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
-        int balance = getBalance(node);
+        root = union(root, other.root);
+        indexAll(added);
+        logChange(Collections.<Contact>emptyList(), added);
+        return added.size();
+    }
+
+    /**
+     * Replaces the whole contents of the tree with a snapshot, e.g. one loaded
+     * from a SnapshotFile, and rebuilds the secondary indexes.
+     * @param contents The new contents
+     */
+    public synchronized void replaceAll(Snapshot contents) {
+        List<Contact> removed = getContactList();
+        List<Contact> added = contents.getContactList();
+        unindexAll(removed);
+        root = contents.root;
+        indexAll(added);
+        logChange(removed, added);
+    }
 
-        if (balance > 1 && getBalance(node.left) >= 0) {
-            return rightRotate(node);
+    /**
+     * Deletes many contacts at once, matched by name, phone number and email.
+     * The keys are sorted and removed in one pass over the tree with a single
+     * rebalance per touched node, see applyBatch.
+     * @param keys The contacts to delete
+     * @return Number of contacts deleted
+     */
+    public synchronized int deleteAll(Collection<Contact> keys) {
+        Batch batch = new Batch();
+        for (Contact key : keys) {
+            batch.delete(key);
         }
-        if (balance > 1 && getBalance(node.left) < 0) {
-            node.left = leftRotate(node.left);
-            return rightRotate(node);
+        return applyBatch(batch).deleted;
+    }
+
+    // delete operation; returns the same node if the key is not present
+    private static AVLNode deleteNode(AVLNode node, Contact key) {
+        if (node == null) {
+            return null;
         }
-        if (balance < -1 && getBalance(node.right) <= 0) {
-            return leftRotate(node);
+
+        int comparison = compareContacts(key, node.contact);
+        if (comparison < 0) {
+            AVLNode left = deleteNode(node.left, key);
+            return left == node.left ? node : balance(node.contact, left, node.right);
+        } else if (comparison > 0) {
+            AVLNode right = deleteNode(node.right, key);
+            return right == node.right ? node : balance(node.contact, node.left, right);
         }
-        if (balance < -1 && getBalance(node.right) > 0) {
-            node.right = rightRotate(node.right);
-            return leftRotate(node);
+        if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
         }
-
-        return node;
+        Contact successor = findMin(node.right);
+        return balance(successor, node.left, removeMin(node.right));
     }
 
     // finding minimum node
-    private Contact findMin(AVLNode node) {
+    private static Contact findMin(AVLNode node) {
         while (node.left != null) {
             node = node.left;
         }
         return node.contact;
     }
 
+    // removes the minimum node of a subtree
+    private static AVLNode removeMin(AVLNode node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.contact, removeMin(node.left), node.right);
+    }
+
     // in order traversal of tree
-    private void inOrderTraversal(AVLNode node, StringBuilder ctsb) {
+    private static void inOrderTraversal(AVLNode node, StringBuilder ctsb) {
         if (node == null) {
             return;
         }
@@ -169,17 +448,56 @@ public class AVLTree implements Serializable {
      * @param email The contact's email
      * @return true if the contact was added, false if a duplicate exists
      */
-    public boolean addContact(String name, String phoneNumber, String email) {
-        Contact newContact = new Contact(name, phoneNumber, email);
-        AVLNode node = findNodeById(root, name, phoneNumber, email);
-        if (node == null)
-            root = insert(root, newContact);
-        else
-            return false;
+    public synchronized boolean addContact(String name, String phoneNumber, String email) {
+        return insertContact(new Contact(name, phoneNumber, email));
+    }
 
+    // inserts a contact object and indexes it, unless an identical one exists
+    private boolean insertContact(Contact contact) {
+        AVLNode node = findNodeById(root, contact.name, contact.phoneNumber, contact.email);
+        if (node != null) {
+            return false;
+        }
+        root = insert(root, contact);
+        indexContact(contact);
+        logChange(Collections.<Contact>emptyList(), Collections.singletonList(contact));
         return true;
     }
 
+    /**
+     * Marks or unmarks a contact as a favorite. The stored contact is replaced by a
+     * copy with the new flag along the path to it, so snapshots taken earlier keep
+     * the old value, and the change is recorded in the journal.
+     * @param contact The contact, matched by name, phone number and email
+     * @param favorite The new flag
+     * @return The contact now stored in the tree, or null if it is not in the tree
+     */
+    public synchronized Contact setFavorite(Contact contact, boolean favorite) {
+        AVLNode node = findNodeById(root, contact.name, contact.phoneNumber, contact.email);
+        if (node == null) return null;
+        Contact current = node.contact;
+        if (current.favorite == favorite) return current;
+        Contact updated = new Contact(current.name, current.phoneNumber, current.email);
+        updated.favorite = favorite;
+        updated.groups = current.groups;
+        updated.photoPath = current.photoPath;
+        root = replaceContact(root, updated);
+        reindexContact(current, updated);
+        logChange(Collections.singletonList(current), Collections.singletonList(updated));
+        return updated;
+    }
+
+    // copies the path down to the node with the replacement's key and stores the replacement there
+    private static AVLNode replaceContact(AVLNode node, Contact replacement) {
+        int comparison = compareContacts(replacement, node.contact);
+        if (comparison == 0) {
+            return new AVLNode(replacement, node.left, node.right);
+        }
+        return comparison < 0
+            ? new AVLNode(node.contact, replaceContact(node.left, replacement), node.right)
+            : new AVLNode(node.contact, node.left, replaceContact(node.right, replacement));
+    }
+
     /**
      * Updates an existing contact in the AVL tree.
      * @param name The current name
@@ -190,20 +508,335 @@ public class AVLTree implements Serializable {
      * @param newEmail The new email
      * @return true if the contact was updated, false if not found
      */
-    public boolean updateContact(String name, String phoneNumber, String email, String newName, String newPhoneNumber, String newEmail) {
+    public synchronized boolean updateContact(String name, String phoneNumber, String email, String newName, String newPhoneNumber, String newEmail) {
         Contact updatedContact = new Contact(newName, newPhoneNumber, newEmail);
         AVLNode node = findNodeById(root, name, phoneNumber, email);
         if (node != null) {
-            root = delete(root, name, phoneNumber, email);
-            root = insert(root, updatedContact);
+            // the edit changes name, phone and email only; keep the rest
+            updatedContact.favorite = node.contact.favorite;
+            updatedContact.groups = node.contact.groups;
+            updatedContact.photoPath = node.contact.photoPath;
+            // build the new version off to the side and publish it once
+            AVLNode updated = deleteNode(root, node.contact);
+            unindexContact(node.contact);
+            List<Contact> added = Collections.emptyList();
+            if (findNodeById(updated, newName, newPhoneNumber, newEmail) == null) {
+                updated = insert(updated, updatedContact);
+                indexContact(updatedContact);
+                added = Collections.singletonList(updatedContact);
+            }
+            root = updated;
+            logChange(Collections.singletonList(node.contact), added);
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Adds many contacts at once. The input is sorted and deduplicated once and
+     * pushed down the tree together, as applyBatch does: each run of new contacts
+     * that lands in an empty subtree is built bottom-up by buildBalanced with
+     * heights and sizes set directly, so loading into an empty tree is linear
+     * after the sort, with no per-contact lookups or rotations. Contacts already
+     * in the tree are kept in preference to equal input contacts.
+     * @param contacts The contacts to add, in any order
+     * @return Number of contacts added
+     */
+    public int bulkLoad(Iterable<Contact> contacts) {
+        return bulkInsert(contacts).size();
+    }
+
+    // the bulk-load path, returning the contacts that were new, e.g. so an import can undo them
+    synchronized List<Contact> bulkInsert(Iterable<Contact> contacts) {
+        Batch batch = new Batch();
+        for (Contact contact : contacts) {
+            batch.insert(contact);
+        }
+        return applyBatch(batch).addedContacts;
+    }
+
+    /**
+     * A set of deletes, inserts and updates applied together by applyBatch.
+     * Contacts to delete are matched by name, phone number and email.
+     */
+    public static final class Batch {
+        private final List<Contact> deletes = new ArrayList<>();
+        private final List<Contact> inserts = new ArrayList<>();
+
+        /**
+         * Adds a delete to the batch.
+         * @param contact The contact to delete
+         * @return This batch, for chaining
+         */
+        public Batch delete(Contact contact) {
+            deletes.add(contact);
+            return this;
+        }
+
+        /**
+         * Adds a delete to the batch.
+         * @param name The contact's name
+         * @param phoneNumber The contact's phone number
+         * @param email The contact's email
+         * @return This batch, for chaining
+         */
+        public Batch delete(String name, String phoneNumber, String email) {
+            return delete(new Contact(name, phoneNumber, email));
+        }
+
+        /**
+         * Adds an insert to the batch. It is skipped if an identical contact remains
+         * in the tree after the batch's deletes.
+         * @param contact The contact to insert
+         * @return This batch, for chaining
+         */
+        public Batch insert(Contact contact) {
+            inserts.add(contact);
+            return this;
+        }
+
+        /**
+         * Adds an update to the batch, replacing one contact with another.
+         * @param contact The contact to replace
+         * @param replacement The contact to store instead
+         * @return This batch, for chaining
+         */
+        public Batch update(Contact contact, Contact replacement) {
+            return delete(contact).insert(replacement);
+        }
+
+        /**
+         * Returns the number of operations in the batch, counting an update as two.
+         * @return Number of deletes plus inserts
+         */
+        public int size() {
+            return deletes.size() + inserts.size();
+        }
+    }
+
+    /**
+     * What applyBatch changed.
+     */
+    public static final class BatchResult {
+        public final int deleted;
+        public final int inserted;
+        /** The stored contacts the deletes removed. */
+        public final List<Contact> removedContacts;
+        /** The contacts actually inserted; inserts skipped as already present are left out. */
+        public final List<Contact> addedContacts;
+
+        public BatchResult(List<Contact> removedContacts, List<Contact> addedContacts) {
+            this.deleted = removedContacts.size();
+            this.inserted = addedContacts.size();
+            this.removedContacts = removedContacts;
+            this.addedContacts = addedContacts;
+        }
+    }
+
+    /**
+     * Applies a batch of changes at once. All deletes run before all inserts. The
+     * operations are sorted and pushed down the tree together, so each subtree is
+     * visited once and rebalanced once when its children are joined back, and
+     * subtrees no operation touches are shared unchanged. The new tree is
+     * published in a single step.
+     * @param batch The changes to apply
+     * @return The contacts deleted and inserted
+     */
+    public synchronized BatchResult applyBatch(Batch batch) {
+        List<Contact> deletes = sortedDistinct(batch.deletes);
+        List<Contact> inserts = sortedDistinct(batch.inserts);
+        List<Contact> removed = new ArrayList<>();
+        List<Contact> added = new ArrayList<>();
+        AVLNode updated = removeAll(root, deletes, 0, deletes.size(), removed);
+        updated = insertAll(updated, inserts, 0, inserts.size(), added);
+        unindexAll(removed);
+        indexAll(added);
+        root = updated;
+        logChange(removed, added);
+        return new BatchResult(removed, added);
+    }
+
+    // a sorted copy with repeated keys dropped, keeping the first of each
+    private static List<Contact> sortedDistinct(List<Contact> contacts) {
+        List<Contact> sorted = new ArrayList<>(contacts);
+        sorted.sort(AVLTree::compareContacts);
+        int kept = 0;
+        for (Contact contact : sorted) {
+            if (kept == 0 || compareContacts(sorted.get(kept - 1), contact) != 0) {
+                sorted.set(kept++, contact);
+            }
+        }
+        return new ArrayList<>(sorted.subList(0, kept));
+    }
+
+    // index of the first key in [lo, hi) not less than the contact
+    private static int lowerBound(List<Contact> keys, int lo, int hi, Contact contact) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareContacts(keys.get(mid), contact) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // removes the sorted keys [lo, hi) from a subtree, collecting the stored contacts removed
+    private static AVLNode removeAll(AVLNode node, List<Contact> keys, int lo, int hi, List<Contact> removed) {
+        if (node == null || lo >= hi) {
+            return node;
+        }
+        int split = lowerBound(keys, lo, hi, node.contact);
+        boolean found = split < hi && compareContacts(keys.get(split), node.contact) == 0;
+        AVLNode left = removeAll(node.left, keys, lo, split, removed);
+        if (found) {
+            removed.add(node.contact);
+        }
+        AVLNode right = removeAll(node.right, keys, found ? split + 1 : split, hi, removed);
+        if (found) {
+            return concat(left, right);
+        }
+        if (left == node.left && right == node.right) {
+            return node;
+        }
+        return join(left, node.contact, right);
+    }
+
+    // inserts the sorted contacts [lo, hi) into a subtree, collecting the ones that were new
+    private static AVLNode insertAll(AVLNode node, List<Contact> keys, int lo, int hi, List<Contact> added) {
+        if (lo >= hi) {
+            return node;
+        }
+        if (node == null) {
+            added.addAll(keys.subList(lo, hi));
+            return buildBalanced(keys, lo, hi - 1);
+        }
+        int split = lowerBound(keys, lo, hi, node.contact);
+        boolean found = split < hi && compareContacts(keys.get(split), node.contact) == 0;
+        AVLNode left = insertAll(node.left, keys, lo, split, added);
+        AVLNode right = insertAll(node.right, keys, found ? split + 1 : split, hi, added);
+        if (left == node.left && right == node.right) {
+            return node;
+        }
+        return join(left, node.contact, right);
+    }
+
+    // the parts of a subtree before and after a key, and the stored contact equal to it if any
+    private static final class Split {
+        final AVLNode less;
+        final Contact match;
+        final AVLNode greater;
+
+        Split(AVLNode less, Contact match, AVLNode greater) {
+            this.less = less;
+            this.match = match;
+            this.greater = greater;
+        }
+    }
+
+    // splits a subtree around a key, joining the pieces on the way back up
+    private static Split split(AVLNode node, Contact key) {
+        if (node == null) {
+            return new Split(null, null, null);
+        }
+        int comparison = compareContacts(key, node.contact);
+        if (comparison == 0) {
+            return new Split(node.left, node.contact, node.right);
+        }
+        if (comparison < 0) {
+            Split part = split(node.left, key);
+            return new Split(part.less, part.match, join(part.greater, node.contact, node.right));
+        }
+        Split part = split(node.right, key);
+        return new Split(join(node.left, node.contact, part.less), part.match, part.greater);
+    }
+
+    // contacts in either subtree; on equal keys the contact from a is kept
+    private static AVLNode union(AVLNode a, AVLNode b) {
+        if (a == null) return b;
+        if (b == null || a == b) return a;
+        // split the larger tree by the root of the smaller one
+        if (a.size < b.size) {
+            Split part = split(b, a.contact);
+            return join(union(a.left, part.less), a.contact, union(a.right, part.greater));
+        }
+        Split part = split(a, b.contact);
+        Contact kept = part.match != null ? part.match : b.contact;
+        return join(union(part.less, b.left), kept, union(part.greater, b.right));
+    }
+
+    // contacts of a whose key is also in b
+    private static AVLNode intersection(AVLNode a, AVLNode b) {
+        if (a == null || b == null) return null;
+        // snapshots of the same book share untouched subtrees
+        if (a == b) return a;
+        Split part = split(a, b.contact);
+        AVLNode left = intersection(part.less, b.left);
+        AVLNode right = intersection(part.greater, b.right);
+        return part.match != null ? join(left, part.match, right) : concat(left, right);
+    }
+
+    // contacts of a whose key is not in b
+    private static AVLNode difference(AVLNode a, AVLNode b) {
+        if (a == null || a == b) return null;
+        if (b == null) return a;
+        Split part = split(a, b.contact);
+        return concat(difference(part.less, b.left), difference(part.greater, b.right));
+    }
+
+    // joins two subtrees and a contact ordered between them, whatever their heights
+    private static AVLNode join(AVLNode left, Contact contact, AVLNode right) {
+        if (getHeight(left) > getHeight(right) + 1) {
+            return joinRight(left, contact, right);
+        }
+        if (getHeight(right) > getHeight(left) + 1) {
+            return joinLeft(left, contact, right);
+        }
+        return new AVLNode(contact, left, right);
+    }
+
+    // descends the right spine of the taller left subtree until the heights match
+    private static AVLNode joinRight(AVLNode left, Contact contact, AVLNode right) {
+        if (getHeight(left.right) <= getHeight(right) + 1) {
+            return balance(left.contact, left.left, new AVLNode(contact, left.right, right));
+        }
+        return balance(left.contact, left.left, joinRight(left.right, contact, right));
+    }
+
+    // descends the left spine of the taller right subtree until the heights match
+    private static AVLNode joinLeft(AVLNode left, Contact contact, AVLNode right) {
+        if (getHeight(right.left) <= getHeight(left) + 1) {
+            return balance(right.contact, new AVLNode(contact, left, right.left), right.right);
+        }
+        return balance(right.contact, joinLeft(left, contact, right.left), right.right);
+    }
+
+    // joins two subtrees where every contact on the left sorts before the right
+    private static AVLNode concat(AVLNode left, AVLNode right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return join(left, findMin(right), removeMin(right));
+    }
+
+    // builds a balanced subtree from a sorted range
+    private static AVLNode buildBalanced(List<Contact> sorted, int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        AVLNode left = buildBalanced(sorted, lo, mid - 1);
+        AVLNode right = buildBalanced(sorted, mid + 1, hi);
+        return new AVLNode(sorted.get(mid), left, right);
+    }
+
     // search by node
-    private AVLNode findNodeById(AVLNode node, String name, String phoneNumber, String email) {
+    private static AVLNode findNodeById(AVLNode node, String name, String phoneNumber, String email) {
         if (node == null) {
             return null;
         }
@@ -232,6 +865,560 @@ public class AVLTree implements Serializable {
         }
     }
 
+    /**
+     * Attaches a write-ahead journal. From now on every change to the tree is
+     * appended to it, in the order the changes are made.
+     * @param journal The journal to record changes in, or null to stop recording
+     */
+    public synchronized void setJournal(ContactJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Chooses whether writes wait for the journal. By default a write returns as
+     * soon as its record is queued and the journal syncs it within its maximum
+     * delay, so a crash can lose the last few changes. When durable, every write
+     * method returns only once its record has been written and synced, at the cost
+     * of one fsync per write while the monitor is held.
+     * @param durable true to sync every write before it returns
+     */
+    public synchronized void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * Blocks until every change made so far is in the journal on disk. Cheaper than
+     * durable mode when only some points need the guarantee, e.g. after an import.
+     * @throws IOException if the journal could not be written or synced
+     */
+    public void sync() throws IOException {
+        ContactJournal current;
+        synchronized (this) {
+            current = journal;
+        }
+        if (current != null) {
+            current.sync();
+        }
+    }
+
+    // records one change in the journal; called with the monitor held so records keep the tree's order.
+    // in durable mode a failed sync is thrown, after the change has been applied in memory
+    private void logChange(List<Contact> deleted, List<Contact> added) {
+        if (journal != null && !(deleted.isEmpty() && added.isEmpty())) {
+            journal.append(deleted, added);
+            if (durable) {
+                try {
+                    journal.sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Change not saved to the journal", e);
+                }
+            }
+        }
+    }
+
+    // adds a contact to the phone and email indexes
+    private void indexContact(Contact contact) {
+        addToIndex(phoneIndex, contact.canonicalPhone(), contact);
+        addToIndex(emailIndex, contact.canonicalEmail(), contact);
+        addToIndex(nameIndex, nameKey(contact.name), contact);
+        substringIndex.add(contact);
+        groupIndex.add(contact);
+        if (contact.favorite) favorites.add(contact);
+    }
+
+    // removes a contact from the phone and email indexes
+    private void unindexContact(Contact contact) {
+        removeFromIndex(phoneIndex, contact.canonicalPhone(), contact);
+        removeFromIndex(emailIndex, contact.canonicalEmail(), contact);
+        removeFromIndex(nameIndex, nameKey(contact.name), contact);
+        substringIndex.remove(contact);
+        groupIndex.remove(contact);
+        if (contact.favorite) favorites.remove(contact);
+    }
+
+    // indexes many contacts, updating each trigram posting list once
+    private void indexAll(List<Contact> contacts) {
+        for (Contact contact : contacts) {
+            addToIndex(phoneIndex, contact.canonicalPhone(), contact);
+            addToIndex(emailIndex, contact.canonicalEmail(), contact);
+            addToIndex(nameIndex, nameKey(contact.name), contact);
+            if (contact.favorite) favorites.add(contact);
+        }
+        substringIndex.addAll(contacts);
+        groupIndex.addAll(contacts);
+    }
+
+    // unindexes many contacts, updating each trigram posting list once
+    private void unindexAll(List<Contact> contacts) {
+        for (Contact contact : contacts) {
+            removeFromIndex(phoneIndex, contact.canonicalPhone(), contact);
+            removeFromIndex(emailIndex, contact.canonicalEmail(), contact);
+            removeFromIndex(nameIndex, nameKey(contact.name), contact);
+            if (contact.favorite) favorites.remove(contact);
+        }
+        substringIndex.removeAll(contacts);
+        groupIndex.removeAll(contacts);
+    }
+
+    // points every index at a replacement with the same key and groups, moving it in or out of favorites
+    private void reindexContact(Contact contact, Contact replacement) {
+        replaceInIndex(phoneIndex, contact.canonicalPhone(), contact, replacement);
+        replaceInIndex(emailIndex, contact.canonicalEmail(), contact, replacement);
+        replaceInIndex(nameIndex, nameKey(contact.name), contact, replacement);
+        substringIndex.replace(contact, replacement);
+        groupIndex.replace(contact, replacement);
+        if (contact.favorite) favorites.remove(contact);
+        if (replacement.favorite) favorites.add(replacement);
+    }
+
+    // key of a name in the prefix index
+    private static String nameKey(String name) {
+        return name == null ? "" : name.trim().toLowerCase();
+    }
+
+    private static void addToIndex(Map<String, List<Contact>> index, String key, Contact contact) {
+        if (key.isEmpty()) return;
+        index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(contact);
+    }
+
+    private static void replaceInIndex(Map<String, List<Contact>> index, String key, Contact contact, Contact replacement) {
+        List<Contact> bucket = index.get(key);
+        if (bucket == null) return;
+        for (int i = 0; i < bucket.size(); i++) {
+            if (bucket.get(i) == contact) {
+                bucket.set(i, replacement);
+                break;
+            }
+        }
+    }
+
+    private static void removeFromIndex(Map<String, List<Contact>> index, String key, Contact contact) {
+        List<Contact> bucket = index.get(key);
+        if (bucket == null) return;
+        // remove by identity, the bucket may hold contacts that are equal after normalization
+        for (int i = 0; i < bucket.size(); i++) {
+            if (bucket.get(i) == contact) {
+                bucket.remove(i);
+                break;
+            }
+        }
+        if (bucket.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Finds all contacts with the given phone number, ignoring formatting.
+     * @param phoneNumber The phone number to look up
+     * @return List of matching contacts, empty if none
+     */
+    public synchronized List<Contact> findByPhone(String phoneNumber) {
+        List<Contact> bucket = phoneIndex.get(Contact.normalizePhone(phoneNumber));
+        return bucket == null ? new ArrayList<>() : new ArrayList<>(bucket);
+    }
+
+    /**
+     * Finds all contacts with the given email, ignoring case and surrounding spaces.
+     * @param email The email to look up
+     * @return List of matching contacts, empty if none
+     */
+    public synchronized List<Contact> findByEmail(String email) {
+        List<Contact> bucket = emailIndex.get(Contact.normalizeEmail(email));
+        return bucket == null ? new ArrayList<>() : new ArrayList<>(bucket);
+    }
+
+    /**
+     * Finds all contacts whose name starts with the given prefix, ignoring case.
+     * Runs in O(log n + matches) over the name index.
+     * @param prefix The name prefix to search for
+     * @return List of matching contacts in case-folded name order
+     */
+    public synchronized List<Contact> findByNamePrefix(String prefix) {
+        String key = nameKey(prefix);
+        List<Contact> matches = new ArrayList<>();
+        for (Map.Entry<String, List<Contact>> entry : nameIndex.tailMap(key, true).entrySet()) {
+            if (!entry.getKey().startsWith(key)) break;
+            matches.addAll(entry.getValue());
+        }
+        return matches;
+    }
+
+    /**
+     * Finds all contacts whose name, phone number or email contains the query, ignoring case.
+     * Queries of three or more characters are answered by the trigram index;
+     * shorter ones fall back to a scan of a snapshot, outside the tree's lock.
+     * @param query The substring to search for
+     * @return List of matching contacts in tree order
+     */
+    public List<Contact> searchContains(String query) {
+        String needle = query.trim().toLowerCase();
+        List<Contact> matches;
+        synchronized (this) {
+            matches = substringIndex.search(needle);
+        }
+        if (matches == null) {
+            matches = new ArrayList<>();
+            for (Contact contact : snapshot()) {
+                if (TrigramIndex.matches(contact, needle)) {
+                    matches.add(contact);
+                }
+            }
+            return matches;
+        }
+        matches.sort(AVLTree::compareContacts);
+        return matches;
+    }
+
+    /**
+     * Finds the contacts matching a group expression such as "Work AND NOT Family",
+     * answered by bitmap operations on the group index; see GroupIndex.evaluate.
+     * @param expression Group names combined with AND, OR, NOT and parentheses
+     * @return Matching contacts in tree order
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public List<Contact> findByGroups(String expression) {
+        List<Contact> matches;
+        synchronized (this) {
+            matches = groupIndex.contacts(groupIndex.evaluate(expression));
+        }
+        matches.sort(AVLTree::compareContacts);
+        return matches;
+    }
+
+    /**
+     * Runs a query, taking its candidates from the most selective index that
+     * can answer part of it: the phone or email hash, the name order, the group
+     * bitmaps, the favorites set or the trigram index. Under AND the cheapest
+     * indexed part is used; under OR every part must be indexed and their
+     * candidates are merged. Candidates are then checked against the whole query.
+     * When no index applies, or the best one would still return half the book,
+     * a snapshot is scanned in parallel instead. A query that is only favorite()
+     * is always answered by copying the favorites set, which holds exactly the
+     * matches in tree order, however many favorites there are.
+     * @param query The query to run
+     * @return Matches in tree order, with the plan that ran and how long it took
+     */
+    public ContactQuery.Result query(ContactQuery query) {
+        return query(query, () -> false);
+    }
+
+    /**
+     * Runs a query as query(ContactQuery) does, giving up early once it is cancelled.
+     * Cancellation is checked before each chunk of contacts is verified or scanned.
+     * @param query The query to run
+     * @param cancelled Returns true once the result is no longer wanted; called from
+     *                  scan worker threads, so it must be safe to call from any thread
+     * @return Matches in tree order, with the plan that ran and how long it took,
+     *         or null if the query was cancelled
+     */
+    public ContactQuery.Result query(ContactQuery query, BooleanSupplier cancelled) {
+        long start = System.nanoTime();
+        Snapshot snapshot;
+        Plan plan;
+        Collection<Contact> candidates = null;
+        boolean exact = false;
+        synchronized (this) {
+            snapshot = snapshot();
+            plan = plan(query);
+            // a plan of the whole query whose candidates are the answer needs no verifying, so it beats a scan
+            exact = plan != null && plan.exact && query instanceof ContactQuery.Predicate;
+            if (plan != null && (exact || (long) plan.estimate * 2 < Math.max(snapshot.size(), SCAN_CHUNK))) {
+                candidates = plan.source.get();
+            }
+        }
+        List<Contact> matches;
+        String description;
+        int checked;
+        if (exact) {
+            matches = (List<Contact>) candidates;
+            description = plan.description;
+            checked = 0;
+        } else if (candidates != null) {
+            matches = new ArrayList<>();
+            int verified = 0;
+            for (Contact contact : candidates) {
+                if (++verified % SCAN_CHUNK == 0 && cancelled.getAsBoolean()) {
+                    return null;
+                }
+                if (query.matches(contact)) {
+                    matches.add(contact);
+                }
+            }
+            matches.sort(AVLTree::compareContacts);
+            description = plan.description;
+            checked = candidates.size();
+        } else {
+            int chunks = (snapshot.size() + SCAN_CHUNK - 1) / SCAN_CHUNK;
+            matches = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> cancelled.getAsBoolean()
+                    ? Stream.<Contact>empty()
+                    : snapshot.getPage(chunk * SCAN_CHUNK, SCAN_CHUNK).stream().filter(query::matches))
+                .flatMap(s -> s)
+                .collect(Collectors.toList());
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            description = plan == null ? "parallel scan" : "parallel scan (" + plan.description + " not selective)";
+            checked = snapshot.size();
+        }
+        return new ContactQuery.Result(matches, description, checked, System.nanoTime() - start);
+    }
+
+    // contacts per task of a parallel scan and between cancellation checks, and the book size below which an index always wins
+    private static final int SCAN_CHUNK = 8192;
+
+    // where a query's candidates come from, and roughly how many there will be.
+    // an exact plan's source is a fresh list of precisely the predicate's matches in tree order
+    private static final class Plan {
+        final String description;
+        final int estimate;
+        final Supplier<Collection<Contact>> source;
+        final boolean exact;
+
+        Plan(String description, int estimate, Supplier<Collection<Contact>> source) {
+            this(description, estimate, source, false);
+        }
+
+        Plan(String description, int estimate, Supplier<Collection<Contact>> source, boolean exact) {
+            this.description = description;
+            this.estimate = estimate;
+            this.source = source;
+            this.exact = exact;
+        }
+    }
+
+    // picks the cheapest index plan for a query, or null if it needs a scan; called under the lock
+    private Plan plan(ContactQuery query) {
+        if (query instanceof ContactQuery.Predicate) {
+            return plan((ContactQuery.Predicate) query);
+        }
+        if (query instanceof ContactQuery.And) {
+            Plan best = null;
+            GroupIndex.Bitmap groups = null;
+            StringJoiner groupNames = new StringJoiner(" AND ", "group index (", ")");
+            for (ContactQuery part : ((ContactQuery.And) query).parts) {
+                if (isGroup(part)) {
+                    // several groups are intersected as bitmaps rather than verified one contact at a time
+                    GroupIndex.Bitmap members = groupIndex.group(((ContactQuery.Predicate) part).value);
+                    groups = groups == null ? members : groups.and(members);
+                    groupNames.add(part.toString());
+                    continue;
+                }
+                Plan plan = plan(part);
+                if (plan != null && (best == null || plan.estimate < best.estimate)) {
+                    best = plan;
+                }
+            }
+            if (groups != null && (best == null || groups.cardinality() < best.estimate)) {
+                GroupIndex.Bitmap members = groups;
+                best = new Plan(groupNames.toString(), members.cardinality(), () -> groupIndex.contacts(members));
+            }
+            return best;
+        }
+        if (query instanceof ContactQuery.Or) {
+            List<Plan> plans = new ArrayList<>();
+            long estimate = 0;
+            for (ContactQuery part : ((ContactQuery.Or) query).parts) {
+                Plan plan = plan(part);
+                if (plan == null) return null;
+                plans.add(plan);
+                estimate += plan.estimate;
+            }
+            StringJoiner description = new StringJoiner(" + ", "union of ", "");
+            for (Plan plan : plans) {
+                description.add(plan.description);
+            }
+            return new Plan(description.toString(), (int) Math.min(estimate, Integer.MAX_VALUE), () -> {
+                // the same contact can come from several parts; indexes share instances
+                Set<Contact> union = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Plan plan : plans) {
+                    union.addAll(plan.source.get());
+                }
+                return union;
+            });
+        }
+        return null; // NOT has no index
+    }
+
+    private Plan plan(ContactQuery.Predicate predicate) {
+        String value = predicate.value;
+        String description = " index (" + predicate + ")";
+        switch (predicate.field) {
+            case PHONE:
+                return bucketPlan("phone" + description, phoneIndex.get(value));
+            case EMAIL:
+                return bucketPlan("email" + description, emailIndex.get(value));
+            case NAME_PREFIX: {
+                if (value.isEmpty()) return null;
+                SortedMap<String, List<Contact>> range = nameIndex.subMap(value, value + Character.MAX_VALUE);
+                // counting stops once the prefix is too common for the index to pay off
+                int limit = size() / 2;
+                int estimate = 0;
+                for (List<Contact> bucket : range.values()) {
+                    estimate += bucket.size();
+                    if (estimate > limit) break;
+                }
+                return new Plan("name" + description, estimate, () -> {
+                    List<Contact> contacts = new ArrayList<>();
+                    for (List<Contact> bucket : range.values()) {
+                        contacts.addAll(bucket);
+                    }
+                    return contacts;
+                });
+            }
+            case SUBSTRING: {
+                int estimate = substringIndex.estimate(value);
+                if (estimate < 0) return null;
+                return new Plan("trigram" + description, estimate, () -> substringIndex.search(value));
+            }
+            case DOMAIN: {
+                String needle = "@" + value;
+                int estimate = substringIndex.estimate(needle);
+                if (estimate < 0) return null;
+                return new Plan("trigram" + description, estimate, () -> substringIndex.search(needle));
+            }
+            case GROUP: {
+                GroupIndex.Bitmap members = groupIndex.group(value);
+                return new Plan("group" + description, members.cardinality(), () -> groupIndex.contacts(members));
+            }
+            default:
+                return new Plan("favorites index", favorites.size(), () -> new ArrayList<>(favorites), true);
+        }
+    }
+
+    private static boolean isGroup(ContactQuery query) {
+        return query instanceof ContactQuery.Predicate && ((ContactQuery.Predicate) query).field == ContactQuery.Field.GROUP;
+    }
+
+    private static Plan bucketPlan(String description, List<Contact> bucket) {
+        List<Contact> contacts = bucket == null ? Collections.<Contact>emptyList() : new ArrayList<>(bucket);
+        return new Plan(description, contacts.size(), () -> contacts);
+    }
+
+    /**
+     * Returns every group used by at least one contact.
+     * @return Group names, sorted ignoring case
+     */
+    public synchronized List<String> getGroups() {
+        return groupIndex.groups();
+    }
+
+    /**
+     * Returns size statistics of the group index.
+     * @return Index statistics
+     */
+    public synchronized String getGroupIndexStatistics() {
+        return groupIndex.statistics();
+    }
+
+    /**
+     * Returns size statistics of the substring search index.
+     * @return Index statistics
+     */
+    public synchronized String getSearchIndexStatistics() {
+        return substringIndex.statistics();
+    }
+
+    /**
+     * Returns the number of contacts in the tree.
+     * @return Contact count
+     */
+    public int size() {
+        return getSize(root);
+    }
+
+    /**
+     * Returns the position of a contact in name order, in O(log n).
+     * @param contact The contact to rank
+     * @return Number of contacts ordered before it; for a contact not in the tree,
+     *         the position it would be inserted at
+     */
+    public int rank(Contact contact) {
+        int rank = 0;
+        AVLNode node = root;
+        while (node != null) {
+            int comparison = compareContacts(contact, node.contact);
+            if (comparison <= 0) {
+                if (comparison == 0) return rank + getSize(node.left);
+                node = node.left;
+            } else {
+                rank += getSize(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the contact at a position in name order, in O(log n).
+     * @param index Zero-based position
+     * @return The contact at that position
+     * @throws IndexOutOfBoundsException if index is not in [0, size())
+     */
+    public Contact select(int index) {
+        return select(root, index);
+    }
+
+    private static Contact select(AVLNode node, int index) {
+        if (index < 0 || index >= getSize(node)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + getSize(node));
+        }
+        while (true) {
+            int leftSize = getSize(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node.contact;
+            }
+        }
+    }
+
+    /**
+     * Returns a page of contacts in name order, in O(log n + limit).
+     * @param offset Zero-based position of the first contact
+     * @param limit Maximum number of contacts to return
+     * @return List of up to limit contacts, empty if offset is past the end
+     */
+    public List<Contact> getPage(int offset, int limit) {
+        return getPage(root, offset, limit);
+    }
+
+    private static List<Contact> getPage(AVLNode root, int offset, int limit) {
+        int size = getSize(root);
+        List<Contact> page = new ArrayList<>(Math.max(0, Math.min(limit, size - offset)));
+        if (offset < 0 || limit <= 0 || offset >= size) {
+            return page;
+        }
+        // descend to the offset, stacking the ancestors still to be visited in order
+        Deque<AVLNode> stack = new ArrayDeque<>();
+        AVLNode node = root;
+        int index = offset;
+        while (node != null) {
+            int leftSize = getSize(node.left);
+            if (index < leftSize) {
+                stack.push(node);
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                stack.push(node);
+                break;
+            }
+        }
+        while (!stack.isEmpty() && page.size() < limit) {
+            node = stack.pop();
+            page.add(node.contact);
+            for (AVLNode next = node.right; next != null; next = next.left) {
+                stack.push(next);
+            }
+        }
+        return page;
+    }
+
     /**
      * Returns a string representation of all contacts in the tree.
      * @return String of all contacts
@@ -247,13 +1434,11 @@ public class AVLTree implements Serializable {
      * @return List of Contact objects
      */
     public List<Contact> getContactList() {
-        List<Contact> csList = new ArrayList<>();
-        inOrderTraversal(root, csList);
-        return csList;
+        return snapshot().getContactList();
     }
 
     // inorder traversal for storing contacts in list
-    private void inOrderTraversal(AVLNode node, List<Contact> cs) {
+    private static void inOrderTraversal(AVLNode node, List<Contact> cs) {
         if (node == null) {
             return;
         }
@@ -268,118 +1453,29 @@ public class AVLTree implements Serializable {
      * @param filePath The file path to save to
      */
     public static void saveContacts(List<Contact> cs, String filePath) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (Contact c : cs) {
-                String line = c.name + "," + c.phoneNumber + "," + c.email;
-                writer.write(line);
-                writer.newLine();
-            }
+        try {
+            ContactExporter.export(cs, java.nio.file.Paths.get(filePath), ContactExporter.CSV, false, null);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Error writing CSV file: " + e.getMessage());
         }
     }
 
     /**
-     * Finds duplicate contacts in the tree.
-     * @return List of duplicate contact groups
+     * Finds duplicate contacts in the tree. Contacts sharing a normalized phone,
+     * email or name, directly or through other contacts, form one cluster.
+     * @return List of disjoint duplicate clusters
      */
     public List<List<Contact>> findDuplicates() {
-        List<List<Contact>> duplicateGroups = new ArrayList<>();
-        List<Contact> allContacts = getContactList();
-        
-        // Use a map to group contacts by their normalized data
-        Map<String, List<Contact>> phoneGroups = new HashMap<>();
-        Map<String, List<Contact>> emailGroups = new HashMap<>();
-        Map<String, List<Contact>> nameGroups = new HashMap<>();
-        
-        for (Contact contact : allContacts) {
-            // Group by normalized phone
-            String normPhone = Contact.normalizePhone(contact.phoneNumber);
-            if (!normPhone.isEmpty()) {
-                phoneGroups.computeIfAbsent(normPhone, k -> new ArrayList<>()).add(contact);
-            }
-            
-            // Group by normalized email
-            String normEmail = Contact.normalizeEmail(contact.email);
-            if (!normEmail.isEmpty()) {
-                emailGroups.computeIfAbsent(normEmail, k -> new ArrayList<>()).add(contact);
-            }
-            
-            // Group by normalized name
-            String normName = Contact.normalizeName(contact.name);
-            if (!normName.isEmpty()) {
-                nameGroups.computeIfAbsent(normName, k -> new ArrayList<>()).add(contact);
-            }
-        }
-        
-        // Find groups with more than one contact
-        for (List<Contact> group : phoneGroups.values()) {
-            if (group.size() > 1) {
-                duplicateGroups.add(new ArrayList<>(group));
-            }
-        }
-        
-        for (List<Contact> group : emailGroups.values()) {
-            if (group.size() > 1) {
-                duplicateGroups.add(new ArrayList<>(group));
-            }
-        }
-        
-        for (List<Contact> group : nameGroups.values()) {
-            if (group.size() > 1) {
-                duplicateGroups.add(new ArrayList<>(group));
-            }
-        }
-        
-        // Remove duplicate groups (same contacts in different groups)
-        return removeDuplicateGroups(duplicateGroups);
+        return DuplicateClusterer.cluster(getContactList());
     }
 
     /**
-     * Removes duplicate groups that contain the same contacts.
-     * @param groups List of duplicate groups
-     * @return List with duplicate groups removed
+     * Finds pairs of contacts with similar names, e.g. typos or missing initials,
+     * using blocking so the whole book is not compared pairwise.
+     * @return Near-duplicate pairs with similarity scores, highest score first
      */
-    private List<List<Contact>> removeDuplicateGroups(List<List<Contact>> groups) {
-        List<List<Contact>> uniqueGroups = new ArrayList<>();
-        
-        for (List<Contact> group : groups) {
-            boolean isDuplicate = false;
-            for (List<Contact> existingGroup : uniqueGroups) {
-                if (areGroupsEqual(group, existingGroup)) {
-                    isDuplicate = true;
-                    break;
-                }
-            }
-            if (!isDuplicate) {
-                uniqueGroups.add(group);
-            }
-        }
-        
-        return uniqueGroups;
-    }
-
-    /**
-     * Checks if two groups contain the same contacts.
-     * @param group1 First group
-     * @param group2 Second group
-     * @return true if groups are equal
-     */
-    private boolean areGroupsEqual(List<Contact> group1, List<Contact> group2) {
-        if (group1.size() != group2.size()) return false;
-        
-        for (Contact contact : group1) {
-            boolean found = false;
-            for (Contact other : group2) {
-                if (contact.equals(other)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) return false;
-        }
-        
-        return true;
+    public List<NearDuplicateFinder.Match> findNearDuplicates() {
+        return new NearDuplicateFinder().find(getContactList());
     }
 
     /**
@@ -387,8 +1483,9 @@ public class AVLTree implements Serializable {
      * @param duplicateGroups List of duplicate groups to merge
      * @return Number of contacts merged
      */
-    public int mergeDuplicates(List<List<Contact>> duplicateGroups) {
+    public synchronized int mergeDuplicates(List<List<Contact>> duplicateGroups) {
         int mergedCount = 0;
+        Batch batch = new Batch();
         
         for (List<Contact> group : duplicateGroups) {
             if (group.size() < 2) continue;
@@ -399,16 +1496,15 @@ public class AVLTree implements Serializable {
                 merged = merged.mergeWith(group.get(i));
             }
             
-            // Remove all original contacts
+            // Replace the originals with the merged contact, keeping its favorite flag and groups
             for (Contact contact : group) {
-                root = delete(root, contact.name, contact.phoneNumber, contact.email);
+                batch.delete(contact);
             }
-            
-            // Add the merged contact
-            addContact(merged.name, merged.phoneNumber, merged.email);
+            batch.insert(merged);
             mergedCount += group.size() - 1; // Number of contacts merged
         }
         
+        applyBatch(batch);
         return mergedCount;
     }
 
@@ -418,14 +1514,18 @@ public class AVLTree implements Serializable {
      */
     public List<Contact> findInvalidContacts() {
         List<Contact> invalidContacts = new ArrayList<>();
-        List<Contact> allContacts = getContactList();
-        
-        for (Contact contact : allContacts) {
-            if (!contact.isValid()) {
-                invalidContacts.add(contact);
-            }
+        for (ContactValidator.Result result : validateContacts(ContactValidator.defaults())) {
+            invalidContacts.add(result.contact);
         }
-        
         return invalidContacts;
     }
-} 
\ No newline at end of file
+
+    /**
+     * Validates all contacts in the tree in parallel against a snapshot.
+     * @param validator The rules to check
+     * @return One result per invalid contact, with its failure reasons, in tree order
+     */
+    public List<ContactValidator.Result> validateContacts(ContactValidator validator) {
+        return validator.findInvalid(getContactList());
+    }
+}
@@ -1,41 +1,356 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /**
- * Utility class to read contacts from a CSV file.
+ * Utility class to read contacts from a CSV file. Rows are parsed per RFC 4180 by
+ * CsvParser. If the first row names the columns (name, phone, email, favorite,
+ * groups, photoPath, in any order) they are mapped by name; otherwise the columns
+ * are taken in that order. Rows that cannot be imported are reported with their
+ * line number and reason instead of being dropped silently.
  */
 public class CSVReader {
+    // target size of one parallel parse chunk
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    // bytes read at a time while looking for record boundaries
+    private static final int SCAN_BLOCK = 1024 * 1024;
+    // where the boundary scan is within a record, following CsvParser's rules
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int AFTER_QUOTE = 3;
+    private static final int SKIP_LINE = 4;
+    private static final ContactValidator VALIDATOR = ContactValidator.defaults();
+
+    /**
+     * The outcome of reading a CSV file.
+     */
+    public static class Result {
+        /** The valid contacts, in file order. */
+        public final List<Contact> contacts;
+        /** Number of rows that were rejected. */
+        public final int rejected;
+        /** The file the rejected rows were written to, or null if none were rejected. */
+        public final Path rejectsFile;
+        /** Header columns that were not recognised and therefore not imported. */
+        public final List<String> ignoredColumns;
+
+        public Result(List<Contact> contacts, int rejected, Path rejectsFile, List<String> ignoredColumns) {
+            this.contacts = contacts;
+            this.rejected = rejected;
+            this.rejectsFile = rejectsFile;
+            this.ignoredColumns = ignoredColumns;
+        }
+    }
+
+    /**
+     * Receives rows that could not be imported.
+     */
+    public interface RejectHandler {
+        /**
+         * Called once per rejected row, in file order.
+         * @param lineNumber Line the row starts on, counting from 1
+         * @param reason Why the row was rejected
+         * @param record The row as it appeared in the file
+         * @throws IOException if the rejection cannot be recorded
+         */
+        void rejected(long lineNumber, String reason, String record) throws IOException;
+    }
+
     /**
-     * Reads contacts from a CSV file and returns them as a list.
+     * Reads contacts from a CSV file and returns them as a list. Rejected rows are skipped.
      * @param filePath The path to the CSV file
      * @return List of Contact objects
      */
     public static List<Contact> readCSV(String filePath) {
+        try {
+            return read(Paths.get(filePath), null).contacts;
+        } catch (IOException e) {
+            System.err.println("Error reading CSV file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Reads contacts from a CSV file, writing every rejected row to a rejects file.
+     * The rejects file is a CSV of line, reason and the original row; it only
+     * exists afterwards if at least one row was rejected.
+     * @param file The CSV file
+     * @param rejectsFile Where to write rejected rows, or null to skip them silently
+     * @return The valid contacts and a summary of what was rejected
+     * @throws IOException if the file cannot be read, or its header lacks a required column
+     */
+    public static Result read(Path file, Path rejectsFile) throws IOException {
         List<Contact> contacts = new ArrayList<>();
+        RejectsWriter rejects = new RejectsWriter(rejectsFile);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<String> ignored = read(new CsvParser(channel), contacts::add, rejects);
+            return new Result(contacts, rejects.count, rejects.count > 0 ? rejectsFile : null, ignored);
+        } finally {
+            rejects.close();
+        }
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            // Handle BOM (Byte Order Mark) for UTF-8 files
-            br.mark(1);
-            if (br.read() != 0xFEFF) {
-                br.reset();
-            }
-
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue; // Skip empty lines
-                
-                String[] data = line.split(",");
-                if (data.length >= 3) {
-                    String name = data[0].trim();
-                    String phoneNumber = data[1].trim();
-                    String email = data[2].trim();
-                    
-                    // Only add valid contacts
-                    if (Contact.isValidName(name) && Contact.isValidPhone(phoneNumber) && Contact.isValidEmail(email)) {
-                        Contact contact = new Contact(name, phoneNumber, email);
-                        contacts.add(contact);
-                    }
+    /**
+     * Parses every row of a CSV stream into contacts, mapping columns from the header
+     * row if there is one.
+     * @param parser The parser positioned before the first row
+     * @param sink Receives each valid contact, in file order
+     * @param rejects Receives each rejected row
+     * @return Header columns that were not recognised, empty if there is no header
+     * @throws IOException if reading fails, or the header lacks a required column
+     */
+    public static List<String> read(CsvParser parser, Consumer<Contact> sink, RejectHandler rejects) throws IOException {
+        if (!parser.next()) {
+            return Collections.emptyList();
+        }
+        List<String> ignored = new ArrayList<>();
+        Columns columns = Columns.fromHeader(parser, ignored);
+        boolean more = true;
+        if (columns == null) {
+            columns = Columns.POSITIONAL;
+        } else {
+            more = parser.next();
+        }
+        while (more) {
+            String reason = parser.error();
+            if (reason == null) {
+                reason = columns.shapeProblem(parser);
+            }
+            Contact contact = null;
+            if (reason == null) {
+                try {
+                    contact = Columns.toContact(columns.values(parser));
+                    reason = rejectReason(contact);
+                } catch (IllegalArgumentException e) {
+                    reason = e.getMessage();
+                }
+            }
+            if (reason == null) {
+                sink.accept(contact);
+            } else if (rejects != null) {
+                rejects.rejected(parser.lineNumber(), reason, parser.rawRecord());
+            }
+            more = parser.next();
+        }
+        return ignored;
+    }
+
+    // the validation failures of a parsed contact, joined, or null if it is valid
+    static String rejectReason(Contact contact) {
+        List<String> reasons = VALIDATOR.validate(contact);
+        return reasons.isEmpty() ? null : String.join("; ", reasons);
+    }
+
+    // where each contact field is found in a row; -1 means the column is absent
+    static final class Columns {
+        static final Columns POSITIONAL = new Columns(new int[]{0, 1, 2, 3, 4, 5}, 6);
+
+        static final int NAME = 0, PHONE = 1, EMAIL = 2, FAVORITE = 3, GROUPS = 4, PHOTO = 5;
+        private static final String[] FIELD_NAMES = {"name", "phone", "email", "favorite", "groups", "photoPath"};
+
+        final int[] index;
+        // number of columns a row may have; later fields must be empty
+        final int width;
+        // fields a row needs before name, phone and email are all present
+        final int required;
+
+        Columns(int[] index, int width) {
+            this.index = index;
+            this.width = width;
+            this.required = Math.max(index[NAME], Math.max(index[PHONE], index[EMAIL])) + 1;
+        }
+
+        // maps a header row, or returns null if the row looks like data
+        static Columns fromHeader(CsvParser parser, List<String> ignored) throws IOException {
+            int[] index = {-1, -1, -1, -1, -1, -1};
+            List<String> unknown = new ArrayList<>();
+            int known = 0;
+            for (int i = 0; i < parser.fieldCount(); i++) {
+                String label = parser.field(i).trim();
+                int field = fieldFor(label);
+                if (field < 0 || index[field] >= 0) {
+                    unknown.add(label);
+                } else {
+                    index[field] = i;
+                    known++;
+                }
+            }
+            if (known < 2) return null;
+            for (int field = NAME; field <= EMAIL; field++) {
+                if (index[field] < 0) {
+                    throw new IOException("CSV header has no " + FIELD_NAMES[field] + " column");
+                }
+            }
+            ignored.addAll(unknown);
+            // named columns may be followed by anything; only missing data is a problem
+            return new Columns(index, Integer.MAX_VALUE);
+        }
+
+        // the contact field a header label names, ignoring case, spaces, '_' and '-'
+        private static int fieldFor(String label) {
+            StringBuilder key = new StringBuilder(label.length());
+            for (int i = 0; i < label.length(); i++) {
+                char ch = label.charAt(i);
+                if (ch != ' ' && ch != '_' && ch != '-') key.append(Character.toLowerCase(ch));
+            }
+            switch (key.toString()) {
+                case "name": case "fullname": return NAME;
+                case "phone": case "phonenumber": case "mobile": return PHONE;
+                case "email": case "emailaddress": return EMAIL;
+                case "favorite": case "favourite": case "starred": return FAVORITE;
+                case "groups": case "group": case "tags": return GROUPS;
+                case "photopath": case "photo": return PHOTO;
+                default: return -1;
+            }
+        }
+
+        // why the current row cannot hold a contact, or null if it has the right number of fields
+        String shapeProblem(CsvParser parser) {
+            int count = parser.fieldCount();
+            if (count < required) {
+                return "Expected at least " + required + " fields, found " + count;
+            }
+            if (hasExtraFields(parser)) {
+                return "Unexpected values after column " + width;
+            }
+            return null;
+        }
+
+        // the untrimmed value of each contact field in the current row, null where the column is absent
+        String[] values(CsvParser parser) {
+            String[] values = new String[index.length];
+            for (int field = 0; field < index.length; field++) {
+                int i = index[field];
+                values[field] = i < 0 || i >= parser.fieldCount() ? null : parser.field(i);
+            }
+            return values;
+        }
+
+        // builds a contact from field values, trimming them and dropping empty or repeated groups
+        static Contact toContact(String[] values) {
+            Contact contact = new Contact(values[NAME].trim(), values[PHONE].trim(), values[EMAIL].trim());
+            String favorite = values[FAVORITE] == null ? "" : values[FAVORITE].trim();
+            Boolean flag = parseFavorite(favorite);
+            if (flag == null) {
+                throw new IllegalArgumentException("Invalid favorite value '" + favorite + "'");
+            }
+            contact.favorite = flag;
+            if (values[GROUPS] != null) contact.groups = Contact.joinGroups(Contact.parseGroups(values[GROUPS]));
+            String photo = values[PHOTO] == null ? "" : values[PHOTO].trim();
+            contact.photoPath = photo.isEmpty() ? null : photo;
+            return contact;
+        }
+
+        // true if a field past the last known column holds a value
+        private boolean hasExtraFields(CsvParser parser) {
+            for (int i = width; i < parser.fieldCount(); i++) {
+                if (!parser.field(i).trim().isEmpty()) return true;
+            }
+            return false;
+        }
+
+        // true, false, or null if the text is not a recognised flag; absent means false
+        private static Boolean parseFavorite(String text) {
+            if (text == null || text.isEmpty()) return false;
+            switch (text.toLowerCase()) {
+                case "true": case "yes": case "y": case "1": case "\u2605": return true;
+                case "false": case "no": case "n": case "0": return false;
+                default: return null;
+            }
+        }
+    }
+
+    // writes rejected rows as CSV, creating the file on the first rejection
+    static final class RejectsWriter implements RejectHandler {
+        private final Path file;
+        private final StringBuilder line = new StringBuilder(256);
+        private Writer out;
+        int count;
+
+        RejectsWriter(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void rejected(long lineNumber, String reason, String record) throws IOException {
+            count++;
+            if (file == null) return;
+            if (out == null) {
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                out.write("line,reason,record\n");
+            }
+            line.setLength(0);
+            line.append(lineNumber).append(',');
+            ContactExporter.appendCsvField(reason, line);
+            line.append(',');
+            ContactExporter.appendCsvField(record, line);
+            line.append('\n');
+            out.append(line);
+        }
+
+        // closes and deletes the file, e.g. because the import it belongs to was cancelled
+        void discard() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (file != null) Files.deleteIfExists(file);
+        }
+
+        // closes the file, or removes one left by an earlier read if nothing was rejected
+        void close() throws IOException {
+            if (out != null) {
+                out.close();
+            } else if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Reads contacts from a UTF-8 CSV file using memory-mapped I/O. The file is cut
+     * into chunks at line breaks outside quoted fields, and the chunks are parsed
+     * and validated in parallel on the common fork-join pool. Accepts the same rows
+     * as read, including quoted fields with line breaks, and returns them in file
+     * order without reporting rejects.
+     * @param filePath The path to the CSV file
+     * @return List of Contact objects
+     */
+    public static List<Contact> readCSVParallel(String filePath) {
+        List<Contact> contacts = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            // the header, if any, decides the column mapping for every chunk
+            CsvParser first = new CsvParser(channel);
+            Columns header = first.next() ? Columns.fromHeader(first, new ArrayList<>()) : null;
+            Columns columns = header != null ? header : Columns.POSITIONAL;
+
+            List<ParseChunk> chunks = new ArrayList<>();
+            for (Range range : splitOnRecords(channel, CHUNK_SIZE)) {
+                chunks.add(new ParseChunk(range.map(channel), columns, chunks.isEmpty() && header != null));
+            }
+            ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    ForkJoinTask.invokeAll(chunks);
+                    return null;
                 }
+            });
+            for (ParseChunk chunk : chunks) {
+                contacts.addAll(chunk.join());
             }
         } catch (IOException e) {
             System.err.println("Error reading CSV file: " + e.getMessage());
@@ -43,4 +358,158 @@ public class CSVReader {
 
         return contacts;
     }
-} 
\ No newline at end of file
+
+    /**
+     * A part of a file holding whole records.
+     */
+    static final class Range {
+        /** Offset of the first byte. */
+        final long start;
+        /** Offset just past the last byte. */
+        final long end;
+        /** The file line the part starts on, counting from 1. */
+        final long firstLine;
+
+        Range(long start, long end, long firstLine) {
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+        }
+
+        // maps the part into memory; the mapping stays valid after the channel is closed
+        MappedByteBuffer map(FileChannel channel) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+    }
+
+    // cuts the file into ranges of about chunkSize bytes that end just after a line break
+    // outside quotes, so no record is split, even one with a line break in a quoted field
+    static List<Range> splitOnRecords(FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        List<Range> ranges = new ArrayList<>();
+        long start = skipBom(channel);
+        long position = start;
+        int state = FIELD_START;
+        // line breaks so far, counted as CsvParser counts lines: CRLF, LF or CR
+        long lines = 0;
+        long firstLine = 1;
+        byte previous = 0;
+        ByteBuffer block = ByteBuffer.allocate(SCAN_BLOCK);
+        byte[] bytes = block.array();
+        while (position < size) {
+            block.clear();
+            int read = channel.read(block, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                state = nextState(state, b);
+                if (b == '\r' || (b == '\n' && previous != '\r')) lines++;
+                previous = b;
+                long next = position + i + 1;
+                if (b == '\n' && state == FIELD_START && next - start >= chunkSize) {
+                    ranges.add(new Range(start, next, firstLine));
+                    start = next;
+                    firstLine = lines + 1;
+                }
+            }
+            position += read;
+        }
+        if (start < size) {
+            ranges.add(new Range(start, size, firstLine));
+        }
+        return ranges;
+    }
+
+    // one step of the boundary scan; a record ends where a line break leads back to FIELD_START
+    private static int nextState(int state, byte b) {
+        boolean separator = b == ',' || b == '\n' || b == '\r';
+        switch (state) {
+            case QUOTED:
+                return b == '"' ? AFTER_QUOTE : QUOTED;
+            case AFTER_QUOTE:
+                // a doubled quote stays inside the field; anything else but a separator is skipped with its line
+                if (b == '"') return QUOTED;
+                return separator ? FIELD_START : SKIP_LINE;
+            case SKIP_LINE:
+                return b == '\n' || b == '\r' ? FIELD_START : SKIP_LINE;
+            case UNQUOTED:
+                return separator ? FIELD_START : UNQUOTED;
+            default:
+                if (b == '"') return QUOTED;
+                return separator ? FIELD_START : UNQUOTED;
+        }
+    }
+
+    // returns 3 if the file starts with a UTF-8 byte order mark, else 0
+    private static long skipBom(FileChannel channel) throws IOException {
+        ByteBuffer bom = ByteBuffer.allocate(3);
+        channel.read(bom, 0);
+        boolean hasBom = bom.position() == 3 && (bom.get(0) & 0xFF) == 0xEF
+            && (bom.get(1) & 0xFF) == 0xBB && (bom.get(2) & 0xFF) == 0xBF;
+        return hasBom ? 3 : 0;
+    }
+
+    // parses and validates one mapped chunk of whole lines
+    private static class ParseChunk extends RecursiveTask<List<Contact>> {
+        private static final long serialVersionUID = 1L;
+        private final MappedByteBuffer buffer;
+        private final Columns columns;
+        private final boolean skipHeader;
+
+        ParseChunk(MappedByteBuffer buffer, Columns columns, boolean skipHeader) {
+            this.buffer = buffer;
+            this.columns = columns;
+            this.skipHeader = skipHeader;
+        }
+
+        @Override
+        protected List<Contact> compute() {
+            List<Contact> contacts = new ArrayList<>();
+            CsvParser parser = new CsvParser(channelOf(buffer));
+            try {
+                if (skipHeader) parser.next();
+                while (parser.next()) {
+                    if (parser.error() != null || columns.shapeProblem(parser) != null) continue;
+                    try {
+                        Contact contact = Columns.toContact(columns.values(parser));
+                        // Only add valid contacts
+                        if (rejectReason(contact) == null) {
+                            contacts.add(contact);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // invalid favorite flag; skipped like any other invalid row
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return contacts;
+        }
+    }
+
+    // reads a buffer from its position to its limit as a channel
+    static ReadableByteChannel channelOf(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer target) {
+                if (!source.hasRemaining()) return -1;
+                int n = Math.min(source.remaining(), target.remaining());
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + n);
+                target.put(slice);
+                source.position(source.position() + n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
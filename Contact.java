@@ -5,9 +5,9 @@ import java.util.*;
  * Represents a contact with name, phone number, email, favorite status, groups, and optional photo.
  */
 public class Contact implements Serializable {
-    public String name;
-    public String phoneNumber;
-    public String email;
+    public final String name;
+    public final String phoneNumber;
+    public final String email;
     /** True if this contact is a favorite/starred. */
     public boolean favorite;
     /** Comma-separated groups/tags for this contact (e.g., Family, Work). */
@@ -15,6 +15,25 @@ public class Contact implements Serializable {
     /** Optional path to a photo/avatar for this contact. */
     public String photoPath;
 
+    // normalized identity used by equals and hashCode, computed on first use;
+    // name, phone and email are final, so it never goes stale
+    private transient CanonicalKey key;
+
+    // immutable holder so the key is published safely without locking
+    private static final class CanonicalKey {
+        final String name;
+        final String phone;
+        final String email;
+        final int hash;
+
+        CanonicalKey(String name, String phone, String email) {
+            this.name = name;
+            this.phone = phone;
+            this.email = email;
+            this.hash = Objects.hash(name, phone, email);
+        }
+    }
+
     /**
      * Constructs a Contact with the given name, phone number, and email.
      * @param name The contact's name
@@ -44,7 +63,7 @@ public class Contact implements Serializable {
      * @return true if valid, false otherwise
      */
     public static boolean isValidName(String name) {
-        return name != null && name.trim().matches("^[A-Za-z\\s]+$") && name.trim().length() >= 2;
+        return ContactValidator.isValidName(name);
     }
 
     /**
@@ -53,7 +72,7 @@ public class Contact implements Serializable {
      * @return true if valid, false otherwise
      */
     public static boolean isValidPhone(String phone) {
-        return phone != null && phone.trim().matches("^\\d{10}$");
+        return ContactValidator.isValidPhone(phone);
     }
 
     /**
@@ -62,7 +81,7 @@ public class Contact implements Serializable {
      * @return true if valid, false otherwise
      */
     public static boolean isValidEmail(String email) {
-        return email != null && email.trim().matches("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$");
+        return ContactValidator.isValidEmail(email);
     }
 
     /**
@@ -72,7 +91,12 @@ public class Contact implements Serializable {
      */
     public static String normalizePhone(String phone) {
         if (phone == null) return "";
-        return phone.replaceAll("[^\\d]", "");
+        StringBuilder digits = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            char ch = phone.charAt(i);
+            if (ch >= '0' && ch <= '9') digits.append(ch);
+        }
+        return digits.toString();
     }
 
     /**
@@ -85,6 +109,35 @@ public class Contact implements Serializable {
         return email.trim().toLowerCase();
     }
 
+    /**
+     * Splits a comma-separated group list into its groups, trimmed, without empty
+     * entries and without repeats, which are matched ignoring case.
+     * @param groups The group list, e.g. "Work, family,, Family"
+     * @return The distinct groups in first-seen order, e.g. [Work, family]
+     */
+    public static List<String> parseGroups(String groups) {
+        List<String> parsed = new ArrayList<>();
+        if (groups == null) return parsed;
+        Set<String> seen = new HashSet<>();
+        for (String group : groups.split(",")) {
+            String trimmed = group.trim();
+            if (!trimmed.isEmpty() && seen.add(trimmed.toLowerCase())) {
+                parsed.add(trimmed);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Joins groups into the comma-separated form stored in Contact.groups,
+     * dropping repeats that differ only in case.
+     * @param groups The groups to join
+     * @return The group list, e.g. "Work, Family"
+     */
+    public static String joinGroups(Collection<String> groups) {
+        return String.join(", ", parseGroups(String.join(",", groups)));
+    }
+
     /**
      * Normalizes name by trimming and capitalizing first letter of each word.
      * @param name The name to normalize
@@ -114,19 +167,19 @@ public class Contact implements Serializable {
         if (other == null) return false;
         
         // Check exact matches first
-        if (normalizePhone(phoneNumber).equals(normalizePhone(other.phoneNumber)) && 
-            !normalizePhone(phoneNumber).isEmpty()) {
+        if (canonicalPhone().equals(other.canonicalPhone()) && 
+            !canonicalPhone().isEmpty()) {
             return true;
         }
         
-        if (normalizeEmail(email).equals(normalizeEmail(other.email)) && 
-            !normalizeEmail(email).isEmpty()) {
+        if (canonicalEmail().equals(other.canonicalEmail()) && 
+            !canonicalEmail().isEmpty()) {
             return true;
         }
         
         // Check name similarity (fuzzy matching)
-        String thisName = normalizeName(name);
-        String otherName = normalizeName(other.name);
+        String thisName = canonicalName();
+        String otherName = other.canonicalName();
         
         if (thisName.equals(otherName) && !thisName.isEmpty()) {
             return true;
@@ -159,14 +212,10 @@ public class Contact implements Serializable {
         // Keep favorite status if either is favorite
         merged.favorite = favorite || other.favorite;
         
-        // Merge groups
-        if (groups.isEmpty()) {
-            merged.groups = other.groups;
-        } else if (!other.groups.isEmpty()) {
-            merged.groups = groups + ", " + other.groups;
-        } else {
-            merged.groups = groups;
-        }
+        // Merge groups, keeping each group once
+        List<String> mergedGroups = parseGroups(groups);
+        mergedGroups.addAll(parseGroups(other.groups));
+        merged.groups = joinGroups(mergedGroups);
         
         // Keep photo path if available
         merged.photoPath = photoPath != null ? photoPath : other.photoPath;
@@ -179,18 +228,54 @@ public class Contact implements Serializable {
         return "Contact{name='" + name + "', phone='" + phoneNumber + "', email='" + email + "'}";
     }
 
+    // returns the cached canonical key, computing it on first use
+    private CanonicalKey key() {
+        CanonicalKey k = key;
+        if (k == null) {
+            k = new CanonicalKey(normalizeName(name), normalizePhone(phoneNumber), normalizeEmail(email));
+            key = k;
+        }
+        return k;
+    }
+
+    /**
+     * Returns the normalized name, cached after the first call.
+     * @return Normalized name
+     */
+    public String canonicalName() {
+        return key().name;
+    }
+
+    /**
+     * Returns the normalized phone number, cached after the first call.
+     * @return Normalized phone number
+     */
+    public String canonicalPhone() {
+        return key().phone;
+    }
+
+    /**
+     * Returns the normalized email, cached after the first call.
+     * @return Normalized email
+     */
+    public String canonicalEmail() {
+        return key().email;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
-        Contact contact = (Contact) obj;
-        return Objects.equals(normalizeName(name), normalizeName(contact.name)) &&
-               Objects.equals(normalizePhone(phoneNumber), normalizePhone(contact.phoneNumber)) &&
-               Objects.equals(normalizeEmail(email), normalizeEmail(contact.email));
+        CanonicalKey k1 = key();
+        CanonicalKey k2 = ((Contact) obj).key();
+        return k1.hash == k2.hash &&
+               k1.name.equals(k2.name) &&
+               k1.phone.equals(k2.phone) &&
+               k1.email.equals(k2.email);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(normalizeName(name), normalizePhone(phoneNumber), normalizeEmail(email));
+        return key().hash;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams contacts from a snapshot to a file without building a list or one
+ * String per row. Each contact is formatted into a reused StringBuilder, encoded
+ * as UTF-8 into a reused buffer and written to a file channel, optionally through
+ * gzip. The file is written to a temporary file first and renamed over the target
+ * only once complete, so a failed or cancelled export leaves the old file intact.
+ */
+public class ContactExporter {
+    // how many contacts are written between progress reports and cancellation checks
+    private static final int PROGRESS_INTERVAL = 8192;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * An output format.
+     */
+    public interface Format {
+        /**
+         * Appends anything that comes before the first contact.
+         * @param out The builder to append to
+         */
+        default void appendHeader(StringBuilder out) {
+        }
+
+        /**
+         * Appends one contact, including its line break.
+         * @param contact The contact to format
+         * @param out The builder to append to
+         */
+        void appendContact(Contact contact, StringBuilder out);
+    }
+
+    /**
+     * Reports export progress.
+     */
+    public interface Progress {
+        /**
+         * Called from the exporting thread as contacts are written.
+         * @param done Contacts written so far
+         * @param total Contacts to write
+         */
+        void exported(int done, int total);
+    }
+
+    /** A header row, then name,phone,email,favorite,groups,photoPath per line, quoted per RFC 4180 where needed; readable by Import. */
+    public static final Format CSV = new Format() {
+        @Override
+        public void appendHeader(StringBuilder out) {
+            out.append("name,phone,email,favorite,groups,photoPath\n");
+        }
+
+        @Override
+        public void appendContact(Contact contact, StringBuilder out) {
+            appendCsvField(contact.name, out);
+            out.append(',');
+            appendCsvField(contact.phoneNumber, out);
+            out.append(',');
+            appendCsvField(contact.email, out);
+            out.append(',').append(contact.favorite).append(',');
+            appendCsvField(contact.groups, out);
+            out.append(',');
+            appendCsvField(contact.photoPath, out);
+            out.append('\n');
+        }
+    };
+
+    /** One JSON object per line with every contact field. */
+    public static final Format JSON_LINES = (contact, out) -> {
+        out.append("{\"name\":");
+        appendJsonString(contact.name, out);
+        out.append(",\"phone\":");
+        appendJsonString(contact.phoneNumber, out);
+        out.append(",\"email\":");
+        appendJsonString(contact.email, out);
+        out.append(",\"favorite\":").append(contact.favorite);
+        out.append(",\"groups\":");
+        appendJsonString(contact.groups, out);
+        out.append(",\"photoPath\":");
+        appendJsonString(contact.photoPath, out);
+        out.append("}\n");
+    };
+
+    /**
+     * Picks the format from a file name: ".jsonl" or ".json" means JSON Lines,
+     * anything else CSV. A trailing ".gz" is ignored here, see isGzip.
+     * @param fileName The target file name
+     * @return The format to write
+     */
+    public static Format formatFor(String fileName) {
+        String name = stripGz(fileName.toLowerCase());
+        return name.endsWith(".jsonl") || name.endsWith(".json") ? JSON_LINES : CSV;
+    }
+
+    /**
+     * Checks whether a file name asks for gzip compression.
+     * @param fileName The target file name
+     * @return true if the name ends with ".gz"
+     */
+    public static boolean isGzip(String fileName) {
+        return fileName.toLowerCase().endsWith(".gz");
+    }
+
+    /**
+     * Writes every contact of a snapshot, in name order. Runs on the calling thread
+     * and stops with an InterruptedIOException if that thread is interrupted.
+     * @param snapshot The contacts to write
+     * @param file The target file, replaced only if the export completes
+     * @param format The output format
+     * @param gzip true to compress the output with gzip
+     * @param progress Receives progress reports, or null
+     * @return Number of contacts written
+     * @throws IOException if writing fails or the export was cancelled
+     */
+    public static int export(AVLTree.Snapshot snapshot, Path file, Format format, boolean gzip, Progress progress) throws IOException {
+        return export(snapshot, snapshot.size(), file, format, gzip, progress);
+    }
+
+    /**
+     * Writes a list of contacts in list order, like the snapshot version.
+     * @param contacts The contacts to write
+     * @param file The target file, replaced only if the export completes
+     * @param format The output format
+     * @param gzip true to compress the output with gzip
+     * @param progress Receives progress reports, or null
+     * @return Number of contacts written
+     * @throws IOException if writing fails or the export was cancelled
+     */
+    public static int export(List<Contact> contacts, Path file, Format format, boolean gzip, Progress progress) throws IOException {
+        return export(contacts, contacts.size(), file, format, gzip, progress);
+    }
+
+    private static int export(Iterable<Contact> contacts, int total, Path file, Format format, boolean gzip, Progress progress) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            int written;
+            try (FileChannel fileChannel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (gzip) {
+                    try (GZIPOutputStream zip = new GZIPOutputStream(unclosable(Channels.newOutputStream(fileChannel)), BUFFER_SIZE)) {
+                        written = writeAll(contacts, total, Channels.newChannel(zip), format, progress);
+                    }
+                } else {
+                    written = writeAll(contacts, total, fileChannel, format, progress);
+                }
+                fileChannel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return written;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // formats and encodes every contact through one reused builder, encoder and buffer
+    private static int writeAll(Iterable<Contact> contacts, int total, WritableByteChannel channel, Format format, Progress progress) throws IOException {
+        StringBuilder text = new StringBuilder(256);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+        format.appendHeader(text);
+        encode(text, encoder, bytes, channel);
+        int done = 0;
+        for (Contact contact : contacts) {
+            text.setLength(0);
+            format.appendContact(contact, text);
+            encode(text, encoder, bytes, channel);
+            if (++done % PROGRESS_INTERVAL == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                if (progress != null) progress.exported(done, total);
+            }
+        }
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        if (progress != null) progress.exported(done, total);
+        return done;
+    }
+
+    // encodes text into the buffer, writing the buffer out whenever it fills
+    private static void encode(CharSequence text, CharsetEncoder encoder, ByteBuffer bytes, WritableByteChannel channel) throws IOException {
+        if (text.length() == 0) return;
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isOverflow()) {
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                bytes.clear();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends one CSV field, quoted per RFC 4180 if it holds a comma, quote or line break.
+     * @param value The field value; null appends nothing
+     * @param out The builder to append to
+     */
+    public static void appendCsvField(String value, StringBuilder out) {
+        if (value == null) return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"') out.append('"');
+            out.append(ch);
+        }
+        out.append('"');
+    }
+
+    private static void appendJsonString(String value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        out.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        out.append(ch);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    // keeps closing the gzip stream from closing the file channel before it is synced
+    private static OutputStream unclosable(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private static String stripGz(String name) {
+        return name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+    }
+}
@@ -0,0 +1,470 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to an AVLTree, so edits survive a crash
+ * without rewriting the whole book. Each tree mutation becomes one record holding
+ * the contacts it deleted and added; a record is framed with its length and a
+ * CRC32, so a torn tail left by a crash is detected and cut off on replay.
+ * Strings are stored as a length and UTF-8 bytes, so a field of any size can be
+ * written and replayed; a journal from version 1, which used writeUTF and so
+ * held at most 64 KB per field, is rewritten in the current format when opened.
+ * <p>
+ * Records are written by a dedicated writer thread. It writes every record
+ * waiting in its queue in one go and then fsyncs once for the whole group. With a
+ * maximum delay of 0 every group is synced before the next is written; with a
+ * positive delay the sync may be put off for up to that long to gather larger
+ * groups. {@link #sync()} makes everything appended so far durable immediately.
+ */
+public class ContactJournal implements Closeable {
+    private static final int MAGIC = 0x434A4E4C; // "CJNL"
+    private static final int VERSION = 2;
+    private static final int VERSION_WRITE_UTF = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DELETE = 2;
+
+    // kinds of queued entries
+    private static final int RECORD = 0;
+    private static final int SYNC = 1;
+    private static final int RESET = 2;
+    private static final int CLOSE = 3;
+
+    // one queued record, or a sync, reset or close request
+    private static final class Entry {
+        final int kind;
+        final byte[] frame;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(int kind, byte[] frame) {
+            this.kind = kind;
+            this.frame = frame;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long maxDelayMillis;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Opens a journal for appending, creating it if needed. Call replay first:
+     * appending after a torn tail would leave the new records unreachable. A
+     * journal in an older format is rewritten in the current one first.
+     * @param file The journal file
+     * @param maxDelayMillis How long a written record may wait for its fsync;
+     *                       0 syncs every group commit before writing the next
+     * @throws IOException if the file cannot be opened or has a bad header
+     */
+    public ContactJournal(Path file, long maxDelayMillis) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        upgrade(file);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxDelayMillis = maxDelayMillis;
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            } else if (checkHeader(channel) != VERSION) {
+                throw new IOException("Journal was not upgraded");
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.writer = new Thread(this::writeLoop, "contact-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Returns the journal location used by the application.
+     * @return Path of the journal in the user's home directory
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".telephone_book", "contacts.journal");
+    }
+
+    /**
+     * Queues one record. Returns at once; the record is written by the writer thread.
+     * @param deleted Contacts the change removed
+     * @param added Contacts the change added
+     * @return Completes when the record is durable, or exceptionally if writing failed
+     */
+    public CompletableFuture<Void> append(Collection<Contact> deleted, Collection<Contact> added) {
+        Entry entry = new Entry(RECORD, encode(deleted, added));
+        return enqueue(entry);
+    }
+
+    /**
+     * Blocks until every record appended so far has been written and synced.
+     * @throws IOException if writing or syncing failed
+     */
+    public void sync() throws IOException {
+        await(enqueue(new Entry(SYNC, null)));
+    }
+
+    /**
+     * Drops every record appended so far and blocks until the empty journal is
+     * synced. Call it only once those changes are saved elsewhere, e.g. after
+     * writing a SnapshotFile of a tree that had all of them applied.
+     * @throws IOException if the journal cannot be truncated
+     */
+    public void reset() throws IOException {
+        await(enqueue(new Entry(RESET, null)));
+    }
+
+    /**
+     * Syncs the remaining records and stops the writer thread.
+     * @throws IOException if writing or syncing failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        Entry entry = new Entry(CLOSE, null);
+        queue.add(entry);
+        closed = true;
+        try {
+            await(entry.done);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Applies the journal to a tree and cuts off a torn or corrupt tail, so the
+     * journal can be appended to again. The tree must not have the journal
+     * attached, or the replayed changes would be journaled again.
+     * @param file The journal file; a missing file replays nothing
+     * @param tree The tree to apply the changes to
+     * @return Number of records replayed
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static int replay(Path file, AVLTree tree) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) return 0;
+            int version = checkHeader(channel);
+            // consecutive records go into one batch until a delete follows an insert,
+            // which a batch would reorder
+            AVLTree.Batch[] batch = {new AVLTree.Batch()};
+            boolean[] batchHasInserts = {false};
+            int[] records = {0};
+            long good = readFrames(channel, size, record -> {
+                int ops = record.readInt();
+                for (int i = 0; i < ops; i++) {
+                    byte op = record.readByte();
+                    if (op == OP_DELETE) {
+                        if (batchHasInserts[0]) {
+                            tree.applyBatch(batch[0]);
+                            batch[0] = new AVLTree.Batch();
+                            batchHasInserts[0] = false;
+                        }
+                        batch[0].delete(readString(record, version), readString(record, version), readString(record, version));
+                    } else if (op == OP_ADD) {
+                        batch[0].insert(readContact(record, version));
+                        batchHasInserts[0] = true;
+                    } else {
+                        throw new IOException("Unknown journal operation " + op);
+                    }
+                }
+                records[0]++;
+            });
+            tree.applyBatch(batch[0]);
+            if (good < size) {
+                System.err.println("Journal: dropping " + (size - good) + " bytes of torn or corrupt records");
+                channel.truncate(good);
+                channel.force(true);
+            }
+            return records[0];
+        }
+    }
+
+    private interface RecordReader {
+        void read(DataInputStream record) throws IOException;
+    }
+
+    // hands every intact record after the header to the reader, in order; returns the
+    // offset just past the last one, where a torn or corrupt tail begins
+    private static long readFrames(FileChannel channel, long size, RecordReader reader) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            java.nio.channels.Channels.newInputStream(channel.position(HEADER_SIZE)), 1 << 16));
+        long good = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (size - good >= FRAME_HEADER_SIZE) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > size - good - FRAME_HEADER_SIZE) break;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) break;
+            reader.read(new DataInputStream(new ByteArrayInputStream(payload)));
+            good += FRAME_HEADER_SIZE + length;
+        }
+        return good;
+    }
+
+    // rewrites a journal of an older version in the current format, dropping any torn
+    // tail; the new file replaces the old one in a single rename, so a crash leaves one or the other
+    private static void upgrade(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) return;
+        Path upgraded = file.resolveSibling(file.getFileName() + ".upgrade");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int version = checkHeader(channel);
+            if (version == VERSION) return;
+            try (FileChannel out = FileChannel.open(upgraded, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                out.write(header);
+                readFrames(channel, channel.size(), record -> {
+                    List<Contact> deleted = new ArrayList<>();
+                    List<Contact> added = new ArrayList<>();
+                    int ops = record.readInt();
+                    for (int i = 0; i < ops; i++) {
+                        byte op = record.readByte();
+                        if (op == OP_DELETE) {
+                            deleted.add(new Contact(readString(record, version), readString(record, version), readString(record, version)));
+                        } else if (op == OP_ADD) {
+                            added.add(readContact(record, version));
+                        } else {
+                            throw new IOException("Unknown journal operation " + op);
+                        }
+                    }
+                    ByteBuffer frame = ByteBuffer.wrap(encode(deleted, added));
+                    while (frame.hasRemaining()) {
+                        out.write(frame);
+                    }
+                });
+                out.force(true);
+            }
+        }
+        Files.move(upgraded, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // checks the magic number at the start of the file and returns its version
+    private static int checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // keep reading until the header is complete or the file ends
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException("Not a contact journal");
+        }
+        int version = header.getInt();
+        if (version < VERSION_WRITE_UTF || version > VERSION) {
+            throw new IOException("Unsupported journal version " + version);
+        }
+        return version;
+    }
+
+    // frames a record: payload length, CRC32 of the payload, payload
+    private static byte[] encode(Collection<Contact> deleted, Collection<Contact> added) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (deleted.size() + added.size()) + 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(0); // room for the frame header
+            out.writeInt(deleted.size() + added.size());
+            for (Contact contact : deleted) {
+                out.writeByte(OP_DELETE);
+                writeString(out, contact.name);
+                writeString(out, contact.phoneNumber);
+                writeString(out, contact.email);
+            }
+            for (Contact contact : added) {
+                out.writeByte(OP_ADD);
+                writeContact(out, contact);
+            }
+            byte[] frame = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(frame, FRAME_HEADER_SIZE, frame.length - FRAME_HEADER_SIZE);
+            ByteBuffer.wrap(frame).putInt(frame.length - FRAME_HEADER_SIZE).putInt((int) crc.getValue());
+            return frame;
+        } catch (IOException e) {
+            // writing to a byte array does not fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeContact(DataOutputStream out, Contact contact) throws IOException {
+        writeString(out, contact.name);
+        writeString(out, contact.phoneNumber);
+        writeString(out, contact.email);
+        out.writeBoolean(contact.favorite);
+        writeString(out, contact.groups);
+        out.writeBoolean(contact.photoPath != null);
+        if (contact.photoPath != null) {
+            writeString(out, contact.photoPath);
+        }
+    }
+
+    private static Contact readContact(DataInputStream in, int version) throws IOException {
+        Contact contact = new Contact(readString(in, version), readString(in, version), readString(in, version));
+        contact.favorite = in.readBoolean();
+        contact.groups = readString(in, version);
+        if (in.readBoolean()) {
+            contact.photoPath = readString(in, version);
+        }
+        return contact;
+    }
+
+    // a string as its UTF-8 length and bytes; unlike writeUTF there is no 64 KB limit
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // reads a string of a record; the length is checked against what is left of the record
+    private static String readString(DataInputStream in, int version) throws IOException {
+        if (version == VERSION_WRITE_UTF) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Journal string of " + length + " bytes overruns its record");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private CompletableFuture<Void> enqueue(Entry entry) {
+        if (closed) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Journal is closed"));
+            return failed;
+        }
+        queue.add(entry);
+        return entry.done;
+    }
+
+    private static void await(CompletableFuture<Void> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the journal");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // group commit loop: write everything queued, then fsync once when a sync is due
+    private void writeLoop() {
+        List<Entry> unsynced = new ArrayList<>();
+        List<Entry> group = new ArrayList<>();
+        long oldestUnsynced = 0;
+        IOException failure = null;
+        boolean running = true;
+        while (running) {
+            group.clear();
+            try {
+                Entry first;
+                if (unsynced.isEmpty()) {
+                    first = queue.take();
+                } else {
+                    long wait = oldestUnsynced + maxDelayMillis - System.currentTimeMillis();
+                    first = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+                if (first != null) {
+                    group.add(first);
+                    queue.drainTo(group);
+                }
+            } catch (InterruptedException e) {
+                // only close stops the writer
+                continue;
+            }
+
+            boolean syncNow = maxDelayMillis == 0;
+            boolean reset = false;
+            List<ByteBuffer> frames = new ArrayList<>(group.size());
+            for (Entry entry : group) {
+                if (entry.kind == RECORD) {
+                    frames.add(ByteBuffer.wrap(entry.frame));
+                } else {
+                    syncNow = true;
+                    running &= entry.kind != CLOSE;
+                    if (entry.kind == RESET) {
+                        // records queued before the reset are dropped with the rest
+                        frames.clear();
+                        reset = true;
+                    }
+                }
+                if (unsynced.isEmpty()) {
+                    oldestUnsynced = System.currentTimeMillis();
+                }
+                unsynced.add(entry);
+            }
+            if (!unsynced.isEmpty() && System.currentTimeMillis() - oldestUnsynced >= maxDelayMillis) {
+                syncNow = true;
+            }
+
+            if (failure == null) {
+                try {
+                    if (reset) {
+                        channel.truncate(HEADER_SIZE);
+                        channel.position(HEADER_SIZE);
+                    }
+                    ByteBuffer[] buffers = frames.toArray(new ByteBuffer[0]);
+                    while (hasRemaining(buffers)) {
+                        channel.write(buffers);
+                    }
+                    if (syncNow) {
+                        channel.force(false);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing journal: " + e.getMessage());
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                for (Entry entry : unsynced) {
+                    entry.done.completeExceptionally(failure);
+                }
+                unsynced.clear();
+            } else if (syncNow) {
+                for (Entry entry : unsynced) {
+                    entry.done.complete(null);
+                }
+                unsynced.clear();
+            }
+        }
+        // records that raced with close are not written
+        for (Entry entry : queue) {
+            entry.done.completeExceptionally(new IOException("Journal is closed"));
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+}
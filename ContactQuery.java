@@ -0,0 +1,481 @@
+import java.util.*;
+
+/**
+ * A filter over contacts built from field predicates combined with AND, OR and
+ * NOT. A query only describes what to match; AVLTree.query decides how, by
+ * answering the most selective predicate from an index and checking the rest,
+ * or by scanning the book in parallel when no index applies.
+ * <p>
+ * All predicates ignore case. For example:
+ * <pre>
+ * ContactQuery.group("Work").and(ContactQuery.domain("example.com")).and(ContactQuery.favorite().not())
+ * ContactQuery.parse("group:Work domain:example.com -is:favorite")
+ * </pre>
+ */
+public abstract class ContactQuery {
+
+    /**
+     * The fields a predicate can test.
+     */
+    public enum Field {
+        /** The name starts with the value. */
+        NAME_PREFIX("name"),
+        /** The name, phone number or email contains the value. */
+        SUBSTRING("text"),
+        /** The phone number equals the value, ignoring formatting. */
+        PHONE("phone"),
+        /** The email equals the value. */
+        EMAIL("email"),
+        /** The email is at the value's domain. */
+        DOMAIN("domain"),
+        /** The contact is in the group named by the value. */
+        GROUP("group"),
+        /** The contact is a favorite; the value is unused. */
+        FAVORITE("is");
+
+        private final String label;
+
+        Field(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The outcome of running a query, with how it was run.
+     */
+    public static class Result {
+        /** Matching contacts in name order. */
+        public final List<Contact> contacts;
+        /** Which index or scan produced the candidates, e.g. "phone index" or "parallel scan". */
+        public final String plan;
+        /** Number of contacts the plan had to check against the whole query. */
+        public final int candidates;
+        /** Time taken to plan and run the query. */
+        public final long elapsedNanos;
+
+        public Result(List<Contact> contacts, String plan, int candidates, long elapsedNanos) {
+            this.contacts = contacts;
+            this.plan = plan;
+            this.candidates = candidates;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns a one-line summary of the plan and timing.
+         * @return E.g. "phone index, 1 candidates, 0.04 ms"
+         */
+        public String describe() {
+            return String.format("%s, %,d candidates, %.2f ms", plan, candidates, elapsedNanos / 1e6);
+        }
+    }
+
+    /**
+     * Checks whether a contact matches the query.
+     * @param contact The contact to check
+     * @return true if it matches
+     */
+    public abstract boolean matches(Contact contact);
+
+    /**
+     * Returns a query matching contacts that match both this query and another.
+     * @param other The other query
+     * @return The conjunction
+     */
+    public ContactQuery and(ContactQuery other) {
+        List<ContactQuery> parts = new ArrayList<>();
+        addParts(parts, this, And.class);
+        addParts(parts, other, And.class);
+        return new And(parts);
+    }
+
+    /**
+     * Returns a query matching contacts that match this query or another.
+     * @param other The other query
+     * @return The disjunction
+     */
+    public ContactQuery or(ContactQuery other) {
+        List<ContactQuery> parts = new ArrayList<>();
+        addParts(parts, this, Or.class);
+        addParts(parts, other, Or.class);
+        return new Or(parts);
+    }
+
+    /**
+     * Returns a query matching contacts that do not match this one.
+     * @return The negation
+     */
+    public ContactQuery not() {
+        return this instanceof Not ? ((Not) this).query : new Not(this);
+    }
+
+    // flattens nested ANDs into one AND and nested ORs into one OR
+    private static void addParts(List<ContactQuery> parts, ContactQuery query, Class<?> kind) {
+        if (kind == And.class && query instanceof And) {
+            parts.addAll(((And) query).parts);
+        } else if (kind == Or.class && query instanceof Or) {
+            parts.addAll(((Or) query).parts);
+        } else {
+            parts.add(query);
+        }
+    }
+
+    /**
+     * Matches names starting with a prefix.
+     * @param prefix The prefix
+     * @return The predicate
+     */
+    public static ContactQuery namePrefix(String prefix) {
+        return new Predicate(Field.NAME_PREFIX, prefix.trim().toLowerCase());
+    }
+
+    /**
+     * Matches contacts whose name, phone number or email contains some text.
+     * @param text The text
+     * @return The predicate
+     */
+    public static ContactQuery substring(String text) {
+        return new Predicate(Field.SUBSTRING, text.trim().toLowerCase());
+    }
+
+    /**
+     * Matches a phone number, ignoring spaces, dashes and other formatting.
+     * @param phone The phone number
+     * @return The predicate
+     */
+    public static ContactQuery phone(String phone) {
+        return new Predicate(Field.PHONE, Contact.normalizePhone(phone));
+    }
+
+    /**
+     * Matches an email address.
+     * @param email The email address
+     * @return The predicate
+     */
+    public static ContactQuery email(String email) {
+        return new Predicate(Field.EMAIL, Contact.normalizeEmail(email));
+    }
+
+    /**
+     * Matches emails at a domain, e.g. "example.com".
+     * @param domain The domain, with or without a leading '@'
+     * @return The predicate
+     */
+    public static ContactQuery domain(String domain) {
+        String value = domain.trim().toLowerCase();
+        return new Predicate(Field.DOMAIN, value.startsWith("@") ? value.substring(1) : value);
+    }
+
+    /**
+     * Matches contacts in a group.
+     * @param group The group name
+     * @return The predicate
+     */
+    public static ContactQuery group(String group) {
+        return new Predicate(Field.GROUP, group.trim());
+    }
+
+    /**
+     * Matches favorite contacts.
+     * @return The predicate
+     */
+    public static ContactQuery favorite() {
+        return new Predicate(Field.FAVORITE, "favorite");
+    }
+
+    /**
+     * A single field test.
+     */
+    public static final class Predicate extends ContactQuery {
+        public final Field field;
+        /** The value, already normalized the way the field compares it. */
+        public final String value;
+
+        private Predicate(Field field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(Contact contact) {
+            switch (field) {
+                case NAME_PREFIX:
+                    String name = contact.name.trim();
+                    return name.regionMatches(true, 0, value, 0, value.length());
+                case SUBSTRING:
+                    return TrigramIndex.matches(contact, value);
+                case PHONE:
+                    return !value.isEmpty() && contact.canonicalPhone().equals(value);
+                case EMAIL:
+                    return !value.isEmpty() && contact.canonicalEmail().equals(value);
+                case DOMAIN:
+                    String email = contact.canonicalEmail();
+                    int at = email.lastIndexOf('@');
+                    return at >= 0 && email.substring(at + 1).equals(value);
+                case GROUP:
+                    return inGroup(contact.groups, value);
+                default:
+                    return contact.favorite;
+            }
+        }
+
+        // checks the comma-separated groups in place, since scans call this for every contact
+        private static boolean inGroup(String groups, String group) {
+            if (groups == null || group.isEmpty()) return false;
+            int start = 0;
+            while (start <= groups.length()) {
+                int end = groups.indexOf(',', start);
+                if (end < 0) end = groups.length();
+                int next = end + 1;
+                while (start < end && groups.charAt(start) <= ' ') start++;
+                while (end > start && groups.charAt(end - 1) <= ' ') end--;
+                if (end - start == group.length() && groups.regionMatches(true, start, group, 0, group.length())) {
+                    return true;
+                }
+                start = next;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return field == Field.FAVORITE ? "is:favorite" : field.label + ":" + value;
+        }
+    }
+
+    /**
+     * Matches contacts that match every part.
+     */
+    public static final class And extends ContactQuery {
+        public final List<ContactQuery> parts;
+
+        private And(List<ContactQuery> parts) {
+            this.parts = Collections.unmodifiableList(parts);
+        }
+
+        @Override
+        public boolean matches(Contact contact) {
+            for (ContactQuery part : parts) {
+                if (!part.matches(contact)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join(parts, " AND ");
+        }
+    }
+
+    /**
+     * Matches contacts that match at least one part.
+     */
+    public static final class Or extends ContactQuery {
+        public final List<ContactQuery> parts;
+
+        private Or(List<ContactQuery> parts) {
+            this.parts = Collections.unmodifiableList(parts);
+        }
+
+        @Override
+        public boolean matches(Contact contact) {
+            for (ContactQuery part : parts) {
+                if (part.matches(contact)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join(parts, " OR ");
+        }
+    }
+
+    /**
+     * Matches contacts that do not match the inner query.
+     */
+    public static final class Not extends ContactQuery {
+        public final ContactQuery query;
+
+        private Not(ContactQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        public boolean matches(Contact contact) {
+            return !query.matches(contact);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + query;
+        }
+    }
+
+    private static String join(List<ContactQuery> parts, String operator) {
+        StringBuilder text = new StringBuilder("(");
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) text.append(operator);
+            text.append(parts.get(i));
+        }
+        return text.append(')').toString();
+    }
+
+    /**
+     * Parses the search box syntax. Text without any of the syntax below is one
+     * substring search, and text ending in '*' one name prefix search, as before.
+     * <ul>
+     * <li>{@code name:jo} or {@code jo*} - name prefix</li>
+     * <li>{@code phone:555-0100}, {@code email:a@b.com}, {@code domain:b.com}, {@code group:Work}</li>
+     * <li>{@code is:favorite} - favorites</li>
+     * <li>any other word - substring of name, phone or email</li>
+     * <li>terms next to each other must all match; {@code OR} between terms, {@code NOT}
+     *     or a leading '-' before one, and parentheses for grouping</li>
+     * <li>double quotes keep spaces in a value, e.g. {@code group:"Close Friends"}</li>
+     * </ul>
+     * @param text The query text
+     * @return The query
+     * @throws IllegalArgumentException if the text is malformed or uses an unknown field
+     */
+    public static ContactQuery parse(String text) {
+        String trimmed = text.trim();
+        List<String> tokens = tokenize(trimmed);
+        if (!usesSyntax(tokens)) {
+            return trimmed.endsWith("*")
+                ? namePrefix(trimmed.substring(0, trimmed.length() - 1))
+                : substring(trimmed);
+        }
+        Parser parser = new Parser(tokens);
+        ContactQuery query = parser.or();
+        if (parser.position < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + tokens.get(parser.position) + "'");
+        }
+        return query;
+    }
+
+    // splits on spaces and parentheses, keeping double-quoted text together with its quotes removed
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean hadQuote = false;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch == '"') {
+                quoted = !quoted;
+                hadQuote = true;
+            } else if (!quoted && (Character.isWhitespace(ch) || ch == '(' || ch == ')')) {
+                if (token.length() > 0 || hadQuote) tokens.add(token.toString());
+                token.setLength(0);
+                hadQuote = false;
+                if (ch != ' ' && !Character.isWhitespace(ch)) tokens.add(String.valueOf(ch));
+            } else {
+                token.append(ch);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("Unterminated quote");
+        if (token.length() > 0 || hadQuote) tokens.add(token.toString());
+        return tokens;
+    }
+
+    // true if the tokens use fields, operators, negation or parentheses
+    private static boolean usesSyntax(List<String> tokens) {
+        for (String token : tokens) {
+            if (token.equals("(") || token.equals(")") || token.equals("AND") || token.equals("OR") || token.equals("NOT")
+                || (token.length() > 1 && token.startsWith("-")) || fieldOf(token) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the field label before ':' if it names a known field, else null
+    private static String fieldOf(String token) {
+        int colon = token.indexOf(':');
+        if (colon <= 0) return null;
+        String label = token.substring(0, colon).toLowerCase();
+        for (Field field : Field.values()) {
+            if (field.label.equals(label)) return label;
+        }
+        return null;
+    }
+
+    // recursive descent: OR binds loosest, then AND (explicit or implied), then NOT
+    private static final class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        ContactQuery or() {
+            ContactQuery query = and();
+            while (accept("OR")) {
+                query = query.or(and());
+            }
+            return query;
+        }
+
+        ContactQuery and() {
+            ContactQuery query = unary();
+            while (position < tokens.size() && !peek("OR") && !peek(")")) {
+                accept("AND");
+                query = query.and(unary());
+            }
+            return query;
+        }
+
+        ContactQuery unary() {
+            if (accept("NOT")) {
+                return unary().not();
+            }
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Expected a search term at the end");
+            }
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                ContactQuery inner = or();
+                if (!accept(")")) throw new IllegalArgumentException("Missing ')'");
+                return inner;
+            }
+            if (token.equals(")") || token.equals("AND") || token.equals("OR")) {
+                throw new IllegalArgumentException("Expected a search term before '" + token + "'");
+            }
+            if (token.length() > 1 && token.startsWith("-")) {
+                return term(token.substring(1)).not();
+            }
+            return term(token);
+        }
+
+        ContactQuery term(String token) {
+            String label = fieldOf(token);
+            if (label == null) {
+                return token.endsWith("*") ? namePrefix(token.substring(0, token.length() - 1)) : substring(token);
+            }
+            String value = token.substring(label.length() + 1);
+            switch (label) {
+                case "name": return namePrefix(value.endsWith("*") ? value.substring(0, value.length() - 1) : value);
+                case "text": return substring(value);
+                case "phone": return phone(value);
+                case "email": return email(value);
+                case "domain": return domain(value);
+                case "group": return group(value);
+                default:
+                    if (value.equalsIgnoreCase("favorite") || value.equalsIgnoreCase("favourite")) return favorite();
+                    throw new IllegalArgumentException("Unknown condition 'is:" + value + "'");
+            }
+        }
+
+        private boolean peek(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
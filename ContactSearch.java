@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Runs live searches off the event dispatch thread. Keystrokes are debounced,
+ * each new query cancels the one still running, and only the result of the latest
+ * query is handed back to the EDT. The text is parsed with ContactQuery.parse and
+ * run by AVLTree.query, so field searches like "group:Work domain:example.com" use
+ * the matching index, and scans run against a snapshot that edits cannot disturb.
+ */
+public class ContactSearch {
+    private static final int DEBOUNCE_MILLIS = 150;
+
+    private final AVLTree tree;
+    private final BiConsumer<String, ContactQuery.Result> publisher;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "contact-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong latest = new AtomicLong();
+    private final Timer debounce;
+    private String pendingQuery = "";
+    // whether every query is narrowed to favorites; only read and written on the EDT
+    private boolean favoritesOnly;
+    private Future<?> running;
+
+    /**
+     * Constructs a search service over a tree.
+     * @param tree The tree to search
+     * @param publisher Called on the EDT with the query and its result, or with a
+     *                  null result when the query is empty, favorites are not
+     *                  required, and everything should be shown
+     */
+    public ContactSearch(AVLTree tree, BiConsumer<String, ContactQuery.Result> publisher) {
+        this.tree = tree;
+        this.publisher = publisher;
+        this.debounce = new Timer(DEBOUNCE_MILLIS, e -> start(pendingQuery));
+        this.debounce.setRepeats(false);
+    }
+
+    /**
+     * Schedules a search once typing pauses. Must be called on the EDT.
+     * @param query The text in the search field
+     */
+    public void queryChanged(String query) {
+        pendingQuery = query;
+        debounce.restart();
+    }
+
+    /**
+     * Starts a search immediately, e.g. on Enter or after the book changed.
+     * Must be called on the EDT.
+     * @param query The text in the search field
+     */
+    public void searchNow(String query) {
+        debounce.stop();
+        start(query);
+    }
+
+    /**
+     * Narrows every search to favorite contacts, or stops doing so. The favorite
+     * test is added to the query, so the planner can answer it from the favorites
+     * index. Takes effect from the next search. Must be called on the EDT.
+     * @param favoritesOnly true to show only favorites
+     */
+    public void setFavoritesOnly(boolean favoritesOnly) {
+        this.favoritesOnly = favoritesOnly;
+    }
+
+    /**
+     * Stops the background search thread.
+     */
+    public void shutdown() {
+        debounce.stop();
+        executor.shutdownNow();
+    }
+
+    // cancels the running query and submits a new one
+    private void start(String rawQuery) {
+        long generation = latest.incrementAndGet();
+        if (running != null) {
+            running.cancel(true);
+        }
+        String query = rawQuery.trim();
+        if (query.isEmpty() && !favoritesOnly) {
+            running = null;
+            publisher.accept(query, null);
+            return;
+        }
+        ContactQuery parsed = query.isEmpty() ? ContactQuery.favorite()
+            : favoritesOnly ? parse(query).and(ContactQuery.favorite()) : parse(query);
+        running = executor.submit(() -> {
+            // the scan runs on pool threads, so they poll this thread's interrupt flag
+            Thread searcher = Thread.currentThread();
+            ContactQuery.Result result = tree.query(parsed, searcher::isInterrupted);
+            if (result == null || searcher.isInterrupted()) return;
+            SwingUtilities.invokeLater(() -> {
+                // a newer query may have started while this one was finishing
+                if (generation == latest.get()) {
+                    publisher.accept(query, result);
+                }
+            });
+        });
+    }
+
+    // half-typed syntax such as "group:(" searches for the text as typed until it parses
+    private static ContactQuery parse(String query) {
+        try {
+            return ContactQuery.parse(query);
+        } catch (IllegalArgumentException e) {
+            return ContactQuery.substring(query);
+        }
+    }
+}
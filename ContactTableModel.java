@@ -0,0 +1,151 @@
+import java.util.*;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model that reads contact rows lazily, either by position from a snapshot
+ * of the AVL tree or from a filtered list of search results. Only rows that the
+ * table actually paints are ever looked up. The snapshot is only replaced on the
+ * EDT by showAll, so changes made by background threads such as an import can
+ * never change the row count under the table between its events.
+ */
+public class ContactTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMN_NAMES = {"No.", "★", "Name", "Phone Number", "Email"};
+
+    private final AVLTree tree;
+    // the tree as it was when the table was last told about it
+    private AVLTree.Snapshot shown;
+    // search results being shown, or null to show the whole snapshot
+    private List<Contact> filtered;
+
+    // consecutive cells of a row are painted together, so remember the last lookup
+    private int cachedRow = -1;
+    private Contact cachedContact;
+
+    /**
+     * Constructs a model showing every contact in the tree.
+     * @param tree The tree to read rows from
+     */
+    public ContactTableModel(AVLTree tree) {
+        this.tree = tree;
+        this.shown = tree.snapshot();
+    }
+
+    /**
+     * Shows every contact currently in the tree, in name order. Must be called on the EDT.
+     */
+    public void showAll() {
+        shown = tree.snapshot();
+        filtered = null;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Shows only the given contacts, in the order given.
+     * @param contacts The contacts to show
+     */
+    public void showFiltered(List<Contact> contacts) {
+        filtered = contacts;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Returns the contact shown in a row.
+     * @param row The row index
+     * @return The contact in that row
+     */
+    public Contact getContactAt(int row) {
+        if (row != cachedRow) {
+            cachedContact = filtered == null ? shown.select(row) : filtered.get(row);
+            cachedRow = row;
+        }
+        return cachedContact;
+    }
+
+    /**
+     * Returns up to max row indices spread evenly over the model, always including
+     * the first and last rows. Used to size columns without rendering every row.
+     * @param max Maximum number of rows to sample
+     * @return Sampled row indices in ascending order
+     */
+    public int[] sampleRows(int max) {
+        int rows = getRowCount();
+        if (rows <= max) {
+            int[] all = new int[rows];
+            for (int i = 0; i < rows; i++) all[i] = i;
+            return all;
+        }
+        int[] sample = new int[max];
+        for (int i = 0; i < max; i++) {
+            sample[i] = (int) ((long) i * (rows - 1) / (max - 1));
+        }
+        return sample;
+    }
+
+    @Override
+    public void fireTableChanged(javax.swing.event.TableModelEvent e) {
+        cachedRow = -1;
+        cachedContact = null;
+        super.fireTableChanged(e);
+    }
+
+    @Override
+    public int getRowCount() {
+        return filtered == null ? shown.size() : filtered.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        if (column == 0) return Integer.class;
+        if (column == 1) return Boolean.class;
+        return String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        // Only the star column is editable for toggling favorite
+        return column == 1;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Contact contact = getContactAt(row);
+        switch (column) {
+            case 0: return row + 1;
+            case 1: return contact.favorite;
+            case 2: return contact.name;
+            case 3: return contact.phoneNumber;
+            default: return contact.email;
+        }
+    }
+
+    @Override
+    public void setValueAt(Object value, int row, int column) {
+        if (column != 1 || !(value instanceof Boolean)) return;
+        // the tree stores a copy with the new flag, so show that copy from now on
+        Contact updated = tree.setFavorite(getContactAt(row), (Boolean) value);
+        if (updated == null) return;
+        if (filtered != null) {
+            filtered.set(row, updated);
+        } else {
+            int rows = shown.size();
+            shown = tree.snapshot();
+            if (shown.size() != rows) {
+                // something else changed the book meanwhile, so every row may have moved
+                fireTableDataChanged();
+                return;
+            }
+        }
+        fireTableCellUpdated(row, column);
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Validates contacts against a pluggable set of rules. The built-in name, phone and
+ * email rules are hand-written character checks equivalent to the patterns
+ * ^[A-Za-z\s]+$, ^\d{10}$ and ^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\.[a-zA-Z]{2,}$
+ * applied to the trimmed value, so they allocate nothing and compile no regex.
+ */
+public class ContactValidator {
+
+    /**
+     * A single validation rule.
+     */
+    public interface Rule {
+        /**
+         * Checks one contact.
+         * @param contact The contact to check
+         * @return A short failure reason, or null if the contact passes
+         */
+        String check(Contact contact);
+    }
+
+    /**
+     * The failures found for one contact.
+     */
+    public static class Result {
+        public final Contact contact;
+        public final List<String> reasons;
+
+        public Result(Contact contact, List<String> reasons) {
+            this.contact = contact;
+            this.reasons = reasons;
+        }
+    }
+
+    /** Name must be letters and spaces only, at least 2 characters after trimming. */
+    public static final Rule NAME_RULE = c -> isValidName(c.name) ? null : "Invalid name";
+    /** Phone number must be exactly 10 digits after trimming. */
+    public static final Rule PHONE_RULE = c -> isValidPhone(c.phoneNumber) ? null : "Invalid phone";
+    /** Email must look like local@domain.tld after trimming. */
+    public static final Rule EMAIL_RULE = c -> isValidEmail(c.email) ? null : "Invalid email";
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Returns a validator with the built-in name, phone and email rules.
+     * @return A new validator
+     */
+    public static ContactValidator defaults() {
+        return new ContactValidator().addRule(NAME_RULE).addRule(PHONE_RULE).addRule(EMAIL_RULE);
+    }
+
+    /**
+     * Adds a rule to this validator.
+     * @param rule The rule to add
+     * @return This validator, for chaining
+     */
+    public ContactValidator addRule(Rule rule) {
+        rules.add(rule);
+        return this;
+    }
+
+    /**
+     * Checks one contact against every rule.
+     * @param contact The contact to check
+     * @return Failure reasons, empty if the contact is valid
+     */
+    public List<String> validate(Contact contact) {
+        List<String> reasons = null;
+        for (Rule rule : rules) {
+            String reason = rule.check(contact);
+            if (reason != null) {
+                if (reasons == null) reasons = new ArrayList<>(rules.size());
+                reasons.add(reason);
+            }
+        }
+        return reasons == null ? Collections.<String>emptyList() : reasons;
+    }
+
+    /**
+     * Checks many contacts in parallel on the common fork-join pool.
+     * @param contacts The contacts to check
+     * @return One result per invalid contact, in input order
+     */
+    public List<Result> findInvalid(List<Contact> contacts) {
+        return contacts.parallelStream()
+            .map(c -> new Result(c, validate(c)))
+            .filter(r -> !r.reasons.isEmpty())
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Checks that a name is letters and spaces only and at least 2 characters after trimming.
+     * @param name The name to validate
+     * @return true if valid, false otherwise
+     */
+    public static boolean isValidName(String name) {
+        if (name == null) return false;
+        int start = trimStart(name);
+        int end = trimEnd(name, start);
+        return end - start >= 2 && isNameText(name, start, end);
+    }
+
+    /**
+     * Checks that a value is non-empty and letters and spaces only after trimming,
+     * with no minimum length.
+     * @param text The value to check
+     * @return true if valid, false otherwise
+     */
+    public static boolean isNameText(String text) {
+        if (text == null) return false;
+        int start = trimStart(text);
+        int end = trimEnd(text, start);
+        return end > start && isNameText(text, start, end);
+    }
+
+    private static boolean isNameText(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char ch = text.charAt(i);
+            if (!isAsciiLetter(ch) && !isRegexSpace(ch)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a phone number is exactly 10 digits after trimming.
+     * @param phone The phone number to validate
+     * @return true if valid, false otherwise
+     */
+    public static boolean isValidPhone(String phone) {
+        if (phone == null) return false;
+        int start = trimStart(phone);
+        int end = trimEnd(phone, start);
+        if (end - start != 10) return false;
+        for (int i = start; i < end; i++) {
+            char ch = phone.charAt(i);
+            if (ch < '0' || ch > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that an email looks like local@domain.tld after trimming.
+     * @param email The email to validate
+     * @return true if valid, false otherwise
+     */
+    public static boolean isValidEmail(String email) {
+        if (email == null) return false;
+        int start = trimStart(email);
+        int end = trimEnd(email, start);
+
+        // local part: one or more of [a-zA-Z0-9._%+-], up to the only '@'
+        int at = start;
+        while (at < end && isLocalChar(email.charAt(at))) at++;
+        if (at == start || at == end || email.charAt(at) != '@') return false;
+
+        // domain: [a-zA-Z0-9.-]+ then '.' and 2+ letters; the tld must follow the last dot
+        int lastDot = -1;
+        for (int i = at + 1; i < end; i++) {
+            char ch = email.charAt(i);
+            if (ch == '.') {
+                lastDot = i;
+            } else if (!isAsciiLetter(ch) && !isDigit(ch) && ch != '-') {
+                return false;
+            }
+        }
+        if (lastDot <= at + 1 || end - lastDot - 1 < 2) return false;
+        for (int i = lastDot + 1; i < end; i++) {
+            if (!isAsciiLetter(email.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // index of the first char String.trim() would keep
+    private static int trimStart(String s) {
+        int i = 0;
+        while (i < s.length() && s.charAt(i) <= ' ') i++;
+        return i;
+    }
+
+    // index after the last char String.trim() would keep
+    private static int trimEnd(String s, int start) {
+        int i = s.length();
+        while (i > start && s.charAt(i - 1) <= ' ') i--;
+        return i;
+    }
+
+    private static boolean isAsciiLetter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    // the characters matched by \s in a Java regex
+    private static boolean isRegexSpace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == 0x0B || ch == '\f' || ch == '\r';
+    }
+
+    private static boolean isLocalChar(char ch) {
+        return isAsciiLetter(ch) || isDigit(ch) || ch == '.' || ch == '_' || ch == '%' || ch == '+' || ch == '-';
+    }
+}
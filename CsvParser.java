@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming RFC 4180 CSV parser over a UTF-8 byte channel. Records are parsed in
+ * place in a reused byte buffer: a field is remembered as a start and end offset,
+ * and a String is only created when the caller asks for that field. Quoted fields
+ * may contain commas, line breaks and doubled quotes. Records may end in CRLF, LF
+ * or CR. A malformed record is reported through {@link #error()} and skipped to
+ * the end of its line, so one bad row never hides the rows after it.
+ */
+public class CsvParser {
+    private static final int INITIAL_BUFFER = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    // unread bytes are buffer[position, limit)
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    private boolean started;
+
+    // field i spans buffer[starts[i], ends[i]); escaped[i] means it holds doubled quotes
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private boolean[] escaped = new boolean[16];
+    private int fieldCount;
+    private int recordStart;
+    private int recordEnd;
+    private String error;
+    private long lineNumber;
+    private long nextLineNumber;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Constructs a parser reading from a channel. A leading UTF-8 byte order mark is skipped.
+     * @param channel The UTF-8 input; the caller closes it
+     */
+    public CsvParser(ReadableByteChannel channel) {
+        this(channel, 1);
+    }
+
+    /**
+     * Constructs a parser for part of a file, so line numbers count from where the part starts.
+     * @param channel The UTF-8 input; the caller closes it
+     * @param firstLine The file line the input starts on, counting from 1
+     */
+    public CsvParser(ReadableByteChannel channel, long firstLine) {
+        this.channel = channel;
+        this.nextLineNumber = firstLine;
+    }
+
+    /**
+     * Advances to the next record, skipping blank lines.
+     * @return true if a record was read, false at the end of the input
+     * @throws IOException if reading fails
+     */
+    public boolean next() throws IOException {
+        if (!started) {
+            started = true;
+            while (limit < 3 && fill()) {
+                // enough bytes to recognise a byte order mark
+            }
+            if (limit - position >= 3 && (buffer[position] & 0xFF) == 0xEF
+                && (buffer[position + 1] & 0xFF) == 0xBB && (buffer[position + 2] & 0xFF) == 0xBF) {
+                position += 3;
+            }
+        }
+        while (true) {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            int consumed = parseRecord();
+            if (consumed < 0) {
+                // the record runs past the buffered bytes: read more and parse it again
+                if (!fill()) {
+                    consumed = parseRecordAtEnd();
+                } else {
+                    continue;
+                }
+            }
+            position = consumed;
+            if (fieldCount == 1 && starts[0] == ends[0] && error == null && !escaped[0] && buffer[recordStart] != '"') {
+                continue; // blank line
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of fields in the current record.
+     * @return Field count
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field of the current record, with quotes removed and doubled quotes undone.
+     * @param index Zero-based field index
+     * @return The field value
+     */
+    public String field(int index) {
+        int start = starts[index];
+        int length = ends[index] - start;
+        if (!escaped[index]) {
+            return new String(buffer, start, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        int n = 0;
+        for (int i = start; i < ends[index]; i++) {
+            scratch[n++] = buffer[i];
+            if (buffer[i] == '"') i++; // skip the second quote of a pair
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns why the current record is malformed.
+     * @return The reason, or null if the record is well formed
+     */
+    public String error() {
+        return error;
+    }
+
+    /**
+     * Returns the line the current record starts on, counting from 1.
+     * @return Line number
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Returns the current record as it appeared in the input, without its line break.
+     * @return Raw record text
+     */
+    public String rawRecord() {
+        return new String(buffer, recordStart, recordEnd - recordStart, StandardCharsets.UTF_8);
+    }
+
+    // parses one record from position; returns where the next record starts, or -1 if more input is needed
+    private int parseRecord() {
+        return parse(false);
+    }
+
+    // parses the last record, which ends with the input rather than a line break
+    private int parseRecordAtEnd() {
+        return parse(true);
+    }
+
+    private int parse(boolean atEnd) {
+        fieldCount = 0;
+        error = null;
+        recordStart = position;
+        long lines = 0;
+        int i = position;
+        while (true) {
+            addField();
+            int field = fieldCount - 1;
+            if (i < limit && buffer[i] == '"') {
+                // quoted field: runs to the quote that is not doubled
+                starts[field] = ++i;
+                boolean closed = false;
+                while (i < limit) {
+                    byte b = buffer[i];
+                    if (b == '"') {
+                        if (i + 1 < limit && buffer[i + 1] == '"') {
+                            escaped[field] = true;
+                            i += 2;
+                            continue;
+                        }
+                        if (i + 1 == limit && !atEnd) return -1;
+                        closed = true;
+                        break;
+                    }
+                    if (b == '\n' || (b == '\r' && (i + 1 >= limit || buffer[i + 1] != '\n'))) lines++;
+                    i++;
+                }
+                if (!closed) {
+                    if (!atEnd) return -1;
+                    ends[field] = i;
+                    error = "Unterminated quoted field";
+                    return finish(i, i, lines);
+                }
+                ends[field] = i++;
+                if (i < limit && buffer[i] != ',' && buffer[i] != '\n' && buffer[i] != '\r') {
+                    error = "Unexpected character after closing quote";
+                    return skipLine(i, lines, atEnd);
+                }
+            } else {
+                starts[field] = i;
+                while (i < limit && buffer[i] != ',' && buffer[i] != '\n' && buffer[i] != '\r') {
+                    if (buffer[i] == '"' && error == null) {
+                        error = "Quote inside unquoted field";
+                    }
+                    i++;
+                }
+                ends[field] = i;
+            }
+            if (i == limit) {
+                if (!atEnd) return -1;
+                return finish(i, i, lines);
+            }
+            if (buffer[i] == ',') {
+                i++;
+                continue;
+            }
+            // line break ends the record
+            int end = i;
+            if (buffer[i] == '\r') {
+                if (i + 1 == limit && !atEnd) return -1;
+                if (i + 1 < limit && buffer[i + 1] == '\n') i++;
+            }
+            return finish(end, i + 1, lines);
+        }
+    }
+
+    // skips the rest of a malformed record's line
+    private int skipLine(int i, long lines, boolean atEnd) {
+        while (i < limit && buffer[i] != '\n' && buffer[i] != '\r') i++;
+        if (i == limit) {
+            if (!atEnd) return -1;
+            return finish(i, i, lines);
+        }
+        int end = i;
+        if (buffer[i] == '\r') {
+            if (i + 1 == limit && !atEnd) return -1;
+            if (i + 1 < limit && buffer[i + 1] == '\n') i++;
+        }
+        return finish(end, i + 1, lines);
+    }
+
+    private int finish(int end, int next, long lines) {
+        recordEnd = end;
+        lineNumber = nextLineNumber;
+        nextLineNumber += lines + 1;
+        return next;
+    }
+
+    // starts a new, empty field slot
+    private void addField() {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+            escaped = Arrays.copyOf(escaped, fieldCount * 2);
+        }
+        escaped[fieldCount] = false;
+        fieldCount++;
+    }
+
+    // moves unread bytes to the front, growing the buffer if a record fills it, and reads more
+    private boolean fill() throws IOException {
+        if (endOfInput) return false;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+        int read = channel.read(target);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+}
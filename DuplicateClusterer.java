@@ -0,0 +1,89 @@
+import java.util.*;
+
+/**
+ * Groups contacts into disjoint duplicate clusters. Two contacts belong to the same
+ * cluster when they share a normalized phone number, email or name, directly or
+ * through a chain of other contacts. Clusters are found with union-find in
+ * near-linear time: one hash lookup per contact and key, plus union operations.
+ */
+public class DuplicateClusterer {
+    // union-find forest over contact positions
+    private final int[] parent;
+    private final int[] size;
+
+    private DuplicateClusterer(int n) {
+        parent = new int[n];
+        size = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+    }
+
+    /**
+     * Finds the duplicate clusters among a list of contacts.
+     * @param contacts The contacts to cluster
+     * @return Clusters with more than one contact, each in input order, ordered by
+     *         the position of their first contact
+     */
+    public static List<List<Contact>> cluster(List<Contact> contacts) {
+        int n = contacts.size();
+        DuplicateClusterer forest = new DuplicateClusterer(n);
+        // first contact seen with each key; later ones are joined to it
+        Map<String, Integer> byPhone = new HashMap<>();
+        Map<String, Integer> byEmail = new HashMap<>();
+        Map<String, Integer> byName = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            Contact contact = contacts.get(i);
+            forest.link(byPhone, contact.canonicalPhone(), i);
+            forest.link(byEmail, contact.canonicalEmail(), i);
+            forest.link(byName, contact.canonicalName(), i);
+        }
+
+        List<List<Contact>> clusters = new ArrayList<>();
+        int[] clusterOf = new int[n];
+        Arrays.fill(clusterOf, -1);
+        for (int i = 0; i < n; i++) {
+            int root = forest.find(i);
+            if (forest.size[root] < 2) continue;
+            if (clusterOf[root] < 0) {
+                clusterOf[root] = clusters.size();
+                clusters.add(new ArrayList<>(forest.size[root]));
+            }
+            clusters.get(clusterOf[root]).add(contacts.get(i));
+        }
+        return clusters;
+    }
+
+    // joins a contact to the first contact that had the same key
+    private void link(Map<String, Integer> firstByKey, String key, int i) {
+        if (key.isEmpty()) return;
+        Integer first = firstByKey.putIfAbsent(key, i);
+        if (first != null) {
+            union(first, i);
+        }
+    }
+
+    // root of a contact's set, halving the path on the way
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // merges two sets, hanging the smaller under the larger
+    private void union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra == rb) return;
+        if (size[ra] < size[rb]) {
+            int t = ra;
+            ra = rb;
+            rb = t;
+        }
+        parent[rb] = ra;
+        size[ra] += size[rb];
+    }
+}
@@ -0,0 +1,700 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * GroupIndex maps every group (tag) to the set of contacts in it. Each contact is
+ * given a slot number, each distinct group a tag id, and each tag keeps a
+ * compressed bitmap of the slots of its contacts. Group queries such as
+ * "Work AND NOT Family" are then answered with bitmap operations instead of
+ * parsing every contact's group string.
+ * <p>
+ * The bitmaps split slot numbers into blocks of 65536. A block with few members
+ * stores them as a sorted array of 16-bit values, a block with many as a plain
+ * bitset of 8 KB, so a tag costs memory in proportion to its size rather than to
+ * the size of the book.
+ */
+public class GroupIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // a block holding more members than this is stored as a bitset
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BLOCK_WORDS = 1 << 10;
+
+    /**
+     * A compressed set of slot numbers. Operations return new bitmaps and never
+     * change their operands.
+     */
+    public static final class Bitmap implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // high 16 bits of the members of each block, ascending
+        private char[] keys = new char[4];
+        private Block[] blocks = new Block[4];
+        private int blockCount;
+
+        /**
+         * Adds a slot.
+         * @param slot The slot number, not negative
+         * @return true if it was not already present
+         */
+        public boolean add(int slot) {
+            char key = (char) (slot >>> 16);
+            int i = find(key);
+            if (i < 0) {
+                i = -i - 1;
+                insertBlock(i, key, new Block());
+            }
+            return blocks[i].add((char) slot);
+        }
+
+        /**
+         * Removes a slot.
+         * @param slot The slot number
+         * @return true if it was present
+         */
+        public boolean remove(int slot) {
+            int i = find((char) (slot >>> 16));
+            if (i < 0 || !blocks[i].remove((char) slot)) return false;
+            if (blocks[i].cardinality == 0) removeBlock(i);
+            return true;
+        }
+
+        /**
+         * Checks whether a slot is present.
+         * @param slot The slot number
+         * @return true if present
+         */
+        public boolean contains(int slot) {
+            int i = find((char) (slot >>> 16));
+            return i >= 0 && blocks[i].contains((char) slot);
+        }
+
+        /**
+         * Returns the number of slots in the bitmap.
+         * @return Cardinality
+         */
+        public int cardinality() {
+            int total = 0;
+            for (int i = 0; i < blockCount; i++) {
+                total += blocks[i].cardinality;
+            }
+            return total;
+        }
+
+        /**
+         * Returns the slots present in both bitmaps.
+         * @param other The other bitmap
+         * @return The intersection
+         */
+        public Bitmap and(Bitmap other) {
+            Bitmap result = new Bitmap();
+            int i = 0;
+            int j = 0;
+            while (i < blockCount && j < other.blockCount) {
+                if (keys[i] < other.keys[j]) {
+                    i++;
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    result.appendBlock(keys[i], blocks[i++].and(other.blocks[j++]));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the slots present in either bitmap.
+         * @param other The other bitmap
+         * @return The union
+         */
+        public Bitmap or(Bitmap other) {
+            Bitmap result = new Bitmap();
+            int i = 0;
+            int j = 0;
+            while (i < blockCount || j < other.blockCount) {
+                if (j == other.blockCount || (i < blockCount && keys[i] < other.keys[j])) {
+                    result.appendBlock(keys[i], blocks[i++].copy());
+                } else if (i == blockCount || keys[i] > other.keys[j]) {
+                    result.appendBlock(other.keys[j], other.blocks[j++].copy());
+                } else {
+                    result.appendBlock(keys[i], blocks[i++].or(other.blocks[j++]));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the slots present in this bitmap but not in the other.
+         * @param other The bitmap to subtract
+         * @return The difference
+         */
+        public Bitmap andNot(Bitmap other) {
+            Bitmap result = new Bitmap();
+            int j = 0;
+            for (int i = 0; i < blockCount; i++) {
+                while (j < other.blockCount && other.keys[j] < keys[i]) j++;
+                if (j < other.blockCount && other.keys[j] == keys[i]) {
+                    result.appendBlock(keys[i], blocks[i].andNot(other.blocks[j]));
+                } else {
+                    result.appendBlock(keys[i], blocks[i].copy());
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Calls an action for every slot, in ascending order.
+         * @param action Receives each slot number
+         */
+        public void forEach(IntConsumer action) {
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i].forEach(keys[i] << 16, action);
+            }
+        }
+
+        /**
+         * Returns the approximate memory used by the bitmap's data.
+         * @return Size in bytes
+         */
+        public long sizeInBytes() {
+            long bytes = 2L * keys.length + 8L * blocks.length;
+            for (int i = 0; i < blockCount; i++) {
+                bytes += blocks[i].sizeInBytes();
+            }
+            return bytes;
+        }
+
+        // position of the block with a key, or -(insertion point) - 1
+        private int find(char key) {
+            int lo = 0;
+            int hi = blockCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key) {
+                    lo = mid + 1;
+                } else if (keys[mid] > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        private void insertBlock(int i, char key, Block block) {
+            if (blockCount == keys.length) {
+                keys = Arrays.copyOf(keys, blockCount * 2);
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, blockCount - i);
+            System.arraycopy(blocks, i, blocks, i + 1, blockCount - i);
+            keys[i] = key;
+            blocks[i] = block;
+            blockCount++;
+        }
+
+        private void removeBlock(int i) {
+            System.arraycopy(keys, i + 1, keys, i, blockCount - i - 1);
+            System.arraycopy(blocks, i + 1, blocks, i, blockCount - i - 1);
+            blocks[--blockCount] = null;
+        }
+
+        // adds a block after the last one, skipping empty results
+        private void appendBlock(char key, Block block) {
+            if (block.cardinality > 0) insertBlock(blockCount, key, block);
+        }
+    }
+
+    // the low 16 bits of the members of one block: a sorted array while small, a bitset once large
+    private static final class Block implements Serializable {
+        private static final long serialVersionUID = 1L;
+        char[] array = new char[4];
+        long[] bits;
+        int cardinality;
+
+        boolean add(char low) {
+            if (bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before | (1L << low);
+                if (before == bits[low >>> 6]) return false;
+                cardinality++;
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, cardinality, low);
+            if (pos >= 0) return false;
+            pos = -pos - 1;
+            if (cardinality == ARRAY_LIMIT) {
+                toBits();
+                return add(low);
+            }
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, cardinality * 2));
+            }
+            System.arraycopy(array, pos, array, pos + 1, cardinality - pos);
+            array[pos] = low;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before & ~(1L << low);
+                if (before == bits[low >>> 6]) return false;
+                if (--cardinality <= ARRAY_LIMIT / 2) toArray();
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, cardinality, low);
+            if (pos < 0) return false;
+            System.arraycopy(array, pos + 1, array, pos, cardinality - pos - 1);
+            cardinality--;
+            return true;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        Block and(Block other) {
+            if (bits == null || other.bits == null) {
+                // filter the smaller side by the other; an array block is never the larger bitset
+                Block small = bits == null ? this : other;
+                Block large = small == this ? other : this;
+                Block result = new Block();
+                result.array = new char[Math.max(1, small.cardinality)];
+                for (int i = 0; i < small.cardinality; i++) {
+                    if (large.contains(small.array[i])) result.array[result.cardinality++] = small.array[i];
+                }
+                return result;
+            }
+            long[] words = new long[BLOCK_WORDS];
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                words[w] = bits[w] & other.bits[w];
+            }
+            return fromBits(words);
+        }
+
+        Block or(Block other) {
+            if (bits == null && other.bits == null && cardinality + other.cardinality <= ARRAY_LIMIT) {
+                Block result = new Block();
+                result.array = new char[Math.max(1, cardinality + other.cardinality)];
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    char next;
+                    if (j == other.cardinality || (i < cardinality && array[i] < other.array[j])) {
+                        next = array[i++];
+                    } else if (i == cardinality || array[i] > other.array[j]) {
+                        next = other.array[j++];
+                    } else {
+                        next = array[i++];
+                        j++;
+                    }
+                    result.array[result.cardinality++] = next;
+                }
+                return result;
+            }
+            long[] words = new long[BLOCK_WORDS];
+            orInto(words);
+            other.orInto(words);
+            return fromBits(words);
+        }
+
+        Block andNot(Block other) {
+            if (bits == null) {
+                Block result = new Block();
+                result.array = new char[Math.max(1, cardinality)];
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(array[i])) result.array[result.cardinality++] = array[i];
+                }
+                return result;
+            }
+            long[] words = bits.clone();
+            if (other.bits != null) {
+                for (int w = 0; w < BLOCK_WORDS; w++) {
+                    words[w] &= ~other.bits[w];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    words[other.array[i] >>> 6] &= ~(1L << other.array[i]);
+                }
+            }
+            return fromBits(words);
+        }
+
+        Block copy() {
+            Block result = new Block();
+            result.cardinality = cardinality;
+            if (bits != null) {
+                result.bits = bits.clone();
+                result.array = null;
+            } else {
+                result.array = Arrays.copyOf(array, Math.max(1, cardinality));
+            }
+            return result;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    action.accept(base | array[i]);
+                }
+                return;
+            }
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    action.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        long sizeInBytes() {
+            return bits != null ? 8L * BLOCK_WORDS : 2L * array.length;
+        }
+
+        private void orInto(long[] words) {
+            if (bits != null) {
+                for (int w = 0; w < BLOCK_WORDS; w++) {
+                    words[w] |= bits[w];
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    words[array[i] >>> 6] |= 1L << array[i];
+                }
+            }
+        }
+
+        private void toBits() {
+            bits = new long[BLOCK_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        private void toArray() {
+            char[] values = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            array = values;
+            bits = null;
+        }
+
+        // a block holding the given words, stored as an array if that is smaller
+        private static Block fromBits(long[] words) {
+            Block result = new Block();
+            result.bits = words;
+            result.array = null;
+            for (long word : words) {
+                result.cardinality += Long.bitCount(word);
+            }
+            if (result.cardinality <= ARRAY_LIMIT) result.toArray();
+            return result;
+        }
+    }
+
+    // lower-cased group -> tag id; a tag keeps its id even when its last contact leaves
+    private final Map<String, Integer> tagIds = new HashMap<>();
+    private final List<String> tagNames = new ArrayList<>();
+    private final List<Bitmap> members = new ArrayList<>();
+    // every occupied slot, the universe NOT is taken against
+    private final Bitmap all = new Bitmap();
+    // slot -> contact; slots of removed contacts are reused
+    private Contact[] contacts = new Contact[16];
+    private final Map<Contact, Integer> slots = new IdentityHashMap<>();
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int nextSlot;
+
+    /**
+     * Adds a contact and its groups to the index.
+     * @param contact The contact to index
+     */
+    public void add(Contact contact) {
+        if (slots.containsKey(contact)) return;
+        int slot = allocate(contact);
+        all.add(slot);
+        for (String group : Contact.parseGroups(contact.groups)) {
+            members.get(tagId(group)).add(slot);
+        }
+    }
+
+    /**
+     * Adds many contacts to the index.
+     * @param added The contacts to index
+     */
+    public void addAll(Collection<Contact> added) {
+        for (Contact contact : added) {
+            add(contact);
+        }
+    }
+
+    /**
+     * Removes a contact from the index.
+     * @param contact The contact to remove
+     */
+    public void remove(Contact contact) {
+        Integer slot = slots.remove(contact);
+        if (slot == null) return;
+        all.remove(slot);
+        for (String group : Contact.parseGroups(contact.groups)) {
+            Integer tag = tagIds.get(group.toLowerCase());
+            if (tag != null) members.get(tag).remove(slot);
+        }
+        release(slot);
+    }
+
+    /**
+     * Swaps an indexed contact for another with the same groups, e.g. a copy with a
+     * different favorite flag. The replacement takes over the slot, so no bitmap changes.
+     * @param contact The indexed contact
+     * @param replacement The contact to index in its place
+     */
+    public void replace(Contact contact, Contact replacement) {
+        Integer slot = slots.remove(contact);
+        if (slot == null) return;
+        contacts[slot] = replacement;
+        slots.put(replacement, slot);
+    }
+
+    /**
+     * Removes many contacts from the index.
+     * @param removed The contacts to remove
+     */
+    public void removeAll(Collection<Contact> removed) {
+        for (Contact contact : removed) {
+            remove(contact);
+        }
+    }
+
+    /**
+     * Returns every group that has at least one contact, with the spelling it was first seen with.
+     * @return Group names, sorted ignoring case
+     */
+    public List<String> groups() {
+        List<String> names = new ArrayList<>();
+        for (int tag = 0; tag < tagNames.size(); tag++) {
+            if (members.get(tag).cardinality() > 0) names.add(tagNames.get(tag));
+        }
+        names.sort(String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    /**
+     * Returns the contacts in a group, as a bitmap of slots.
+     * @param group The group name, matched ignoring case and surrounding spaces
+     * @return A copy of the group's bitmap, empty if no contact has the group
+     */
+    public Bitmap group(String group) {
+        Integer tag = tagIds.get(group.trim().toLowerCase());
+        return tag == null ? new Bitmap() : members.get(tag).or(new Bitmap());
+    }
+
+    /**
+     * Returns every indexed contact, as a bitmap of slots.
+     * @return A copy of the bitmap of all slots
+     */
+    public Bitmap all() {
+        return all.or(new Bitmap());
+    }
+
+    /**
+     * Evaluates a group expression. Group names are combined with AND, OR and NOT
+     * (any case) and parentheses; NOT binds tightest, then AND, then OR. A name may
+     * contain spaces, or be written in double quotes if it contains a keyword.
+     * For example "Work AND NOT Family" or "(Friends OR Close Friends) AND NOT Work".
+     * @param expression The expression
+     * @return The matching slots
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public Bitmap evaluate(String expression) {
+        Query query = new Query(tokenize(expression));
+        Bitmap result = query.or();
+        if (query.position < query.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + query.tokens.get(query.position) + "'");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the contacts in a bitmap.
+     * @param bitmap Slots, e.g. the result of evaluate
+     * @return The contacts, in slot order
+     */
+    public List<Contact> contacts(Bitmap bitmap) {
+        List<Contact> result = new ArrayList<>(bitmap.cardinality());
+        bitmap.forEach(slot -> result.add(contacts[slot]));
+        return result;
+    }
+
+    /**
+     * Returns a short summary of the index size.
+     * @return Human-readable statistics
+     */
+    public String statistics() {
+        long bytes = all.sizeInBytes();
+        for (Bitmap bitmap : members) {
+            bytes += bitmap.sizeInBytes();
+        }
+        return slots.size() + " contacts, " + groups().size() + " groups, " + (bytes / 1024) + " KB of bitmaps";
+    }
+
+    // the id of a group, adding it to the dictionary if it is new
+    private int tagId(String group) {
+        String key = group.toLowerCase();
+        Integer tag = tagIds.get(key);
+        if (tag == null) {
+            tag = tagNames.size();
+            tagIds.put(key, tag);
+            tagNames.add(group);
+            members.add(new Bitmap());
+        }
+        return tag;
+    }
+
+    // gives a contact a slot, reusing the slot of a removed contact if there is one
+    private int allocate(Contact contact) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (nextSlot == contacts.length) {
+                contacts = Arrays.copyOf(contacts, contacts.length * 2);
+            }
+            slot = nextSlot++;
+        }
+        contacts[slot] = contact;
+        slots.put(contact, slot);
+        return slot;
+    }
+
+    // frees the slot of a removed contact for reuse
+    private void release(int slot) {
+        contacts[slot] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    // splits an expression into "(", ")", keywords and group names
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        int i = 0;
+        while (i < expression.length()) {
+            char ch = expression.charAt(i);
+            if (ch == '(' || ch == ')') {
+                flushName(name, tokens);
+                tokens.add(String.valueOf(ch));
+                i++;
+            } else if (ch == '"') {
+                flushName(name, tokens);
+                int end = expression.indexOf('"', i + 1);
+                if (end < 0) throw new IllegalArgumentException("Unterminated quote");
+                // a leading quote marks a name that must not be read as a keyword
+                tokens.add("\"" + expression.substring(i + 1, end));
+                i = end + 1;
+            } else if (Character.isWhitespace(ch)) {
+                i++;
+                name.append(' ');
+            } else {
+                int end = i;
+                while (end < expression.length() && !Character.isWhitespace(expression.charAt(end))
+                    && "()\"".indexOf(expression.charAt(end)) < 0) {
+                    end++;
+                }
+                String word = expression.substring(i, end);
+                if (isKeyword(word)) {
+                    flushName(name, tokens);
+                    tokens.add(word.toUpperCase());
+                } else {
+                    name.append(word);
+                }
+                i = end;
+            }
+        }
+        flushName(name, tokens);
+        return tokens;
+    }
+
+    private static void flushName(StringBuilder name, List<String> tokens) {
+        String trimmed = name.toString().trim();
+        if (!trimmed.isEmpty()) tokens.add("\"" + trimmed);
+        name.setLength(0);
+    }
+
+    private static boolean isKeyword(String word) {
+        return word.equalsIgnoreCase("AND") || word.equalsIgnoreCase("OR") || word.equalsIgnoreCase("NOT");
+    }
+
+    // recursive-descent evaluator over the tokens; group names are the tokens starting with '"'
+    private final class Query {
+        final List<String> tokens;
+        int position;
+
+        Query(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Bitmap or() {
+            Bitmap result = and();
+            while (accept("OR")) {
+                result = result.or(and());
+            }
+            return result;
+        }
+
+        // intersects the positive terms, then subtracts the negated ones
+        Bitmap and() {
+            Bitmap positive = null;
+            Bitmap negative = null;
+            do {
+                boolean negated = false;
+                while (accept("NOT")) {
+                    negated = !negated;
+                }
+                Bitmap term = term();
+                if (negated) {
+                    negative = negative == null ? term : negative.or(term);
+                } else {
+                    positive = positive == null ? term : positive.and(term);
+                }
+            } while (accept("AND"));
+            if (positive == null) positive = all();
+            return negative == null ? positive : positive.andNot(negative);
+        }
+
+        Bitmap term() {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Expected a group name at the end");
+            }
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                Bitmap inner = or();
+                if (!accept(")")) throw new IllegalArgumentException("Missing ')'");
+                return inner;
+            }
+            if (!token.startsWith("\"")) {
+                throw new IllegalArgumentException("Expected a group name before '" + token + "'");
+            }
+            return group(token.substring(1));
+        }
+
+        private boolean accept(String token) {
+            if (position < tokens.size() && tokens.get(position).equals(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Imports a CSV file into a tree through five stages, each on its own thread:
+ * parse, normalize, validate, dedupe against the book, and batch insert. The parse
+ * stage maps the file and parses several ranges of it at once on the common
+ * fork-join pool, as CSVReader.readCSVParallel does, keeping rows in file order.
+ * Rows are handed on in chunks through bounded queues, so a slow stage holds back the ones
+ * before it instead of letting rows pile up in memory, and the queue depths show
+ * which stage is the bottleneck. A rejected row travels on to the last stage,
+ * which writes it to the rejects file, so rejects are recorded in file order.
+ * The dedupe stage only checks the book as it was when the import started; a
+ * row repeating an earlier row of the file is caught when it reaches the tree,
+ * so memory does not grow with the number of distinct rows imported.
+ * Cancelling stops every stage and deletes the contacts already inserted.
+ */
+public class ImportPipeline {
+    /** Rows handed from one stage to the next at a time. */
+    public static final int CHUNK_SIZE = 1024;
+    /** Chunks each queue holds before the stage feeding it waits. */
+    public static final int QUEUE_CAPACITY = 16;
+    /** Contacts inserted into the tree per batch. */
+    public static final int INSERT_BATCH = 16384;
+    // bytes of the file parsed as one task, and how many such tasks may run ahead of the next stage
+    private static final int PARSE_RANGE = 1 << 20;
+    private static final int PARSE_AHEAD = Runtime.getRuntime().availableProcessors() + 1;
+
+    // marks the end of a stage's output
+    private static final List<Row> END = Collections.emptyList();
+
+    // one CSV row on its way through the stages
+    private static final class Row {
+        final long line;
+        final String record;
+        String[] values;
+        Contact contact;
+        // why the row was rejected, or null while it is still going
+        String reason;
+        boolean duplicate;
+
+        Row(long line, String record) {
+            this.line = line;
+            this.record = record;
+        }
+    }
+
+    /**
+     * A stage of the pipeline and the queue that feeds it.
+     */
+    public static final class Stage {
+        private final String name;
+        private final BlockingQueue<List<Row>> input;
+        private final AtomicLong processed = new AtomicLong();
+
+        private Stage(String name, BlockingQueue<List<Row>> input) {
+            this.name = name;
+            this.input = input;
+        }
+
+        /**
+         * Returns the stage's name.
+         * @return Name, e.g. "validate"
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns how many chunks are waiting for this stage. A queue that stays full
+         * means this stage is the bottleneck.
+         * @return Waiting chunks, 0 for the first stage
+         */
+        public int queueDepth() {
+            return input == null ? 0 : input.size();
+        }
+
+        /**
+         * Returns the largest possible queue depth.
+         * @return Queue capacity
+         */
+        public int queueCapacity() {
+            return QUEUE_CAPACITY;
+        }
+
+        /**
+         * Returns how many rows this stage has finished with.
+         * @return Row count
+         */
+        public long processed() {
+            return processed.get();
+        }
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static class Result {
+        /** Contacts added to the tree; 0 if the import was cancelled. */
+        public final int inserted;
+        /** Valid rows skipped because the book or an earlier row already had them. */
+        public final int duplicates;
+        /** Rows that could not be imported. */
+        public final int rejected;
+        /** The file the rejected rows were written to, or null if none were rejected. */
+        public final Path rejectsFile;
+        /** Header columns that were not recognised and therefore not imported. */
+        public final List<String> ignoredColumns;
+        /** True if the import was cancelled and its contacts removed again. */
+        public final boolean cancelled;
+
+        public Result(int inserted, int duplicates, int rejected, Path rejectsFile, List<String> ignoredColumns, boolean cancelled) {
+            this.inserted = inserted;
+            this.duplicates = duplicates;
+            this.rejected = rejected;
+            this.rejectsFile = rejectsFile;
+            this.ignoredColumns = ignoredColumns;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final Path file;
+    private final Path rejectsFile;
+    private final AVLTree tree;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<String> ignoredColumns = Collections.synchronizedList(new ArrayList<>());
+    // set by cancel; stopping is also set when a stage fails or the import ends
+    private volatile boolean cancelled;
+    private volatile boolean stopping;
+    private volatile Throwable failure;
+    private volatile long fileSize;
+    private volatile long bytesRead;
+    private volatile int inserted;
+
+    /**
+     * Constructs a pipeline. Nothing is read until run is called.
+     * @param file The CSV file to import
+     * @param rejectsFile Where to write rejected rows, or null to skip them silently
+     * @param tree The tree to insert into
+     */
+    public ImportPipeline(Path file, Path rejectsFile, AVLTree tree) {
+        this.file = file;
+        this.rejectsFile = rejectsFile;
+        this.tree = tree;
+    }
+
+    /**
+     * Runs the import. The parse, normalize, validate and dedupe stages get their own
+     * threads and the calling thread does the inserting, so call this off the EDT.
+     * @return What was imported, skipped and rejected
+     * @throws IOException if the file cannot be read or the rejects file cannot be written;
+     *         contacts already inserted are removed again and the partial rejects file is deleted first
+     */
+    public Result run() throws IOException {
+        BlockingQueue<List<Row>> parsed = queue();
+        BlockingQueue<List<Row>> normalized = queue();
+        BlockingQueue<List<Row>> validated = queue();
+        BlockingQueue<List<Row>> deduped = queue();
+        Stage parse = stage("parse", null);
+        Stage normalize = stage("normalize", parsed);
+        Stage validate = stage("validate", normalized);
+        Stage dedupe = stage("dedupe", validated);
+        Stage insert = stage("insert", deduped);
+
+        AVLTree.Snapshot existing = tree.snapshot();
+        start(parse, () -> parse(parse, parsed));
+        start(normalize, () -> transform(normalize, parsed, normalized, ImportPipeline::normalize));
+        start(validate, () -> transform(validate, normalized, validated, ImportPipeline::validate));
+        start(dedupe, () -> transform(dedupe, validated, deduped, row -> dedupe(row, existing)));
+
+        List<Contact> added = new ArrayList<>();
+        CSVReader.RejectsWriter rejects = new CSVReader.RejectsWriter(rejectsFile);
+        int duplicates = 0;
+        try {
+            try {
+                List<Contact> batch = new ArrayList<>();
+                for (List<Row> chunk = deduped.take(); chunk != END && !stopping; chunk = deduped.take()) {
+                    for (Row row : chunk) {
+                        if (row.reason != null) {
+                            rejects.rejected(row.line, row.reason, row.record);
+                        } else if (row.duplicate) {
+                            duplicates++;
+                        } else {
+                            batch.add(row.contact);
+                        }
+                    }
+                    insert.processed.addAndGet(chunk.size());
+                    if (batch.size() >= INSERT_BATCH) {
+                        duplicates += insert(batch, added);
+                        batch = new ArrayList<>();
+                    }
+                }
+                checkFailure();
+                if (!stopping) {
+                    duplicates += insert(batch, added);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+            if (stopping) {
+                rollback(added);
+                rejects.discard();
+                return new Result(0, duplicates, rejects.count, null, new ArrayList<>(ignoredColumns), true);
+            }
+        } catch (IOException | RuntimeException e) {
+            rollback(added);
+            try {
+                rejects.discard();
+            } catch (IOException discardError) {
+                e.addSuppressed(discardError);
+            }
+            throw e;
+        } finally {
+            stopStages();
+            rejects.close();
+        }
+        return new Result(added.size(), duplicates, rejects.count, rejects.count > 0 ? rejectsFile : null,
+            new ArrayList<>(ignoredColumns), false);
+    }
+
+    /**
+     * Stops the import. run returns soon after with a cancelled result, once the
+     * contacts it inserted have been removed again. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        stopping = true;
+        interruptStages();
+    }
+
+    /**
+     * Returns whether cancel has been called.
+     * @return true if the import was asked to stop
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // wakes stage threads blocked on a queue or a read so they see stopping
+    private void interruptStages() {
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the stages in pipeline order, for showing their queue depths.
+     * @return The stages; empty until run has started
+     */
+    public List<Stage> stages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages);
+        }
+    }
+
+    /**
+     * Returns how far the parse stage has read, between 0 and 1.
+     * @return Fraction of the file read
+     */
+    public double fractionRead() {
+        long size = fileSize;
+        return size == 0 ? 0 : Math.min(1, (double) bytesRead / size);
+    }
+
+    /**
+     * Returns how many contacts have been inserted so far.
+     * @return Inserted count
+     */
+    public int inserted() {
+        return inserted;
+    }
+
+    // parse stage: maps the file in ranges of whole records, parses several ranges at once
+    // on the common pool, and hands their rows on in file order
+    private void parse(Stage stage, BlockingQueue<List<Row>> out) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            CsvParser first = new CsvParser(channel);
+            if (!first.next()) return;
+            List<String> ignored = new ArrayList<>();
+            CSVReader.Columns header = CSVReader.Columns.fromHeader(first, ignored);
+            ignoredColumns.addAll(ignored);
+            CSVReader.Columns columns = header != null ? header : CSVReader.Columns.POSITIONAL;
+
+            List<CSVReader.Range> ranges = CSVReader.splitOnRecords(channel, PARSE_RANGE);
+            // only a few ranges are parsed ahead, so a slow later stage still holds back the reading
+            Deque<Future<List<List<Row>>>> parsing = new ArrayDeque<>();
+            int next = 0;
+            int done = 0;
+            while ((next < ranges.size() || !parsing.isEmpty()) && !stopping) {
+                while (next < ranges.size() && parsing.size() < PARSE_AHEAD) {
+                    ByteBuffer buffer = ranges.get(next).map(channel);
+                    long firstLine = ranges.get(next).firstLine;
+                    boolean skipHeader = next == 0 && header != null;
+                    parsing.add(ForkJoinPool.commonPool().submit(() -> parseRange(buffer, firstLine, columns, skipHeader)));
+                    next++;
+                }
+                for (List<Row> chunk : rowsOf(parsing.poll())) {
+                    stage.processed.addAndGet(chunk.size());
+                    out.put(chunk);
+                }
+                bytesRead = ranges.get(done++).end;
+            }
+        }
+    }
+
+    // waits for one range's rows, passing its parse failure on
+    private static List<List<Row>> rowsOf(Future<List<List<Row>>> parsed) throws IOException, InterruptedException {
+        try {
+            return parsed.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // cuts one range of whole records into rows of field values, in chunks of CHUNK_SIZE
+    private List<List<Row>> parseRange(ByteBuffer buffer, long firstLine, CSVReader.Columns columns, boolean skipHeader) {
+        List<List<Row>> chunks = new ArrayList<>();
+        List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+        CsvParser parser = new CsvParser(CSVReader.channelOf(buffer), firstLine);
+        try {
+            if (skipHeader) parser.next();
+            while (!stopping && parser.next()) {
+                Row row = new Row(parser.lineNumber(), parser.rawRecord());
+                row.reason = parser.error();
+                if (row.reason == null) {
+                    row.reason = columns.shapeProblem(parser);
+                }
+                if (row.reason == null) {
+                    row.values = columns.values(parser);
+                }
+                chunk.add(row);
+                if (chunk.size() == CHUNK_SIZE) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!chunk.isEmpty()) chunks.add(chunk);
+        return chunks;
+    }
+
+    // normalize stage: trims the values and builds the contact
+    private static void normalize(Row row) {
+        try {
+            row.contact = CSVReader.Columns.toContact(row.values);
+        } catch (IllegalArgumentException e) {
+            row.reason = e.getMessage();
+        }
+        row.values = null;
+    }
+
+    // validate stage: applies the contact validation rules
+    private static void validate(Row row) {
+        row.reason = CSVReader.rejectReason(row.contact);
+    }
+
+    // dedupe stage: skips contacts the book already had when the import started.
+    // repeats within the file are left to bulkInsert, which skips keys already in the
+    // tree or earlier in the same batch, so no set of every imported row is kept
+    private static void dedupe(Row row, AVLTree.Snapshot existing) {
+        row.duplicate = existing.contains(row.contact);
+    }
+
+    // runs a step on every row that has not been rejected, chunk by chunk
+    private void transform(Stage stage, BlockingQueue<List<Row>> in, BlockingQueue<List<Row>> out, Consumer<Row> step)
+            throws InterruptedException {
+        for (List<Row> chunk = in.take(); chunk != END && !stopping; chunk = in.take()) {
+            for (Row row : chunk) {
+                if (row.reason == null && !row.duplicate) step.accept(row);
+            }
+            stage.processed.addAndGet(chunk.size());
+            out.put(chunk);
+        }
+    }
+
+    // bulk-loads one batch and remembers what it added, for rollback; returns how many were skipped.
+    // a contact added to the book since the dedupe snapshot is skipped and must not be rolled back
+    private int insert(List<Contact> batch, List<Contact> added) {
+        if (batch.isEmpty()) return 0;
+        List<Contact> contacts = tree.bulkInsert(batch);
+        added.addAll(contacts);
+        inserted = added.size();
+        return batch.size() - contacts.size();
+    }
+
+    // removes the contacts this import inserted
+    private void rollback(List<Contact> added) {
+        if (!added.isEmpty()) {
+            tree.deleteAll(added);
+            inserted = 0;
+        }
+    }
+
+    // rethrows the first failure of another stage on the inserting thread
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+    }
+
+    private interface StageBody {
+        void run() throws IOException, InterruptedException;
+    }
+
+    // starts a stage thread that always passes END on, so the stages after it finish too
+    private void start(Stage stage, StageBody body) {
+        BlockingQueue<List<Row>> out = outputOf(stage);
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                stopping = true;
+            } catch (Throwable t) {
+                // after a cancel, an interrupted read is expected rather than a failure
+                if (!stopping && failure == null) failure = t;
+                stopping = true;
+            } finally {
+                passEnd(out);
+            }
+        }, "import-" + stage.name);
+        thread.setDaemon(true);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    // the queue a stage writes to: the input of the next stage
+    private BlockingQueue<List<Row>> outputOf(Stage stage) {
+        synchronized (stages) {
+            return stages.get(stages.indexOf(stage) + 1).input;
+        }
+    }
+
+    // hands END on; once stopping the queue may be full, so make room first
+    private void passEnd(BlockingQueue<List<Row>> out) {
+        while (!out.offer(END)) {
+            if (stopping) {
+                out.poll();
+            } else {
+                try {
+                    out.put(END);
+                    return;
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
+            }
+        }
+    }
+
+    // stops the stage threads if still running and waits for them, without marking
+    // the import cancelled
+    private void stopStages() {
+        stopping = true;
+        interruptStages();
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Stage stage(String name, BlockingQueue<List<Row>> input) {
+        Stage stage = new Stage(name, input);
+        synchronized (stages) {
+            stages.add(stage);
+        }
+        return stage;
+    }
+
+    private static BlockingQueue<List<Row>> queue() {
+        return new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+}
@@ -3,8 +3,6 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.DefaultTableModel;
 
@@ -14,21 +12,13 @@ import javax.swing.table.DefaultTableModel;
  */
 public class Main {
     private static final AVLTree cTree = new AVLTree();
-    private static final String NAME_REGEX = "^[A-Za-z\\s]+$";
-    private static final String PHONE_REGEX = "^\\d{10}$";
-    private static final String EMAIL_REGEX = "^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$";
-    
-    // Cache for frequently accessed data
-    private static final Map<String, java.util.regex.Pattern> regexCache = new HashMap<>();
-
-    private static boolean validateInput(String input, String regex) {
-        if (input == null || input.trim().isEmpty()) return true;
-        
-        // Use cached pattern for better performance
-        java.util.regex.Pattern pattern = regexCache.computeIfAbsent(regex, java.util.regex.Pattern::compile);
-        return !pattern.matcher(input.trim()).matches();
-    }
-
+    // a written change waits at most this long for its fsync
+    private static final long JOURNAL_SYNC_DELAY_MILLIS = 100;
+    private static ContactJournal journal;
+    // where an unreadable snapshot was moved; while set, the snapshot is not rewritten and the journal not emptied
+    private static java.nio.file.Path corruptSnapshot;
+    // imports still writing to the book from a background thread; only touched on the EDT
+    private static final java.util.Map<ImportPipeline, SwingWorker<ImportPipeline.Result, Void>> runningImports = new java.util.LinkedHashMap<>();
     public static void setStatus(JLabel statusBar, Timer[] statusTimer, String msg, Color color) {
         statusBar.setText(msg);
         statusBar.setForeground(color);
@@ -41,6 +31,89 @@ public class Main {
         statusTimer[0].start();
     }
 
+    /**
+     * Loads the last snapshot, replays the journal written since, and attaches the
+     * journal so new changes are recorded.
+     * @return The open journal, or null if it could not be opened
+     */
+    private static ContactJournal openJournal() {
+        java.nio.file.Path snapshotPath = SnapshotFile.defaultPath();
+        if (java.nio.file.Files.exists(snapshotPath)) {
+            try {
+                cTree.replaceAll(SnapshotFile.read(snapshotPath));
+            } catch (IOException e) {
+                System.err.println("Error reading snapshot: " + e.getMessage());
+                // the journal only holds changes since this snapshot, so the book loaded now is
+                // partial: keep the damaged file for recovery and never save over it this session
+                corruptSnapshot = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".corrupt-" + System.currentTimeMillis());
+                try {
+                    java.nio.file.Files.move(snapshotPath, corruptSnapshot);
+                } catch (IOException moveError) {
+                    System.err.println("Error moving aside snapshot: " + moveError.getMessage());
+                    corruptSnapshot = snapshotPath;
+                }
+            }
+        }
+        java.nio.file.Path path = ContactJournal.defaultPath();
+        try {
+            ContactJournal.replay(path, cTree);
+            ContactJournal opened = new ContactJournal(path, JOURNAL_SYNC_DELAY_MILLIS);
+            cTree.setJournal(opened);
+            return opened;
+        } catch (IOException e) {
+            System.err.println("Error opening journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // cancels running imports and waits until they have rolled back, so nothing writes to
+    // the book while the journal is detached and the snapshot taken
+    private static void stopImports() {
+        for (ImportPipeline pipeline : runningImports.keySet()) {
+            pipeline.cancel();
+        }
+        for (SwingWorker<ImportPipeline.Result, Void> worker : runningImports.values()) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (java.util.concurrent.ExecutionException e) {
+                // a failed import has already removed its contacts again
+            }
+        }
+        runningImports.clear();
+    }
+
+    // saves a snapshot of the book and empties the journal it now covers, then closes the journal
+    private static void closeJournal() {
+        stopImports();
+        if (journal == null) return;
+        if (corruptSnapshot != null) {
+            // the book is only partial, so the journal is kept whole and the snapshot left alone
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing journal: " + e.getMessage());
+            }
+            return;
+        }
+        try {
+            cTree.setJournal(null);
+            journal.sync();
+            SnapshotFile.write(cTree.snapshot(), SnapshotFile.defaultPath());
+            journal.reset();
+        } catch (IOException e) {
+            // the journal still holds every change, so nothing is lost
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing journal: " + e.getMessage());
+        }
+    }
+
     /**
      * Main entry point for the Contact Management System application.
      */
@@ -59,7 +132,13 @@ public class Main {
 
 
 
-        JOptionPane.showMessageDialog(null, "Welcome to contact Management System!\nNote: Contacts are not saved automatically. Use Export/Import to save or load contacts.");
+        journal = openJournal();
+
+        JOptionPane.showMessageDialog(null, "Welcome to contact Management System!\n" + (journal != null
+            ? "Changes are saved automatically. Use Export/Import to exchange contacts as CSV."
+            : "Note: The journal could not be opened, so contacts are not saved automatically. Use Export/Import to save or load contacts.")
+            + (corruptSnapshot == null ? "" : "\n\nWarning: The saved contacts could not be read, so only recent changes were loaded.\n"
+                + "The damaged file was kept at " + corruptSnapshot + " and will not be overwritten."));
 
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("contact Management System");
@@ -78,7 +157,9 @@ public class Main {
             Font uiFontHeader = new Font("Segoe UI", Font.BOLD, 22);
 
             // Add a prominent notification label at the top
-            JLabel notificationLabel = new JLabel("Note: Contacts are NOT saved automatically. Use File > Export/Import to save or load contacts.");
+            JLabel notificationLabel = new JLabel(journal != null
+                ? "Changes are saved automatically. Use File > Export/Import to exchange contacts as CSV."
+                : "Note: Contacts are NOT saved automatically. Use File > Export/Import to save or load contacts.");
             notificationLabel.setFont(uiFontHeader);
             notificationLabel.setForeground(Color.RED);
             notificationLabel.setHorizontalAlignment(SwingConstants.CENTER);
@@ -88,9 +169,17 @@ public class Main {
             JMenu fileMenu = new JMenu("File");
             JMenuItem importItem = new JMenuItem("Import Contacts");
             JMenuItem exportItem = new JMenuItem("Export Contacts");
+            JMenuItem compareItem = new JMenuItem("Compare With File");
             fileMenu.add(importItem);
             fileMenu.add(exportItem);
+            fileMenu.add(compareItem);
             menuBar.add(fileMenu);
+            JMenu viewMenu = new JMenu("View");
+            JMenuItem groupFilterItem = new JMenuItem("Filter by Group...");
+            JCheckBoxMenuItem favoritesOnlyItem = new JCheckBoxMenuItem("Favorites Only");
+            viewMenu.add(favoritesOnlyItem);
+            viewMenu.add(groupFilterItem);
+            menuBar.add(viewMenu);
             JCheckBoxMenuItem darkModeToggle = new JCheckBoxMenuItem("Dark Mode");
             menuBar.add(darkModeToggle);
             // Help/About menu
@@ -153,6 +242,8 @@ public class Main {
             JLabel searchLabel = new JLabel("Search:");
             JTextField liveSearchField = new JTextField(20);
             liveSearchField.setFont(uiFont);
+            liveSearchField.setToolTipText("<html>Text, or jo* for a name prefix. Fields: name: phone: email: domain: group: is:favorite<br>"
+                + "Combine with OR, NOT or -, and ( ); e.g. group:Work domain:example.com -is:favorite</html>");
             JPanel filterPanel = new JPanel(new BorderLayout());
             filterPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
             
@@ -169,21 +260,9 @@ public class Main {
             frame.add(topPanel, BorderLayout.NORTH);
 
             // Center panel for contact display (now JTable)
-            String[] columnNames = {"No.", "★", "Name", "Phone Number", "Email"};
-            DefaultTableModel tableModel = new DefaultTableModel(columnNames, 0) {
-                @Override
-                public boolean isCellEditable(int row, int column) {
-                    // Only the star column is editable for toggling favorite
-                    return column == 1;
-                }
-            };
-            JTable contactTable = new JTable(tableModel) {
-                @Override
-                public Class<?> getColumnClass(int column) {
-                    if (column == 1) return Boolean.class;
-                    return super.getColumnClass(column);
-                }
-            };
+            // Rows are read lazily from the tree, so only visible rows are materialized
+            ContactTableModel tableModel = new ContactTableModel(cTree);
+            JTable contactTable = new JTable(tableModel);
             
             // Set custom renderer for the favorite column to show stars
             contactTable.getColumnModel().getColumn(1).setCellRenderer(new TableCellRenderer() {
@@ -221,49 +300,54 @@ public class Main {
             centerPanel.add(tableScrollPane, BorderLayout.CENTER);
             frame.add(centerPanel, BorderLayout.CENTER);
 
-            // Helper to refresh table from AVLTree and auto-resize columns
-            Runnable refreshTable = () -> {
-                SwingUtilities.invokeLater(() -> {
-                    tableModel.setRowCount(0);
-                    int rowNum = 1;
-                    String searchText = liveSearchField.getText().trim().toLowerCase();
-                    List<Contact> contacts = cTree.getContactList();
-                    
-                    for (Contact contact : contacts) {
-                        if (!searchText.isEmpty()) {
-                            boolean matches = contact.name.toLowerCase().contains(searchText)
-                                || contact.phoneNumber.toLowerCase().contains(searchText)
-                                || contact.email.toLowerCase().contains(searchText);
-                            if (!matches) continue;
-                        }
-                        tableModel.addRow(new Object[]{rowNum++, contact.favorite, contact.name, contact.phoneNumber, contact.email});
-                    }
-                    
-                    // Auto-resize columns only if table has data
-                    if (tableModel.getRowCount() > 0) {
-                        for (int col = 0; col < contactTable.getColumnCount(); col++) {
-                            int maxWidth = 100;
-                            for (int row = 0; row < contactTable.getRowCount(); row++) {
-                                TableCellRenderer renderer = contactTable.getCellRenderer(row, col);
-                                Component comp = contactTable.prepareRenderer(renderer, row, col);
-                                maxWidth = Math.max(comp.getPreferredSize().width + 20, maxWidth);
-                            }
-                            contactTable.getColumnModel().getColumn(col).setPreferredWidth(maxWidth);
-                        }
-                    }
-                });
-            };
-            refreshTable.run();
-
-            // Add key listener to liveSearchField to filter on Enter
-            liveSearchField.addActionListener(e -> refreshTable.run());
-
             // Status bar at the bottom
             JLabel statusBar = new JLabel("Ready");
             statusBar.setFont(new Font("Segoe UI", Font.PLAIN, 16));
             statusBar.setBorder(BorderFactory.createEmptyBorder(8, 15, 8, 15));
             frame.add(statusBar, BorderLayout.SOUTH);
 
+            // Search runs on a background thread; results are published here on the EDT
+            ContactSearch contactSearch = new ContactSearch(cTree, (searchText, result) -> {
+                if (result == null) {
+                    tableModel.showAll();
+                } else {
+                    tableModel.showFiltered(result.contacts);
+                    // the plan shows which index answered, so slow searches point at a missing one
+                    String shown = searchText.isEmpty()
+                        ? "Showing " + result.contacts.size() + " favorites"
+                        : "Found " + result.contacts.size() + " matching contacts";
+                    setStatus(statusBar, new Timer[]{null}, shown + " (" + result.describe() + ")", Color.BLUE);
+                }
+                
+                // Auto-resize columns from a sample of rows rather than every row
+                if (tableModel.getRowCount() > 0) {
+                    int[] sampleRows = tableModel.sampleRows(200);
+                    for (int col = 0; col < contactTable.getColumnCount(); col++) {
+                        int maxWidth = 100;
+                        for (int row : sampleRows) {
+                            TableCellRenderer renderer = contactTable.getCellRenderer(row, col);
+                            Component comp = contactTable.prepareRenderer(renderer, row, col);
+                            maxWidth = Math.max(comp.getPreferredSize().width + 20, maxWidth);
+                        }
+                        contactTable.getColumnModel().getColumn(col).setPreferredWidth(maxWidth);
+                    }
+                }
+            });
+
+            // Helper to refresh table from AVLTree, re-running the current search
+            Runnable refreshTable = () -> {
+                SwingUtilities.invokeLater(() -> contactSearch.searchNow(liveSearchField.getText()));
+            };
+            refreshTable.run();
+
+            // Search as you type (debounced), or immediately on Enter
+            liveSearchField.addActionListener(e -> contactSearch.searchNow(liveSearchField.getText()));
+            liveSearchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+                public void insertUpdate(javax.swing.event.DocumentEvent e) { contactSearch.queryChanged(liveSearchField.getText()); }
+                public void removeUpdate(javax.swing.event.DocumentEvent e) { contactSearch.queryChanged(liveSearchField.getText()); }
+                public void changedUpdate(javax.swing.event.DocumentEvent e) { contactSearch.queryChanged(liveSearchField.getText()); }
+            });
+
             // Dark mode logic (moved here after all components are declared)
             Color darkBg = new Color(40, 40, 40);
             Color darkFg = new Color(220, 220, 220);
@@ -314,37 +398,44 @@ public class Main {
             };
             darkModeToggle.addActionListener(e -> applyDarkMode.run());
 
-            // Toggle favorite (star) in table
-            contactTable.getModel().addTableModelListener(e -> {
-                if (e.getColumn() == 1 && e.getFirstRow() >= 0) {
-                    int row = e.getFirstRow();
-                    String name = (String) tableModel.getValueAt(row, 2);
-                    String phone = (String) tableModel.getValueAt(row, 3);
-                    String email = (String) tableModel.getValueAt(row, 4);
-                    for (Contact contact : cTree.getContactList()) {
-                        if (contact.name.equals(name) && contact.phoneNumber.equals(phone) && contact.email.equals(email)) {
-                            contact.favorite = (Boolean) tableModel.getValueAt(row, 1);
-                            break;
-                        }
-                    }
-                }
+            // Toggling the star column goes through ContactTableModel.setValueAt to AVLTree.setFavorite
+            favoritesOnlyItem.addActionListener(e -> {
+                contactSearch.setFavoritesOnly(favoritesOnlyItem.isSelected());
+                refreshTable.run();
             });
 
-
-
             // Import contacts action
             importItem.addActionListener(e -> {
                 JFileChooser fileChooser = new JFileChooser();
                 int result = fileChooser.showOpenDialog(frame);
                 if (result == JFileChooser.APPROVE_OPTION) {
-                    File file = fileChooser.getSelectedFile();
-                    java.util.List<Contact> imported = CSVReader.readCSV(file.getAbsolutePath());
-                    int count = 0;
-                    for (Contact contact : imported) {
-                        if (cTree.addContact(contact.name, contact.phoneNumber, contact.email)) count++;
-                    }
-                    refreshTable.run();
-                    setStatus(statusBar, new Timer[]{null}, "Imported " + count + " contacts from " + file.getName(), new Color(0, 128, 0)); // green
+                    importInBackground(fileChooser.getSelectedFile(), frame, statusBar, refreshTable);
+                }
+            });
+            // Show the contacts matching a group expression such as "Work AND NOT Family"
+            groupFilterItem.addActionListener(e -> {
+                List<String> groups = cTree.getGroups();
+                String known = groups.isEmpty() ? "No contact has a group yet."
+                    : "Groups: " + String.join(", ", groups.subList(0, Math.min(groups.size(), 20)))
+                        + (groups.size() > 20 ? ", ..." : "");
+                String expression = JOptionPane.showInputDialog(frame,
+                    "Combine group names with AND, OR, NOT and parentheses.\n" + known, "Filter by Group", JOptionPane.QUESTION_MESSAGE);
+                if (expression == null || expression.trim().isEmpty()) return;
+                try {
+                    List<Contact> matches = cTree.findByGroups(expression);
+                    tableModel.showFiltered(matches);
+                    setStatus(statusBar, new Timer[]{null}, matches.size() + " contacts match " + expression.trim()
+                        + " (group index: " + cTree.getGroupIndexStatistics() + ")", Color.BLUE);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(frame, "Invalid group expression: " + ex.getMessage(), "Filter by Group", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+            // Compare the book with a file, optionally adding the contacts only the file has
+            compareItem.addActionListener(e -> {
+                JFileChooser fileChooser = new JFileChooser();
+                int result = fileChooser.showOpenDialog(frame);
+                if (result == JFileChooser.APPROVE_OPTION) {
+                    compareInBackground(fileChooser.getSelectedFile(), frame, statusBar, refreshTable);
                 }
             });
             // Export contacts action
@@ -352,9 +443,7 @@ public class Main {
                 JFileChooser fileChooser = new JFileChooser();
                 int result = fileChooser.showSaveDialog(frame);
                 if (result == JFileChooser.APPROVE_OPTION) {
-                    File file = fileChooser.getSelectedFile();
-                    AVLTree.saveContacts(cTree.getContactList(), file.getAbsolutePath());
-                    setStatus(statusBar, new Timer[]{null}, "Exported contacts to " + file.getName(), new Color(255, 140, 0)); // orange
+                    exportInBackground(fileChooser.getSelectedFile(), frame, statusBar);
                 }
             });
 
@@ -388,17 +477,17 @@ public class Main {
                         String pn = phoneField.getText().trim();
                         String em = emailField.getText().trim();
                         boolean valid = true;
-                        if (validateInput(n, NAME_REGEX)) {
+                        if (!ContactValidator.isNameText(n)) {
                             nameField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid name. Only letters and spaces allowed.", Color.RED);
                             valid = false;
                         }
-                        if (validateInput(pn, PHONE_REGEX)) {
+                        if (!ContactValidator.isValidPhone(pn)) {
                             phoneField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid phone number. Must be 10 digits.", Color.RED);
                             valid = false;
                         }
-                        if (validateInput(em, EMAIL_REGEX)) {
+                        if (!ContactValidator.isValidEmail(em)) {
                             emailField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid email format.", Color.RED);
                             valid = false;
@@ -454,17 +543,17 @@ public class Main {
                         String np = phoneField.getText().trim();
                         String ne = emailField.getText().trim();
                         boolean valid = true;
-                        if (validateInput(nn, NAME_REGEX)) {
+                        if (!ContactValidator.isNameText(nn)) {
                             nameField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid name. Only letters and spaces allowed.", Color.RED);
                             valid = false;
                         }
-                        if (validateInput(np, PHONE_REGEX)) {
+                        if (!ContactValidator.isValidPhone(np)) {
                             phoneField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid phone number. Must be 10 digits.", Color.RED);
                             valid = false;
                         }
-                        if (validateInput(ne, EMAIL_REGEX)) {
+                        if (!ContactValidator.isValidEmail(ne)) {
                             emailField.setBorder(BorderFactory.createLineBorder(Color.RED, 2));
                             setStatus(statusBar, new Timer[]{null}, "Invalid email format.", Color.RED);
                             valid = false;
@@ -496,7 +585,7 @@ public class Main {
                 int confirm = JOptionPane.showConfirmDialog(frame, "Delete selected contact?", "Confirm Delete", JOptionPane.YES_NO_OPTION);
                 if (confirm == JOptionPane.YES_OPTION) {
                     // Remove from AVL tree
-                    cTree.root = cTree.delete(cTree.root, name, phone, email);
+                    cTree.delete(name, phone, email);
                     refreshTable.run();
                     setStatus(statusBar, new Timer[]{null}, "Contact deleted.", Color.RED);
                 }
@@ -507,10 +596,6 @@ public class Main {
                 liveSearchField.setText("");
                 refreshTable.run();
                 setStatus(statusBar, new Timer[]{null}, "Search cleared.", Color.GREEN);
-                // Clear regex cache periodically to prevent memory buildup
-                if (regexCache.size() > 10) {
-                    regexCache.clear();
-                }
             });
             
             // Select All Button
@@ -525,24 +610,10 @@ public class Main {
             });
 
             // Find Duplicates Button
-            findDuplicatesButton.addActionListener(e -> {
-                List<List<Contact>> duplicates = cTree.findDuplicates();
-                if (duplicates.isEmpty()) {
-                    setStatus(statusBar, new Timer[]{null}, "No duplicate contacts found.", new Color(0, 128, 0));
-                } else {
-                    showDuplicatesDialog(duplicates, frame, statusBar, refreshTable);
-                }
-            });
+            findDuplicatesButton.addActionListener(e -> findDuplicatesInBackground(findDuplicatesButton, frame, statusBar, refreshTable));
 
             // Validate Contacts Button
-            validateContactsButton.addActionListener(e -> {
-                List<Contact> invalidContacts = cTree.findInvalidContacts();
-                if (invalidContacts.isEmpty()) {
-                    setStatus(statusBar, new Timer[]{null}, "All contacts are valid.", new Color(0, 128, 0));
-                } else {
-                    showInvalidContactsDialog(invalidContacts, frame, statusBar, refreshTable);
-                }
-            });
+            validateContactsButton.addActionListener(e -> validateInBackground(validateContactsButton, frame, statusBar, refreshTable));
 
             // Batch delete logic
             batchDeleteButton.addActionListener(e -> {
@@ -558,31 +629,16 @@ public class Main {
                     "Confirm Batch Delete", JOptionPane.YES_NO_OPTION);
                     
                 if (confirm == JOptionPane.YES_OPTION) {
-                    java.util.List<Contact> toDelete = new java.util.ArrayList<>();
-                    
-                    // Get all contacts from the tree first
-                    List<Contact> allContacts = cTree.getContactList();
+                    java.util.List<Contact> toDelete = new java.util.ArrayList<>(selectedRows.length);
                     
+                    // The model already knows the contact behind every row
                     for (int row : selectedRows) {
                         if (row >= 0 && row < tableModel.getRowCount()) {
-                            String name = (String) tableModel.getValueAt(row, 2);
-                            String phone = (String) tableModel.getValueAt(row, 3);
-                            String email = (String) tableModel.getValueAt(row, 4);
-                            
-                            for (Contact contact : allContacts) {
-                                if (contact.name.equals(name) && contact.phoneNumber.equals(phone) && contact.email.equals(email)) {
-                                    toDelete.add(contact);
-                                    break;
-                                }
-                            }
+                            toDelete.add(tableModel.getContactAt(row));
                         }
                     }
                     
-                    int deletedCount = 0;
-                    for (Contact contact : toDelete) {
-                        cTree.root = cTree.delete(cTree.root, contact.name, contact.phoneNumber, contact.email);
-                        deletedCount++;
-                    }
+                    int deletedCount = cTree.deleteAll(toDelete);
                     
                     refreshTable.run();
                     setStatus(statusBar, new Timer[]{null}, 
@@ -592,13 +648,18 @@ public class Main {
 
             frame.addWindowListener(new WindowAdapter() {
                 public void windowClosing(WindowEvent e) {
+                    String question = "Do you want to close the contact Management System?";
+                    if (!runningImports.isEmpty()) {
+                        question = "An import is still running and will be cancelled.\n" + question;
+                    }
                     int choice = JOptionPane.showConfirmDialog(frame,
-                            "Do you want to close the contact Management System?", "Confirmation",
+                            question, "Confirmation",
                             JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
 
                     if (choice == JOptionPane.YES_OPTION) {
                         // Clean up resources
-                        regexCache.clear();
+                        contactSearch.shutdown();
+                        closeJournal();
                         System.gc(); // Suggest garbage collection
                         JOptionPane.showMessageDialog(frame, "Thank you for using the system!");
                         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -726,14 +787,16 @@ public class Main {
     /**
      * Shows a dialog for managing duplicate contacts.
      * @param duplicates List of duplicate contact groups
+     * @param similar Near-duplicate pairs ranked by similarity
      * @param parent Parent frame
      * @param statusBar Status bar for messages
      * @param refreshTable Runnable to refresh the table
      */
-    private static void showDuplicatesDialog(List<List<Contact>> duplicates, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+    private static void showDuplicatesDialog(List<List<Contact>> duplicates, List<NearDuplicateFinder.Match> similar,
+                                             JFrame parent, JLabel statusBar, Runnable refreshTable) {
         JDialog dialog = new JDialog(parent, "Duplicate Contacts Found", true);
         dialog.setLayout(new BorderLayout());
-        dialog.setSize(600, 400);
+        dialog.setSize(700, 400);
         dialog.setLocationRelativeTo(parent);
 
         // Create table model for duplicates
@@ -756,12 +819,30 @@ public class Main {
             groupNum++;
         }
 
-        JScrollPane scrollPane = new JScrollPane(duplicatesTable);
-        dialog.add(scrollPane, BorderLayout.CENTER);
+        // Create table model for near-duplicate pairs, best matches first
+        String[] similarColumns = {"Score", "Name", "Phone", "Similar Name", "Phone", "Reason"};
+        DefaultTableModel similarModel = new DefaultTableModel(similarColumns, 0);
+        JTable similarTable = new JTable(similarModel);
+        for (NearDuplicateFinder.Match match : similar) {
+            similarModel.addRow(new Object[]{
+                String.format("%.0f%%", match.score * 100),
+                match.first.name,
+                match.first.phoneNumber,
+                match.second.name,
+                match.second.phoneNumber,
+                match.reason
+            });
+        }
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Duplicates (" + duplicates.size() + ")", new JScrollPane(duplicatesTable));
+        tabs.addTab("Similar Names (" + similar.size() + ")", new JScrollPane(similarTable));
+        dialog.add(tabs, BorderLayout.CENTER);
 
         // Buttons panel
         JPanel buttonPanel = new JPanel(new FlowLayout());
         JButton mergeButton = new JButton("Merge All Duplicates");
+        JButton mergeSelectedButton = new JButton("Merge Selected Pairs");
         JButton closeButton = new JButton("Close");
 
         mergeButton.addActionListener(e -> {
@@ -779,23 +860,378 @@ public class Main {
             }
         });
 
+        mergeSelectedButton.addActionListener(e -> {
+            int[] rows = similarTable.getSelectedRows();
+            if (rows.length == 0) {
+                JOptionPane.showMessageDialog(dialog, "Select the similar pairs to merge.");
+                return;
+            }
+            // a contact can only be merged once, so skip pairs overlapping an earlier one
+            java.util.Set<Contact> used = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+            List<List<Contact>> pairs = new java.util.ArrayList<>();
+            for (int row : rows) {
+                NearDuplicateFinder.Match match = similar.get(similarTable.convertRowIndexToModel(row));
+                if (!used.contains(match.first) && !used.contains(match.second)) {
+                    used.add(match.first);
+                    used.add(match.second);
+                    pairs.add(java.util.Arrays.asList(match.first, match.second));
+                }
+            }
+            int mergedCount = cTree.mergeDuplicates(pairs);
+            refreshTable.run();
+            setStatus(statusBar, new Timer[]{null},
+                "Merged " + mergedCount + " similar contacts.", new Color(0, 128, 0));
+            dialog.dispose();
+        });
+
         closeButton.addActionListener(e -> dialog.dispose());
 
+        mergeButton.setEnabled(!duplicates.isEmpty());
+        mergeSelectedButton.setEnabled(!similar.isEmpty());
         buttonPanel.add(mergeButton);
+        buttonPanel.add(mergeSelectedButton);
         buttonPanel.add(closeButton);
         dialog.add(buttonPanel, BorderLayout.SOUTH);
 
         dialog.setVisible(true);
     }
 
+    /**
+     * Exports a snapshot of the book on a background thread, showing progress in a
+     * dialog whose Cancel button stops the export and leaves any existing file as it was.
+     * The format follows the file name: .jsonl for JSON Lines, otherwise CSV, plus .gz for gzip.
+     * @param file The target file
+     * @param parent Parent frame
+     * @param statusBar Status bar for messages
+     */
+    private static void exportInBackground(File file, JFrame parent, JLabel statusBar) {
+        AVLTree.Snapshot snapshot = cTree.snapshot();
+        JDialog dialog = new JDialog(parent, "Exporting " + file.getName(), false);
+        JProgressBar progressBar = new JProgressBar(0, Math.max(snapshot.size(), 1));
+        progressBar.setStringPainted(true);
+        JButton cancelButton = new JButton("Cancel");
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(progressBar, BorderLayout.CENTER);
+        panel.add(cancelButton, BorderLayout.SOUTH);
+        dialog.add(panel);
+        dialog.setSize(360, 120);
+        dialog.setLocationRelativeTo(parent);
+
+        SwingWorker<Integer, Integer> worker = new SwingWorker<Integer, Integer>() {
+            @Override
+            protected Integer doInBackground() throws IOException {
+                return ContactExporter.export(snapshot, file.toPath(), ContactExporter.formatFor(file.getName()),
+                    ContactExporter.isGzip(file.getName()), (done, total) -> publish(done));
+            }
+
+            @Override
+            protected void process(List<Integer> chunks) {
+                progressBar.setValue(chunks.get(chunks.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                dialog.dispose();
+                if (isCancelled()) {
+                    setStatus(statusBar, new Timer[]{null}, "Export cancelled.", Color.YELLOW);
+                    return;
+                }
+                try {
+                    setStatus(statusBar, new Timer[]{null}, "Exported " + get() + " contacts to " + file.getName(), new Color(255, 140, 0)); // orange
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(parent, "Export failed: " + cause.getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE);
+                    setStatus(statusBar, new Timer[]{null}, "Export failed.", Color.RED);
+                }
+            }
+        };
+        cancelButton.addActionListener(e -> worker.cancel(true));
+        worker.execute();
+        dialog.setVisible(true);
+    }
+
+    /**
+     * Imports a CSV file through an ImportPipeline on a background thread. A small
+     * dialog shows how much of the file has been read and offers Cancel, which
+     * removes the contacts imported so far; the status bar shows the row rate and
+     * how full each stage's queue is while the import runs.
+     * @param file The file to import
+     * @param parent Parent frame
+     * @param statusBar Status bar to report progress and the outcome in
+     * @param refreshTable Reloads the table once the import has finished
+     */
+    private static void importInBackground(File file, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+        File rejectsFile = new File(file.getParentFile(), file.getName() + ".rejects.csv");
+        ImportPipeline pipeline = new ImportPipeline(file.toPath(), rejectsFile.toPath(), cTree);
+        JDialog dialog = new JDialog(parent, "Importing " + file.getName(), false);
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        JButton cancelButton = new JButton("Cancel");
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(progressBar, BorderLayout.CENTER);
+        panel.add(cancelButton, BorderLayout.SOUTH);
+        dialog.add(panel);
+        dialog.setSize(360, 120);
+        dialog.setLocationRelativeTo(parent);
+
+        long started = System.nanoTime();
+        Timer progressTimer = new Timer(250, e -> {
+            List<ImportPipeline.Stage> stages = pipeline.stages();
+            if (stages.isEmpty()) return;
+            long rows = stages.get(0).processed();
+            double seconds = Math.max((System.nanoTime() - started) / 1e9, 0.001);
+            StringBuilder queues = new StringBuilder();
+            for (ImportPipeline.Stage stage : stages.subList(1, stages.size())) {
+                queues.append(queues.length() == 0 ? "" : ", ").append(stage.name()).append(' ')
+                    .append(stage.queueDepth()).append('/').append(stage.queueCapacity());
+            }
+            progressBar.setValue((int) (pipeline.fractionRead() * 100));
+            statusBar.setText(String.format("Importing %s: %,d rows read, %,d added, %,.0f rows/s (queues: %s)",
+                file.getName(), rows, pipeline.inserted(), rows / seconds, queues));
+            statusBar.setForeground(new Color(0, 0, 180)); // blue
+        });
+
+        SwingWorker<ImportPipeline.Result, Void> worker = new SwingWorker<ImportPipeline.Result, Void>() {
+            @Override
+            protected ImportPipeline.Result doInBackground() throws IOException {
+                return pipeline.run();
+            }
+
+            @Override
+            protected void done() {
+                runningImports.remove(pipeline);
+                progressTimer.stop();
+                dialog.dispose();
+                refreshTable.run();
+                ImportPipeline.Result result;
+                try {
+                    result = get();
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(parent, "Could not import " + file.getName() + ": " + cause.getMessage(),
+                        "Import Failed", JOptionPane.ERROR_MESSAGE);
+                    setStatus(statusBar, new Timer[]{null}, "Import failed; no contacts were added.", Color.RED);
+                    return;
+                }
+                if (result.cancelled) {
+                    setStatus(statusBar, new Timer[]{null}, "Import cancelled; no contacts were added.", Color.YELLOW);
+                    return;
+                }
+                String message = "Imported " + result.inserted + " new contacts from " + file.getName()
+                    + " (" + result.duplicates + " already present)";
+                if (result.rejected > 0) {
+                    message += ", " + result.rejected + " rows rejected, see " + rejectsFile.getName();
+                }
+                if (!result.ignoredColumns.isEmpty()) {
+                    message += ", ignored columns: " + String.join(", ", result.ignoredColumns);
+                }
+                setStatus(statusBar, new Timer[]{null}, message, result.rejected > 0 ? new Color(255, 140, 0) : new Color(0, 128, 0)); // orange or green
+            }
+        };
+        cancelButton.addActionListener(e -> {
+            cancelButton.setEnabled(false);
+            cancelButton.setText("Cancelling...");
+            pipeline.cancel();
+        });
+        runningImports.put(pipeline, worker);
+        worker.execute();
+        progressTimer.start();
+        dialog.setVisible(true);
+    }
+
+    /**
+     * Validates every contact on a background thread, then shows the invalid ones.
+     * @param button The Validate button, disabled while validation runs
+     * @param parent Parent frame
+     * @param statusBar Status bar for messages
+     * @param refreshTable Runnable to refresh the table after deleting
+     */
+    private static void validateInBackground(JButton button, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+        button.setEnabled(false);
+        statusBar.setText("Validating contacts...");
+        statusBar.setForeground(Color.BLUE);
+        SwingWorker<List<ContactValidator.Result>, Void> worker = new SwingWorker<List<ContactValidator.Result>, Void>() {
+            @Override
+            protected List<ContactValidator.Result> doInBackground() {
+                return cTree.validateContacts(ContactValidator.defaults());
+            }
+
+            @Override
+            protected void done() {
+                button.setEnabled(true);
+                try {
+                    List<ContactValidator.Result> invalidContacts = get();
+                    if (invalidContacts.isEmpty()) {
+                        setStatus(statusBar, new Timer[]{null}, "All contacts are valid.", new Color(0, 128, 0));
+                    } else {
+                        setStatus(statusBar, new Timer[]{null}, invalidContacts.size() + " invalid contact(s) found.", Color.BLUE);
+                        showInvalidContactsDialog(invalidContacts, parent, statusBar, refreshTable);
+                    }
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(parent, "Validation failed: " + cause.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+                    setStatus(statusBar, new Timer[]{null}, "Validation failed.", Color.RED);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * Clusters duplicate contacts and finds similar names on a background thread,
+     * then shows them.
+     * @param button The Find Duplicates button, disabled while the search runs
+     * @param parent Parent frame
+     * @param statusBar Status bar for messages
+     * @param refreshTable Runnable to refresh the table after merging
+     */
+    private static void findDuplicatesInBackground(JButton button, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+        button.setEnabled(false);
+        statusBar.setText("Finding duplicates...");
+        statusBar.setForeground(Color.BLUE);
+        SwingWorker<List<List<Contact>>, Void> worker = new SwingWorker<List<List<Contact>>, Void>() {
+            // written before doInBackground returns, so it is visible once get() has
+            private List<NearDuplicateFinder.Match> similar;
+
+            @Override
+            protected List<List<Contact>> doInBackground() {
+                List<List<Contact>> duplicates = cTree.findDuplicates();
+                similar = cTree.findNearDuplicates();
+                return duplicates;
+            }
+
+            @Override
+            protected void done() {
+                button.setEnabled(true);
+                try {
+                    List<List<Contact>> duplicates = get();
+                    if (duplicates.isEmpty() && similar.isEmpty()) {
+                        setStatus(statusBar, new Timer[]{null}, "No duplicate contacts found.", new Color(0, 128, 0));
+                    } else {
+                        setStatus(statusBar, new Timer[]{null}, "Found " + duplicates.size() + " duplicate group(s) and " + similar.size() + " similar pair(s).", Color.BLUE);
+                        showDuplicatesDialog(duplicates, similar, parent, statusBar, refreshTable);
+                    }
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(parent, "Finding duplicates failed: " + cause.getMessage(), "Duplicates Error", JOptionPane.ERROR_MESSAGE);
+                    setStatus(statusBar, new Timer[]{null}, "Finding duplicates failed.", Color.RED);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * Reads a CSV file and compares it with a snapshot of the book on a background
+     * thread, then shows the differences.
+     * @param file The file to compare with
+     * @param parent Parent frame
+     * @param statusBar Status bar for messages
+     * @param refreshTable Runnable to refresh the table if contacts are added
+     */
+    private static void compareInBackground(File file, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+        AVLTree.Snapshot book = cTree.snapshot();
+        statusBar.setText("Comparing with " + file.getName() + "...");
+        statusBar.setForeground(Color.BLUE);
+        SwingWorker<AVLTree.Diff, Void> worker = new SwingWorker<AVLTree.Diff, Void>() {
+            @Override
+            protected AVLTree.Diff doInBackground() {
+                AVLTree.Snapshot other = AVLTree.Snapshot.of(CSVReader.readCSVParallel(file.getAbsolutePath()));
+                return book.diff(other);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    setStatus(statusBar, new Timer[]{null}, "Compared with " + file.getName(), Color.BLUE);
+                    showDiffDialog(get(), file.getName(), parent, statusBar, refreshTable);
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(parent, "Compare failed: " + cause.getMessage(), "Compare Error", JOptionPane.ERROR_MESSAGE);
+                    setStatus(statusBar, new Timer[]{null}, "Compare failed.", Color.RED);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * Shows what differs between the book and a file, and offers to add the
+     * contacts only the file has.
+     * @param diff Changes going from the book to the file
+     * @param fileName Name of the compared file
+     * @param parent Parent frame
+     * @param statusBar Status bar for messages
+     * @param refreshTable Runnable to refresh the table if contacts are added
+     */
+    private static void showDiffDialog(AVLTree.Diff diff, String fileName, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+        JDialog dialog = new JDialog(parent, "Compare With " + fileName, true);
+        dialog.setLayout(new BorderLayout());
+        dialog.setSize(600, 400);
+        dialog.setLocationRelativeTo(parent);
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Only in " + fileName + " (" + diff.added.size() + ")", new JScrollPane(new JTable(snapshotTableModel(diff.added))));
+        tabs.addTab("Only in book (" + diff.removed.size() + ")", new JScrollPane(new JTable(snapshotTableModel(diff.removed))));
+        dialog.add(new JLabel(" " + diff.unchanged + " contacts are in both."), BorderLayout.NORTH);
+        dialog.add(tabs, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton addButton = new JButton("Add " + diff.added.size() + " Contacts to Book");
+        addButton.setEnabled(diff.added.size() > 0);
+        addButton.addActionListener(e -> {
+            // one split/join union, so adding stays cheap however large the file is
+            int added = cTree.addAll(diff.added);
+            refreshTable.run();
+            setStatus(statusBar, new Timer[]{null}, "Added " + added + " contacts from " + fileName, new Color(0, 128, 0));
+            dialog.dispose();
+        });
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> dialog.dispose());
+        buttonPanel.add(addButton);
+        buttonPanel.add(closeButton);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+
+        dialog.setVisible(true);
+    }
+
+    // read-only table over a snapshot, fetching each row by position
+    private static javax.swing.table.AbstractTableModel snapshotTableModel(AVLTree.Snapshot snapshot) {
+        String[] columnNames = {"Name", "Phone", "Email"};
+        return new javax.swing.table.AbstractTableModel() {
+            @Override
+            public int getRowCount() {
+                return snapshot.size();
+            }
+
+            @Override
+            public int getColumnCount() {
+                return columnNames.length;
+            }
+
+            @Override
+            public String getColumnName(int column) {
+                return columnNames[column];
+            }
+
+            @Override
+            public Object getValueAt(int row, int column) {
+                Contact contact = snapshot.select(row);
+                return column == 0 ? contact.name : column == 1 ? contact.phoneNumber : contact.email;
+            }
+        };
+    }
+
     /**
      * Shows a dialog for managing invalid contacts.
-     * @param invalidContacts List of invalid contacts
+     * @param invalidContacts Invalid contacts with their failure reasons
      * @param parent Parent frame
      * @param statusBar Status bar for messages
      * @param refreshTable Runnable to refresh the table
      */
-    private static void showInvalidContactsDialog(List<Contact> invalidContacts, JFrame parent, JLabel statusBar, Runnable refreshTable) {
+    private static void showInvalidContactsDialog(List<ContactValidator.Result> invalidContacts, JFrame parent, JLabel statusBar, Runnable refreshTable) {
         JDialog dialog = new JDialog(parent, "Invalid Contacts Found", true);
         dialog.setLayout(new BorderLayout());
         dialog.setSize(600, 400);
@@ -807,22 +1243,16 @@ public class Main {
         JTable invalidTable = new JTable(tableModel);
 
         // Populate table with invalid contacts
-        for (Contact contact : invalidContacts) {
+        for (ContactValidator.Result invalid : invalidContacts) {
             StringBuilder issues = new StringBuilder();
-            if (!Contact.isValidName(contact.name)) {
-                issues.append("Invalid name; ");
-            }
-            if (!Contact.isValidPhone(contact.phoneNumber)) {
-                issues.append("Invalid phone; ");
-            }
-            if (!Contact.isValidEmail(contact.email)) {
-                issues.append("Invalid email; ");
+            for (String reason : invalid.reasons) {
+                issues.append(reason).append("; ");
             }
 
             tableModel.addRow(new Object[]{
-                contact.name,
-                contact.phoneNumber,
-                contact.email,
+                invalid.contact.name,
+                invalid.contact.phoneNumber,
+                invalid.contact.email,
                 issues.toString()
             });
         }
@@ -842,12 +1272,15 @@ public class Main {
                 JOptionPane.YES_NO_OPTION);
             
             if (result == JOptionPane.YES_OPTION) {
-                for (Contact contact : invalidContacts) {
-                    cTree.root = cTree.delete(cTree.root, contact.name, contact.phoneNumber, contact.email);
+                List<Contact> toDelete = new java.util.ArrayList<>(invalidContacts.size());
+                for (ContactValidator.Result invalid : invalidContacts) {
+                    toDelete.add(invalid.contact);
                 }
+                // one batch: a single new root, journal record and index update
+                int deletedCount = cTree.deleteAll(toDelete);
                 refreshTable.run();
                 setStatus(statusBar, new Timer[]{null}, 
-                    "Deleted " + invalidContacts.size() + " invalid contacts.", Color.RED);
+                    "Deleted " + deletedCount + " invalid contacts.", Color.RED);
                 dialog.dispose();
             }
         });
@@ -0,0 +1,202 @@
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds contacts whose names are similar but not necessarily equal. Comparing every
+ * pair is quadratic, so candidates come from sorted-neighbourhood blocking instead:
+ * the contacts are sorted by normalized name, and by the same name reversed, and
+ * each contact is compared only with the next few contacts in each order. The
+ * candidates are scored in parallel with Contact.isDuplicate and edit distance.
+ */
+public class NearDuplicateFinder {
+    /** Default number of following contacts each contact is compared with. */
+    public static final int DEFAULT_WINDOW = 8;
+    /** Default lowest score a pair needs to be reported. */
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    // score given to pairs the isDuplicate rules accept, unless the names score higher
+    private static final double RULE_SCORE = 0.9;
+
+    /**
+     * A candidate pair of near-duplicate contacts.
+     */
+    public static class Match {
+        public final Contact first;
+        public final Contact second;
+        /** Similarity between 0 and 1, where 1 means the normalized names are equal. */
+        public final double score;
+        /** Short description of why the pair was reported. */
+        public final String reason;
+
+        public Match(Contact first, Contact second, double score, String reason) {
+            this.first = first;
+            this.second = second;
+            this.score = score;
+            this.reason = reason;
+        }
+    }
+
+    // slack for scores like 1 - 1/5, which lands a hair off 0.8 in floating point
+    private static final double EPSILON = 1e-9;
+
+    private final int window;
+    private final double threshold;
+
+    /**
+     * Constructs a finder with the default window and threshold.
+     */
+    public NearDuplicateFinder() {
+        this(DEFAULT_WINDOW, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructs a finder.
+     * @param window How many following contacts in each sort order a contact is compared with
+     * @param threshold Lowest score, between 0 and 1, a pair needs to be reported
+     */
+    public NearDuplicateFinder(int window, double threshold) {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        this.window = window;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Finds near-duplicate pairs among a list of contacts.
+     * @param contacts The contacts to check
+     * @return Matching pairs, highest score first
+     */
+    public List<Match> find(List<Contact> contacts) {
+        int n = contacts.size();
+        String[] names = new String[n];
+        String[] reversed = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = contacts.get(i).canonicalName();
+            reversed[i] = new StringBuilder(names[i]).reverse().toString();
+        }
+
+        // a pair can be a neighbour in both orders; keep it once
+        Map<Long, Match> matches = new HashMap<>();
+        for (String[] keys : new String[][]{names, reversed}) {
+            int[] order = sortedOrder(keys);
+            for (long[] hit : scanNeighbours(order, names, contacts)) {
+                int a = (int) hit[0];
+                int b = (int) hit[1];
+                long pair = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+                if (!matches.containsKey(pair)) {
+                    matches.put(pair, score(contacts.get(a), contacts.get(b), names[a], names[b]));
+                }
+            }
+        }
+
+        List<Match> ranked = new ArrayList<>(matches.values());
+        ranked.sort((x, y) -> {
+            int cmp = Double.compare(y.score, x.score);
+            if (cmp != 0) return cmp;
+            cmp = x.first.canonicalName().compareTo(y.first.canonicalName());
+            return cmp != 0 ? cmp : x.second.canonicalName().compareTo(y.second.canonicalName());
+        });
+        return ranked;
+    }
+
+    // positions of the contacts sorted by the given keys
+    private static int[] sortedOrder(String[] keys) {
+        return IntStream.range(0, keys.length).boxed()
+            .sorted(Comparator.comparing(i -> keys[i]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+    }
+
+    // compares each contact with the next window contacts in parallel; returns index pairs above the threshold
+    private List<long[]> scanNeighbours(int[] order, String[] names, List<Contact> contacts) {
+        return IntStream.range(0, order.length).parallel()
+            .boxed()
+            .flatMap(i -> {
+                List<long[]> hits = new ArrayList<>(0);
+                int a = order[i];
+                int end = Math.min(order.length, i + 1 + window);
+                for (int j = i + 1; j < end; j++) {
+                    int b = order[j];
+                    if (similarity(contacts.get(a), contacts.get(b), names[a], names[b]) >= threshold - EPSILON) {
+                        hits.add(new long[]{a, b});
+                    }
+                }
+                return hits.stream();
+            })
+            .collect(Collectors.toList());
+    }
+
+    // the score of a pair without building its description
+    private double similarity(Contact a, Contact b, String nameA, String nameB) {
+        double score = nameSimilarity(nameA, nameB);
+        if (score < RULE_SCORE && a.isDuplicate(b)) {
+            score = RULE_SCORE;
+        }
+        return score;
+    }
+
+    // scores an accepted pair and describes why it matched
+    private Match score(Contact a, Contact b, String nameA, String nameB) {
+        String reason;
+        if (nameA.equals(nameB)) {
+            reason = "Same name";
+        } else if (!a.canonicalPhone().isEmpty() && a.canonicalPhone().equals(b.canonicalPhone())) {
+            reason = "Same phone";
+        } else if (!a.canonicalEmail().isEmpty() && a.canonicalEmail().equals(b.canonicalEmail())) {
+            reason = "Same email";
+        } else if (a.isDuplicate(b)) {
+            reason = "One name contains the other";
+        } else {
+            reason = "Edit distance " + editDistance(nameA, nameB, Integer.MAX_VALUE);
+        }
+        return new Match(a, b, similarity(a, b, nameA, nameB), reason);
+    }
+
+    // 1 minus the edit distance over the longer length; 0 when the names cannot reach the threshold
+    private double nameSimilarity(String a, String b) {
+        int longer = Math.max(a.length(), b.length());
+        if (longer == 0) return 0;
+        int limit = (int) Math.floor((1 - threshold) * longer + EPSILON);
+        int distance = editDistance(a, b, limit);
+        return distance > limit ? 0 : 1 - (double) distance / longer;
+    }
+
+    /**
+     * Levenshtein distance between two strings, giving up early once it must exceed a limit.
+     * Only the diagonal band of width 2 * limit + 1 is computed, so small limits are cheap.
+     * @param a The first string
+     * @param b The second string
+     * @param limit Largest distance of interest
+     * @return The distance, or limit + 1 if it is larger than limit
+     */
+    public static int editDistance(String a, String b, int limit) {
+        int n = a.length();
+        int m = b.length();
+        limit = Math.min(limit, Math.max(n, m));
+        if (Math.abs(n - m) > limit) return limit + 1;
+        // cells outside the band hold "too far" so they never win a minimum
+        int far = limit + 1;
+        int[] previous = new int[m + 2];
+        int[] current = new int[m + 2];
+        for (int j = 0; j <= m + 1; j++) previous[j] = j <= limit ? j : far;
+        for (int i = 1; i <= n; i++) {
+            int lo = Math.max(1, i - limit);
+            int hi = Math.min(m, i + limit);
+            current[lo - 1] = lo == 1 && i <= limit ? i : far;
+            int rowMin = current[lo - 1];
+            char ca = a.charAt(i - 1);
+            for (int j = lo; j <= hi; j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                current[j] = Math.min(d, far);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            current[hi + 1] = far;
+            // every later row is at least this row's minimum
+            if (rowMin > limit) return far;
+            int[] t = previous;
+            previous = current;
+            current = t;
+        }
+        return previous[m];
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the binary snapshot format, a compact copy of a whole book
+ * that loads without parsing text, validating or comparing contacts.
+ * <p>
+ * Layout, all integers big-endian, "varint" meaning 7 bits per byte, low bits first:
+ * <pre>
+ * header      magic "CSNP", version, contact count, dictionary size, block count (5 x int)
+ * dictionary  per entry: varint byte length, UTF-8 bytes
+ * records     per contact, in tree order: name, phone, email (varint length + UTF-8 each),
+ *             flags byte (bit 0 = favorite), varint groups entry, varint photo entry + 1 (0 = none)
+ * blocks      offset of every BLOCK_SIZE-th record (long each), so blocks decode in parallel
+ * trailer     offset of the block table (long), CRC32 of every byte before the CRC (int)
+ * </pre>
+ * Groups and photo paths repeat across contacts, so they are stored once in the
+ * dictionary and referenced by position.
+ */
+public class SnapshotFile {
+    private static final int MAGIC = 0x43534E50; // "CSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 12;
+    /** Number of records decoded by one parallel task when loading. */
+    public static final int BLOCK_SIZE = 1 << 16;
+    private static final int FAVORITE = 1;
+    // three empty strings, the flags byte and two one-byte varints
+    private static final int MIN_RECORD_SIZE = 6;
+
+    /**
+     * Returns the snapshot location used by the application.
+     * @return Path of the snapshot in the user's home directory
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".telephone_book", "contacts.snapshot");
+    }
+
+    /**
+     * Writes a snapshot atomically: the data goes to a temporary file that is
+     * synced and then renamed over the target, so a crash leaves the old file intact.
+     * @param snapshot The contacts to write
+     * @param file The target file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(AVLTree.Snapshot snapshot, Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeTo(snapshot, channel);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Loads a snapshot by memory-mapping the file and decoding its blocks in
+     * parallel. The records are already in tree order, so the result is built
+     * bottom-up with no comparisons.
+     * @param file The snapshot file
+     * @return The contacts in the file
+     * @throws IOException if the file cannot be read, is corrupt or has an unknown version
+     */
+    public static AVLTree.Snapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + size + " bytes");
+            }
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Not a contact snapshot");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a contact snapshot");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int count = buffer.getInt(8);
+            int dictionarySize = buffer.getInt(12);
+            int blockCount = buffer.getInt(16);
+            int trailer = (int) size - TRAILER_SIZE;
+            int blockTable = (int) buffer.getLong(trailer);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer checked = buffer.duplicate();
+            checked.limit(trailer + 8);
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt(trailer + 8)) {
+                throw new IOException("Snapshot is corrupt (checksum mismatch)");
+            }
+
+            // the counts are checked against the bytes that hold them before anything is
+            // allocated, so a damaged header cannot ask for a huge or negative array
+            if (blockTable < HEADER_SIZE || (long) blockTable + 8L * blockCount != trailer
+                    || count < 0 || dictionarySize < 0 || blockCount != (count + BLOCK_SIZE - 1) / BLOCK_SIZE
+                    || dictionarySize > blockTable - HEADER_SIZE || count > (blockTable - HEADER_SIZE) / MIN_RECORD_SIZE) {
+                throw new IOException("Snapshot is corrupt (bad header or block table)");
+            }
+            int[] offsets = new int[blockCount + 1];
+            offsets[blockCount] = blockTable;
+            for (int b = blockCount - 1; b >= 0; b--) {
+                long offset = buffer.getLong(blockTable + 8 * b);
+                if (offset < HEADER_SIZE || offset > offsets[b + 1]) {
+                    throw new IOException("Snapshot is corrupt (bad block offset)");
+                }
+                offsets[b] = (int) offset;
+            }
+
+            ByteBuffer in = buffer.duplicate();
+            in.position(HEADER_SIZE).limit(offsets[0]);
+            String[] dictionary = new String[dictionarySize];
+            for (int i = 0; i < dictionarySize; i++) {
+                dictionary[i] = readString(in);
+            }
+
+            Contact[] contacts = new Contact[count];
+            List<DecodeBlock> blocks = new ArrayList<>(blockCount);
+            for (int b = 0; b < blockCount; b++) {
+                int first = b * BLOCK_SIZE;
+                blocks.add(new DecodeBlock(buffer, offsets[b], offsets[b + 1], first, Math.min(count, first + BLOCK_SIZE),
+                    dictionary, contacts));
+            }
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(blocks);
+                }
+            });
+            return AVLTree.Snapshot.ofSorted(Arrays.asList(contacts));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot is truncated or corrupt", e);
+        }
+    }
+
+    // writes header, dictionary, records, block table and trailer through one reused buffer
+    private static void writeTo(AVLTree.Snapshot snapshot, FileChannel channel) throws IOException {
+        // first pass: the dictionary of groups and photo paths
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        dictionary.put("", 0);
+        for (Contact contact : snapshot) {
+            dictionary.putIfAbsent(contact.groups == null ? "" : contact.groups, dictionary.size());
+            if (contact.photoPath != null) {
+                dictionary.putIfAbsent(contact.photoPath, dictionary.size());
+            }
+        }
+
+        int count = snapshot.size();
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long[] blockOffsets = new long[blockCount];
+        Output out = new Output(channel);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(count);
+        out.putInt(dictionary.size());
+        out.putInt(blockCount);
+        for (String entry : dictionary.keySet()) {
+            out.putString(entry);
+        }
+
+        // second pass: the records, in tree order
+        int index = 0;
+        for (Contact contact : snapshot) {
+            if (index % BLOCK_SIZE == 0) {
+                blockOffsets[index / BLOCK_SIZE] = out.position();
+            }
+            out.putString(contact.name);
+            out.putString(contact.phoneNumber);
+            out.putString(contact.email);
+            out.putByte(contact.favorite ? FAVORITE : 0);
+            out.putVarint(dictionary.get(contact.groups == null ? "" : contact.groups));
+            out.putVarint(contact.photoPath == null ? 0 : dictionary.get(contact.photoPath) + 1);
+            index++;
+        }
+
+        long blockTable = out.position();
+        for (long offset : blockOffsets) {
+            out.putLong(offset);
+        }
+        out.putLong(blockTable);
+        out.finish();
+    }
+
+    // buffered channel writer that keeps a running CRC32 of everything written
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32 crc = new CRC32();
+        private long written;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return written + buffer.position();
+        }
+
+        void putByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putVarint(int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                crc.update(bytes, 0, bytes.length);
+                while (large.hasRemaining()) {
+                    written += channel.write(large);
+                }
+                return;
+            }
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        // writes the CRC32 of everything so far, unchecksummed, and flushes
+        void finish() throws IOException {
+            flush();
+            ByteBuffer tail = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            tail.flip();
+            while (tail.hasRemaining()) {
+                written += channel.write(tail);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // decodes one block of records into its slice of the result array; reads stop at the
+    // block's end, so a bad length fails here instead of decoding the next block's bytes
+    private static class DecodeBlock extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ByteBuffer in;
+        private final int first;
+        private final int end;
+        private final String[] dictionary;
+        private final Contact[] contacts;
+
+        DecodeBlock(ByteBuffer buffer, int offset, int limit, int first, int end, String[] dictionary, Contact[] contacts) {
+            this.in = buffer.duplicate();
+            this.in.position(offset).limit(limit);
+            this.first = first;
+            this.end = end;
+            this.dictionary = dictionary;
+            this.contacts = contacts;
+        }
+
+        @Override
+        protected void compute() {
+            byte[] scratch = new byte[256];
+            try {
+                for (int i = first; i < end; i++) {
+                    Contact contact = new Contact(readString(in, scratch), readString(in, scratch), readString(in, scratch));
+                    contact.favorite = (in.get() & FAVORITE) != 0;
+                    contact.groups = entry(readVarint(in));
+                    int photo = readVarint(in);
+                    contact.photoPath = photo == 0 ? null : entry(photo - 1);
+                    contacts[i] = contact;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (BufferUnderflowException e) {
+                throw new UncheckedIOException(new IOException("Snapshot block is truncated", e));
+            }
+        }
+
+        private String entry(int index) throws IOException {
+            if (index >= dictionary.length) {
+                throw new IOException("Snapshot refers to dictionary entry " + index + " of " + dictionary.length);
+            }
+            return dictionary[index];
+        }
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        return readString(in, new byte[0]);
+    }
+
+    // reads a varint length and that many UTF-8 bytes, through a reused scratch array when it fits;
+    // the length is checked against the bytes left in the block before anything is allocated
+    private static String readString(ByteBuffer in, byte[] scratch) throws IOException {
+        int length = readVarint(in);
+        if (length > in.remaining()) {
+            throw new IOException("Snapshot string of " + length + " bytes overruns its block");
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // reads a non-negative varint of at most five bytes
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Snapshot is truncated inside a number");
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) throw new IOException("Snapshot number out of range");
+                return value;
+            }
+            if (shift >= 28) throw new IOException("Snapshot number too long");
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * TrigramIndex is an inverted index from every three-character substring of a
+ * contact's lower-cased name, phone number and email to the contacts containing it.
+ * A substring query intersects the posting lists of its own trigrams and only
+ * verifies the surviving candidates, so the cost follows the rarest trigram
+ * instead of the size of the book.
+ */
+public class TrigramIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int GRAM = 3;
+
+    // sorted, growable list of contact ids containing one trigram
+    private static class Posting implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int[] ids = new int[2];
+        int size;
+
+        // inserts an id keeping the list sorted, ignoring duplicates
+        void add(int id) {
+            if (size > 0 && ids[size - 1] < id) {
+                ensureCapacity();
+                ids[size++] = id;
+                return;
+            }
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) return;
+            pos = -pos - 1;
+            ensureCapacity();
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos < 0) return;
+            System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+            size--;
+        }
+
+        // appends an id out of order; sortTail must run before the list is read again
+        void append(int id) {
+            ensureCapacity();
+            ids[size++] = id;
+        }
+
+        // sorts the ids appended after the first sortedSize into the list, dropping duplicates
+        void sortTail(int sortedSize) {
+            Arrays.sort(ids, sortedSize, size);
+            if (sortedSize > 0 && sortedSize < size && ids[sortedSize - 1] > ids[sortedSize]) {
+                int[] merged = new int[ids.length];
+                int i = 0;
+                int j = sortedSize;
+                int k = 0;
+                while (i < sortedSize || j < size) {
+                    if (j == size || (i < sortedSize && ids[i] <= ids[j])) {
+                        merged[k++] = ids[i++];
+                    } else {
+                        merged[k++] = ids[j++];
+                    }
+                }
+                ids = merged;
+            }
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (kept == 0 || ids[kept - 1] != ids[i]) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            size = kept;
+        }
+
+        // drops every id in the set in one pass
+        void removeAll(BitSet gone) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!gone.get(ids[i])) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            size = kept;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        private void ensureCapacity() {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+        }
+    }
+
+    private final Map<Long, Posting> postings = new HashMap<>();
+    // contact id -> contact, ids of removed contacts are reused
+    private Contact[] contacts = new Contact[16];
+    private final Map<Contact, Integer> ids = new IdentityHashMap<>();
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    /**
+     * Adds a contact to the index.
+     * @param contact The contact to index
+     */
+    public void add(Contact contact) {
+        if (ids.containsKey(contact)) return;
+        post(allocate(contact), contact);
+    }
+
+    /**
+     * Adds many contacts to the index. Each posting list touched is sorted once at
+     * the end instead of shifting its ids for every contact.
+     * @param added The contacts to index
+     */
+    public void addAll(Collection<Contact> added) {
+        // posting -> its sorted length before this batch appended to it
+        Map<Posting, Integer> touched = new IdentityHashMap<>();
+        for (Contact contact : added) {
+            if (ids.containsKey(contact)) continue;
+            int id = allocate(contact);
+            for (String text : searchableFields(contact)) {
+                for (int i = 0; i + GRAM <= text.length(); i++) {
+                    Long gram = trigram(text, i);
+                    Posting posting = postings.get(gram);
+                    if (posting == null) {
+                        posting = new Posting();
+                        postings.put(gram, posting);
+                    }
+                    if (!touched.containsKey(posting)) {
+                        touched.put(posting, posting.size);
+                    }
+                    posting.append(id);
+                }
+            }
+        }
+        for (Map.Entry<Posting, Integer> entry : touched.entrySet()) {
+            entry.getKey().sortTail(entry.getValue());
+        }
+    }
+
+    /**
+     * Removes a contact from the index.
+     * @param contact The contact to remove
+     */
+    public void remove(Contact contact) {
+        Integer boxed = ids.remove(contact);
+        if (boxed == null) return;
+        int id = boxed;
+        unpost(id, contact);
+        release(id);
+    }
+
+    /**
+     * Swaps an indexed contact for another with the same name, phone number and
+     * email, e.g. a copy with a different favorite flag. The replacement takes over
+     * the id, so no posting list changes.
+     * @param contact The indexed contact
+     * @param replacement The contact to index in its place
+     */
+    public void replace(Contact contact, Contact replacement) {
+        Integer id = ids.remove(contact);
+        if (id == null) return;
+        contacts[id] = replacement;
+        ids.put(replacement, id);
+    }
+
+    /**
+     * Removes many contacts from the index, compacting each posting list touched
+     * once instead of shifting its ids for every contact.
+     * @param removed The contacts to remove
+     */
+    public void removeAll(Collection<Contact> removed) {
+        BitSet gone = new BitSet(nextId);
+        Set<Long> touched = new HashSet<>();
+        for (Contact contact : removed) {
+            Integer boxed = ids.remove(contact);
+            if (boxed == null) continue;
+            gone.set(boxed);
+            for (String text : searchableFields(contact)) {
+                addTrigrams(touched, text);
+            }
+        }
+        for (Long gram : touched) {
+            Posting posting = postings.get(gram);
+            if (posting == null) continue;
+            posting.removeAll(gone);
+            if (posting.size == 0) {
+                postings.remove(gram);
+            }
+        }
+        for (int id = gone.nextSetBit(0); id >= 0; id = gone.nextSetBit(id + 1)) {
+            release(id);
+        }
+    }
+
+    // gives a contact an id, reusing the id of a removed contact if there is one
+    private int allocate(Contact contact) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextId == contacts.length) {
+                contacts = Arrays.copyOf(contacts, contacts.length * 2);
+            }
+            id = nextId++;
+        }
+        contacts[id] = contact;
+        ids.put(contact, id);
+        return id;
+    }
+
+    // frees the id of a removed contact for reuse
+    private void release(int id) {
+        contacts[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Finds the contacts whose name, phone number or email contains the query.
+     * @param query The lower-cased substring to search for
+     * @return Matching contacts, or null if the query is shorter than a trigram
+     *         and cannot be answered by the index
+     */
+    public List<Contact> search(String query) {
+        if (query.length() < GRAM) {
+            return null;
+        }
+        Set<Long> grams = trigramsOf(query);
+        List<Posting> lists = new ArrayList<>(grams.size());
+        for (long gram : grams) {
+            Posting posting = postings.get(gram);
+            if (posting == null) {
+                return new ArrayList<>();
+            }
+            lists.add(posting);
+        }
+        // intersect starting from the rarest trigram so the candidate set only shrinks
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        Posting smallest = lists.get(0);
+        List<Contact> matches = new ArrayList<>();
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            boolean candidate = true;
+            for (int j = 1; j < lists.size() && candidate; j++) {
+                candidate = lists.get(j).contains(id);
+            }
+            // trigrams can match out of order, so every candidate is verified
+            if (candidate && matches(contacts[id], query)) {
+                matches.add(contacts[id]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Estimates how many candidates search would check for a query, without running it.
+     * @param query The lower-cased substring
+     * @return The size of the query's rarest trigram posting list, 0 if a trigram
+     *         is missing, or -1 if the query is shorter than a trigram
+     */
+    public int estimate(String query) {
+        if (query.length() < GRAM) {
+            return -1;
+        }
+        int smallest = Integer.MAX_VALUE;
+        for (long gram : trigramsOf(query)) {
+            Posting posting = postings.get(gram);
+            if (posting == null) {
+                return 0;
+            }
+            smallest = Math.min(smallest, posting.size);
+        }
+        return smallest;
+    }
+
+    /**
+     * Checks whether a contact's name, phone number or email contains a query.
+     * @param contact The contact to check
+     * @param query The lower-cased substring
+     * @return true if any field contains the query
+     */
+    public static boolean matches(Contact contact, String query) {
+        return contact.name.toLowerCase().contains(query)
+            || contact.phoneNumber.toLowerCase().contains(query)
+            || contact.email.toLowerCase().contains(query);
+    }
+
+    // the lower-cased fields a contact is indexed under
+    private static String[] searchableFields(Contact contact) {
+        return new String[]{contact.name.toLowerCase(), contact.phoneNumber.toLowerCase(), contact.email.toLowerCase()};
+    }
+
+    // posts an id under every trigram of a contact's searchable fields
+    private void post(int id, Contact contact) {
+        for (String text : searchableFields(contact)) {
+            post(id, text);
+        }
+    }
+
+    private void post(int id, String text) {
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            Long gram = trigram(text, i);
+            Posting posting = postings.get(gram);
+            if (posting == null) {
+                posting = new Posting();
+                postings.put(gram, posting);
+            }
+            // repeated trigrams of the same contact are ignored by Posting.add
+            posting.add(id);
+        }
+    }
+
+    // removes an id from every trigram of a contact's searchable fields
+    private void unpost(int id, Contact contact) {
+        for (String text : searchableFields(contact)) {
+            unpost(id, text);
+        }
+    }
+
+    private void unpost(int id, String text) {
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            Long gram = trigram(text, i);
+            Posting posting = postings.get(gram);
+            if (posting == null) continue;
+            posting.remove(id);
+            if (posting.size == 0) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    // distinct trigrams of a query
+    private static Set<Long> trigramsOf(String text) {
+        Set<Long> grams = new HashSet<>();
+        addTrigrams(grams, text);
+        return grams;
+    }
+
+    private static void addTrigrams(Set<Long> grams, String text) {
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(trigram(text, i));
+        }
+    }
+
+    // packs the three chars at a position into a long
+    private static long trigram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    /**
+     * Returns the number of indexed contacts.
+     * @return Contact count
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the number of distinct trigrams in the index.
+     * @return Trigram count
+     */
+    public int trigramCount() {
+        return postings.size();
+    }
+
+    /**
+     * Estimates the heap used by the index, assuming compressed oops.
+     * @return Approximate size in bytes
+     */
+    public long memoryEstimateBytes() {
+        long bytes = 0;
+        for (Posting posting : postings.values()) {
+            // HashMap entry + boxed Long key + Posting object + its int[]
+            bytes += 32 + 16 + 24 + 16 + 4L * posting.ids.length;
+        }
+        // HashMap table, IdentityHashMap table with boxed ids, id arrays
+        bytes += 4L * Integer.highestOneBit(Math.max(postings.size(), 1) * 2);
+        bytes += 8L * Integer.highestOneBit(Math.max(ids.size(), 1) * 4) + 16L * ids.size();
+        bytes += 4L * contacts.length + 4L * freeIds.length;
+        return bytes;
+    }
+
+    /**
+     * Returns a one-line summary of the index size.
+     * @return Index statistics
+     */
+    public String statistics() {
+        long postingCount = 0;
+        for (Posting posting : postings.values()) {
+            postingCount += posting.size;
+        }
+        return String.format("%d contacts, %d trigrams, %d postings, ~%.1f MB",
+                size(), trigramCount(), postingCount, memoryEstimateBytes() / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.*;
+
+/**
+ * Tests applyBatch against the same deletes and inserts made one at a time.
+ */
+public class AVLTreeBatchTest {
+    public static void main(String[] args) {
+        Random random = new Random(5);
+        for (int round = 0; round < 120; round++) {
+            int size = round < 20 ? round : random.nextInt(1000);
+            randomBatch(size, random, "round " + round);
+        }
+        deletesRunBeforeInserts();
+        repeatedInsertsKeepTheFirst();
+        System.out.println("ok");
+    }
+
+    // a random mix of present, absent and repeated keys, on a tree of the given size
+    private static void randomBatch(int size, Random random, String what) {
+        int universe = Math.max(1, size * 2);
+        List<Contact> initial = new ArrayList<>();
+        for (int i = 0; i < universe; i++) {
+            if (random.nextBoolean()) initial.add(Fixtures.contact(i));
+        }
+        AVLTree batched = new AVLTree();
+        batched.bulkLoad(initial);
+        AVLTree sequential = new AVLTree();
+        for (Contact contact : initial) {
+            sequential.addContact(contact.name, contact.phoneNumber, contact.email);
+        }
+
+        AVLTree.Batch batch = new AVLTree.Batch();
+        List<Contact> deletes = new ArrayList<>();
+        List<Contact> inserts = new ArrayList<>();
+        int operations = random.nextInt(universe + 1);
+        for (int i = 0; i < operations; i++) {
+            // a fresh instance with only the key, as a caller would pass
+            Contact key = Fixtures.contact(random.nextInt(universe));
+            if (random.nextInt(3) == 0) {
+                deletes.add(key);
+                batch.delete(key.name, key.phoneNumber, key.email);
+            } else {
+                key.favorite = random.nextBoolean();
+                inserts.add(key);
+                batch.insert(key);
+            }
+        }
+
+        Set<Contact> removed = new TreeSet<>(Fixtures.ORDER);
+        for (Contact key : deletes) {
+            if (sequential.delete(key.name, key.phoneNumber, key.email)) {
+                removed.add(key);
+            }
+        }
+        Set<Contact> added = new TreeSet<>(Fixtures.ORDER);
+        for (Contact contact : inserts) {
+            if (sequential.addContact(contact.name, contact.phoneNumber, contact.email)) {
+                added.add(contact);
+            }
+        }
+
+        AVLTree.BatchResult result = batched.applyBatch(batch);
+        Fixtures.checkShape(batched.snapshot(), what);
+        Check.sameList(keys(sequential.getContactList()), keys(batched.getContactList()), what + " contents");
+        Check.sameList(keys(new ArrayList<>(removed)), keys(sorted(result.removedContacts)), what + " removed");
+        Check.sameList(keys(new ArrayList<>(added)), keys(sorted(result.addedContacts)), what + " added");
+        Check.equal(removed.size(), result.deleted, what + " deleted count");
+        Check.equal(added.size(), result.inserted, what + " inserted count");
+
+        // the secondary indexes follow the batch too
+        for (Contact contact : batched.getContactList()) {
+            Check.isTrue(batched.findByPhone(contact.phoneNumber).contains(contact), what + " phone index has " + contact);
+        }
+        for (Contact contact : result.removedContacts) {
+            if (!added.contains(contact)) {
+                Check.isTrue(batched.findByPhone(contact.phoneNumber).isEmpty(), what + " phone index dropped " + contact);
+            }
+        }
+        int favorites = 0;
+        for (Contact contact : batched.getContactList()) {
+            if (contact.favorite) favorites++;
+        }
+        Check.equal(favorites, batched.query(ContactQuery.favorite()).contacts.size(), what + " favorites");
+    }
+
+    // deleting and re-inserting a key in one batch replaces the stored contact
+    private static void deletesRunBeforeInserts() {
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(Fixtures.contacts(100));
+        Contact replacement = Fixtures.contact(42);
+        replacement.favorite = true;
+        AVLTree.BatchResult result = tree.applyBatch(new AVLTree.Batch().update(Fixtures.contact(42), replacement));
+        Check.equal(1, result.deleted, "update deleted");
+        Check.equal(1, result.inserted, "update inserted");
+        Check.isTrue(tree.select(42) == replacement, "update stored the replacement");
+
+        // without the delete, the insert of a present key is skipped
+        Contact again = Fixtures.contact(43);
+        again.favorite = true;
+        result = tree.applyBatch(new AVLTree.Batch().insert(again));
+        Check.equal(0, result.inserted, "insert of a present key");
+        Check.isTrue(!tree.select(43).favorite, "present contact kept");
+    }
+
+    private static void repeatedInsertsKeepTheFirst() {
+        Contact first = Fixtures.contact(7);
+        first.groups = "First";
+        Contact second = Fixtures.contact(7);
+        second.groups = "Second";
+        AVLTree tree = new AVLTree();
+        AVLTree.BatchResult result = tree.applyBatch(new AVLTree.Batch().insert(first).insert(second));
+        Check.equal(1, result.inserted, "repeated insert count");
+        Check.isTrue(tree.select(0) == first, "first of repeated inserts kept");
+        Check.equal(1, tree.bulkLoad(Arrays.asList(Fixtures.contact(8), Fixtures.contact(8))), "bulkLoad repeated count");
+    }
+
+    private static List<Contact> sorted(List<Contact> contacts) {
+        List<Contact> sorted = new ArrayList<>(contacts);
+        sorted.sort(Fixtures.ORDER);
+        return sorted;
+    }
+
+    // name, phone and email exactly, since Contact.equals compares normalized values
+    private static List<String> keys(List<Contact> contacts) {
+        List<String> keys = new ArrayList<>(contacts.size());
+        for (Contact contact : contacts) {
+            keys.add(contact.name + "|" + contact.phoneNumber + "|" + contact.email);
+        }
+        return keys;
+    }
+}
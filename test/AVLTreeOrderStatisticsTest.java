@@ -0,0 +1,133 @@
+import java.util.*;
+
+/**
+ * Tests select, rank, getPage, split and join against positions in a sorted list.
+ */
+public class AVLTreeOrderStatisticsTest {
+    private static final int[] SIZES = {0, 1, 2, 3, 7, 64, 100, 1000};
+
+    public static void main(String[] args) {
+        for (int n : SIZES) {
+            AVLTree tree = new AVLTree();
+            tree.bulkLoad(Fixtures.shuffled(n, n));
+            checkPositions(tree, Fixtures.contacts(n), "bulk-loaded " + n);
+        }
+        insertedOneByOne();
+        afterDeletes();
+        pages();
+        splitAndJoin();
+        joinUneven();
+        System.out.println("ok");
+    }
+
+    // select and rank agree with list positions, including keys not in the tree
+    private static void checkPositions(AVLTree tree, List<Contact> expected, String what) {
+        int n = expected.size();
+        Check.equal(n, tree.size(), what + " size");
+        Fixtures.checkShape(tree.snapshot(), what);
+        for (int i = 0; i < n; i++) {
+            Contact contact = expected.get(i);
+            Check.equal(contact, tree.select(i), what + " select(" + i + ")");
+            Check.equal(i, tree.rank(contact), what + " rank of " + contact);
+            // same name, longer phone number: sorts just after this contact
+            Contact absent = new Contact(contact.name, contact.phoneNumber + "0", contact.email);
+            Check.equal(i + 1, tree.rank(absent), what + " rank of absent " + absent);
+        }
+        Check.equal(0, tree.rank(new Contact("A", "1", "a@example.com")), what + " rank before all");
+        Check.fails(IndexOutOfBoundsException.class, () -> tree.select(-1), what + " select(-1)");
+        Check.fails(IndexOutOfBoundsException.class, () -> tree.select(n), what + " select(size)");
+    }
+
+    // single inserts rebalance with rotations rather than bulk building
+    private static void insertedOneByOne() {
+        AVLTree tree = new AVLTree();
+        for (Contact contact : Fixtures.shuffled(500, 1)) {
+            Check.isTrue(tree.addContact(contact.name, contact.phoneNumber, contact.email), "insert " + contact);
+        }
+        checkPositions(tree, Fixtures.contacts(500), "inserted one by one");
+    }
+
+    private static void afterDeletes() {
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(Fixtures.contacts(1000));
+        List<Contact> kept = new ArrayList<>();
+        List<Contact> removed = new ArrayList<>();
+        for (Contact contact : Fixtures.contacts(1000)) {
+            (contact.phoneNumber.hashCode() % 3 == 0 ? removed : kept).add(contact);
+        }
+        for (int i = 0; i < removed.size(); i += 2) {
+            Contact contact = removed.get(i);
+            Check.isTrue(tree.delete(contact.name, contact.phoneNumber, contact.email), "delete " + contact);
+        }
+        List<Contact> rest = new ArrayList<>();
+        for (int i = 1; i < removed.size(); i += 2) {
+            rest.add(removed.get(i));
+        }
+        Check.equal(rest.size(), tree.deleteAll(rest), "deleteAll count");
+        checkPositions(tree, kept, "after deletes");
+    }
+
+    // every page size lines up with list slices, at the start, the middle, the last page and past the end
+    private static void pages() {
+        List<Contact> expected = Fixtures.contacts(1000);
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(expected);
+        AVLTree.Snapshot snapshot = tree.snapshot();
+        for (int limit : new int[]{1, 7, 50, 999, 1000, 5000}) {
+            for (int offset = 0; offset <= expected.size(); offset += Math.max(1, limit / 2)) {
+                List<Contact> slice = expected.subList(offset, Math.min(expected.size(), offset + limit));
+                Check.sameList(slice, tree.getPage(offset, limit), "tree page " + offset + "+" + limit);
+                Check.sameList(slice, snapshot.getPage(offset, limit), "snapshot page " + offset + "+" + limit);
+            }
+        }
+        Check.sameList(expected.subList(993, 1000), tree.getPage(993, 50), "last partial page");
+        Check.isTrue(tree.getPage(1000, 10).isEmpty(), "page at the end");
+        Check.isTrue(tree.getPage(-1, 10).isEmpty(), "negative offset");
+        Check.isTrue(tree.getPage(0, 0).isEmpty(), "empty limit");
+        Check.isTrue(new AVLTree().getPage(0, 10).isEmpty(), "page of an empty tree");
+    }
+
+    // splitting at every kind of key gives the two list halves, and join puts them back
+    private static void splitAndJoin() {
+        List<Contact> expected = Fixtures.contacts(300);
+        AVLTree.Snapshot snapshot = AVLTree.Snapshot.of(Fixtures.shuffled(300, 2));
+        for (int i = 0; i < expected.size(); i++) {
+            Contact key = expected.get(i);
+            AVLTree.Snapshot[] parts = snapshot.split(key);
+            Fixtures.checkShape(parts[0], "less than " + i);
+            Fixtures.checkShape(parts[1], "greater than " + i);
+            Check.sameList(expected.subList(0, i), parts[0].getContactList(), "less than " + i);
+            Check.sameList(expected.subList(i + 1, expected.size()), parts[1].getContactList(), "greater than " + i);
+
+            AVLTree.Snapshot joined = AVLTree.Snapshot.join(parts[0], parts[1]);
+            Fixtures.checkShape(joined, "joined without " + i);
+            List<Contact> without = new ArrayList<>(expected);
+            without.remove(i);
+            Check.sameList(without, joined.getContactList(), "joined without " + i);
+
+            // a key that is not present splits between its neighbours
+            Contact absent = new Contact(key.name, key.phoneNumber + "0", key.email);
+            parts = snapshot.split(absent);
+            Check.sameList(expected.subList(0, i + 1), parts[0].getContactList(), "less than absent " + i);
+            Check.sameList(expected.subList(i + 1, expected.size()), parts[1].getContactList(), "greater than absent " + i);
+            Check.sameList(expected, AVLTree.Snapshot.join(parts[0], parts[1]).getContactList(), "rejoined at absent " + i);
+        }
+        AVLTree.Snapshot empty = AVLTree.Snapshot.of(Collections.<Contact>emptyList());
+        Check.equal(0, empty.split(expected.get(0))[0].size(), "split of an empty snapshot");
+    }
+
+    // join rebalances when one side is much taller than the other
+    private static void joinUneven() {
+        List<Contact> expected = Fixtures.contacts(2000);
+        for (int cut : new int[]{0, 1, 3, 1000, 1997, 1999, 2000}) {
+            AVLTree.Snapshot less = AVLTree.Snapshot.of(expected.subList(0, cut));
+            AVLTree.Snapshot greater = AVLTree.Snapshot.of(expected.subList(cut, expected.size()));
+            AVLTree.Snapshot joined = AVLTree.Snapshot.join(less, greater);
+            Fixtures.checkShape(joined, "joined at " + cut);
+            Check.sameList(expected, joined.getContactList(), "joined at " + cut);
+            for (int i = 0; i < expected.size(); i += 97) {
+                Check.equal(expected.get(i), joined.select(i), "select(" + i + ") after join at " + cut);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests that writes copy only the path they change, and that snapshots taken
+ * before a write never see it.
+ */
+public class AVLTreeSnapshotTest {
+    private static volatile boolean stopReaders;
+
+    public static void main(String[] args) throws Exception {
+        writesCopyOnlyThePath();
+        snapshotsAreIsolated();
+        concurrentReaders();
+        System.out.println("ok");
+    }
+
+    // a single-contact write shares every node off the path to that contact
+    private static void writesCopyOnlyThePath() {
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(Fixtures.contacts(4096));
+        Random random = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            AVLTree.Snapshot before = tree.snapshot();
+            Contact target = before.select(random.nextInt(before.size()));
+            String what;
+            switch (round % 3) {
+                case 0:
+                    what = "insert";
+                    Contact added = new Contact(target.name, target.phoneNumber + "1", target.email);
+                    tree.addContact(added.name, added.phoneNumber, added.email);
+                    break;
+                case 1:
+                    what = "delete";
+                    tree.delete(target.name, target.phoneNumber, target.email);
+                    break;
+                default:
+                    what = "favorite";
+                    tree.setFavorite(target, !target.favorite);
+                    break;
+            }
+            AVLTree.Snapshot after = tree.snapshot();
+            Fixtures.checkShape(after, what + " round " + round);
+            int copied = copiedNodes(before, after);
+            int height = after.root().height;
+            // the path itself, plus the few nodes a rebalancing rotation rebuilds
+            Check.isTrue(copied <= height + 2, what + " copied " + copied + " nodes in a tree of height " + height);
+        }
+    }
+
+    // nodes of the later snapshot that are not shared with the earlier one
+    private static int copiedNodes(AVLTree.Snapshot before, AVLTree.Snapshot after) {
+        Set<AVLNode> old = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(before.root(), old);
+        Set<AVLNode> now = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(after.root(), now);
+        now.removeAll(old);
+        return now.size();
+    }
+
+    private static void collect(AVLNode node, Set<AVLNode> nodes) {
+        if (node == null) return;
+        nodes.add(node);
+        collect(node.left, nodes);
+        collect(node.right, nodes);
+    }
+
+    // every kind of write leaves earlier snapshots exactly as they were
+    private static void snapshotsAreIsolated() {
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(Fixtures.contacts(1000));
+        List<AVLTree.Snapshot> snapshots = new ArrayList<>();
+        List<List<Contact>> contents = new ArrayList<>();
+        List<List<Boolean>> favorites = new ArrayList<>();
+        Runnable record = () -> {
+            AVLTree.Snapshot snapshot = tree.snapshot();
+            snapshots.add(snapshot);
+            contents.add(snapshot.getContactList());
+            favorites.add(favoriteFlags(snapshot));
+        };
+
+        record.run();
+        tree.addContact("Aaron Early", "5559990000", "aaron@example.com");
+        record.run();
+        Contact first = tree.select(1);
+        tree.delete(first.name, first.phoneNumber, first.email);
+        record.run();
+        Contact middle = tree.select(500);
+        tree.updateContact(middle.name, middle.phoneNumber, middle.email, "Zed Late", "5559990001", "zed@example.com");
+        record.run();
+        tree.setFavorite(tree.select(10), true);
+        record.run();
+        tree.deleteAll(Fixtures.contacts(1000).subList(100, 300));
+        record.run();
+        tree.addAll(AVLTree.Snapshot.of(Fixtures.contacts(1200).subList(900, 1200)));
+        record.run();
+        AVLTree.Batch batch = new AVLTree.Batch();
+        batch.delete(tree.select(0)).insert(Fixtures.contact(5000)).insert(Fixtures.contact(150));
+        tree.applyBatch(batch);
+        record.run();
+        tree.bulkLoad(Fixtures.contacts(2000).subList(1500, 2000));
+        record.run();
+        tree.replaceAll(AVLTree.Snapshot.of(Fixtures.contacts(10)));
+        record.run();
+
+        for (int i = 0; i < snapshots.size(); i++) {
+            AVLTree.Snapshot snapshot = snapshots.get(i);
+            Fixtures.checkShape(snapshot, "snapshot " + i);
+            Check.sameList(contents.get(i), snapshot.getContactList(), "contacts of snapshot " + i);
+            Check.sameList(favorites.get(i), favoriteFlags(snapshot), "favorite flags of snapshot " + i);
+            if (i > 0) {
+                Check.isTrue(!contents.get(i).equals(contents.get(i - 1)) || !favorites.get(i).equals(favorites.get(i - 1)),
+                    "write " + i + " changed the tree");
+            }
+        }
+        Check.sameList(Fixtures.contacts(10), tree.getContactList(), "tree after replaceAll");
+    }
+
+    private static List<Boolean> favoriteFlags(AVLTree.Snapshot snapshot) {
+        List<Boolean> flags = new ArrayList<>();
+        for (Contact contact : snapshot) {
+            flags.add(contact.favorite);
+        }
+        return flags;
+    }
+
+    // readers on other threads always see a whole, consistent version while a writer runs
+    private static void concurrentReaders() throws Exception {
+        AVLTree tree = new AVLTree();
+        tree.bulkLoad(Fixtures.contacts(2000));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        stopReaders = false;
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    while (!stopReaders) {
+                        AVLTree.Snapshot snapshot = tree.snapshot();
+                        Fixtures.checkShape(snapshot, "concurrent snapshot");
+                        Check.equal(snapshot.size(), snapshot.getContactList().size(), "concurrent snapshot size");
+                        // every version holds the first 2000 contacts and at most one extra
+                        int size = snapshot.size();
+                        Check.isTrue(size == 2000 || size == 2001, "concurrent snapshot has " + size + " contacts");
+                        Check.equal(Fixtures.contact(999), snapshot.select(999), "concurrent select");
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            readers[r].start();
+        }
+        Random random = new Random(4);
+        for (int i = 0; i < 5000 && failure.get() == null; i++) {
+            Contact extra = Fixtures.contact(2000 + random.nextInt(1000));
+            tree.addContact(extra.name, extra.phoneNumber, extra.email);
+            tree.delete(extra.name, extra.phoneNumber, extra.email);
+        }
+        stopReaders = true;
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("reader saw an inconsistent snapshot", failure.get());
+        }
+        Check.equal(2000, tree.size(), "size after concurrent writes");
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.*;
+
+/**
+ * Assertions for the tests in this directory. There is no test framework: each
+ * test is a class whose main runs its checks and throws on the first failure,
+ * and test/run.sh compiles the application with the tests and runs them all.
+ */
+final class Check {
+    private Check() {
+    }
+
+    /**
+     * A check body that may throw anything.
+     */
+    interface Body {
+        void run() throws Exception;
+    }
+
+    /**
+     * Fails unless two values are equal.
+     * @param expected The expected value
+     * @param actual The value produced
+     * @param what What is being checked, for the failure message
+     */
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Fails unless two lists hold equal elements in the same order, naming the
+     * first position where they differ instead of printing both lists.
+     * @param expected The expected elements
+     * @param actual The elements produced
+     * @param what What is being checked, for the failure message
+     */
+    static void sameList(List<?> expected, List<?> actual, String what) {
+        int common = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < common; i++) {
+            if (!Objects.equals(expected.get(i), actual.get(i))) {
+                throw new AssertionError(what + ": at " + i + " expected " + expected.get(i) + " but was " + actual.get(i));
+            }
+        }
+        equal(expected.size(), actual.size(), what + " size");
+    }
+
+    /**
+     * Fails unless a condition holds.
+     * @param condition The condition
+     * @param what What is being checked, for the failure message
+     */
+    static void isTrue(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    /**
+     * Fails unless the body throws an exception of the given type.
+     * @param type The exception type expected
+     * @param body The code that should throw
+     * @param what What is being checked, for the failure message
+     * @return The exception thrown
+     */
+    static <T extends Throwable> T fails(Class<T> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t)) {
+                return type.cast(t);
+            }
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + " but got " + t, t);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+}
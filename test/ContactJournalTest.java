@@ -0,0 +1,320 @@
+import java.io.*;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Tests that replaying a journal rebuilds the tree that wrote it, that a torn
+ * or corrupt tail is cut off so the journal can be appended to again, that
+ * fields of any length round-trip, and that version 1 journals still replay.
+ */
+public class ContactJournalTest {
+    private static final int HEADER_SIZE = 8;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            replayRebuildsTheTree(dir.resolve("replay.journal"));
+            // replay reports every tail it drops, which is expected here
+            PrintStream err = System.err;
+            System.setErr(new PrintStream(new ByteArrayOutputStream()));
+            try {
+                tornAndCorruptTails(dir.resolve("tails.journal"));
+            } finally {
+                System.setErr(err);
+            }
+            longFields(dir.resolve("long.journal"));
+            durableWrites(dir.resolve("durable.journal"));
+            resetEmptiesTheJournal(dir.resolve("reset.journal"));
+            versionOneJournals(dir.resolve("v1.journal"));
+            notAJournal(dir.resolve("other.journal"));
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        System.out.println("ok");
+    }
+
+    // a journal written by a series of changes, with the file size and tree contents after each
+    private static final class History {
+        final List<Long> ends = new ArrayList<>();
+        final List<List<String>> states = new ArrayList<>();
+    }
+
+    private static History writeHistory(Path file) throws IOException {
+        History history = new History();
+        AVLTree tree = new AVLTree();
+        try (ContactJournal journal = new ContactJournal(file, 60_000)) {
+            tree.setJournal(journal);
+            Runnable record = () -> {
+                try {
+                    tree.sync();
+                    history.ends.add(Files.size(file));
+                    history.states.add(state(tree));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            record.run();
+            tree.bulkLoad(Fixtures.shuffled(300, 1));
+            record.run();
+            tree.addContact("Aaron Early", "5559990000", "aaron@example.com");
+            record.run();
+            Contact first = tree.select(1);
+            tree.delete(first.name, first.phoneNumber, first.email);
+            record.run();
+            tree.setFavorite(tree.select(10), true);
+            record.run();
+            Contact middle = tree.select(150);
+            tree.updateContact(middle.name, middle.phoneNumber, middle.email, "Zed Late", "5559990001", "zed@example.com");
+            record.run();
+            tree.deleteAll(Fixtures.contacts(300).subList(100, 200));
+            record.run();
+            Contact grouped = Fixtures.contact(150);
+            grouped.groups = "Work, Family";
+            grouped.photoPath = "/photos/150.png";
+            tree.applyBatch(new AVLTree.Batch().delete(tree.select(0)).insert(grouped).insert(Fixtures.contact(5000)));
+            record.run();
+            // a delete after an insert must not be reordered by replay's batching
+            tree.addContact("Temp Person", "5559990002", "temp@example.com");
+            record.run();
+            tree.delete("Temp Person", "5559990002", "temp@example.com");
+            record.run();
+            tree.addAll(AVLTree.Snapshot.of(Fixtures.contacts(400).subList(250, 400)));
+            record.run();
+            tree.setJournal(null);
+        }
+        return history;
+    }
+
+    private static void replayRebuildsTheTree(Path file) throws IOException {
+        History history = writeHistory(file);
+        List<String> last = history.states.get(history.states.size() - 1);
+        AVLTree replayed = new AVLTree();
+        Check.equal(10, ContactJournal.replay(file, replayed), "records replayed");
+        Fixtures.checkShape(replayed.snapshot(), "replayed tree");
+        Check.sameList(last, state(replayed), "replayed contents");
+        Check.equal(history.ends.get(history.ends.size() - 1), Files.size(file), "an intact journal is not truncated");
+        Check.equal(0, ContactJournal.replay(file.resolveSibling("missing.journal"), new AVLTree()), "missing journal");
+    }
+
+    // cutting the file anywhere, or corrupting any record, replays exactly the records before the damage
+    private static void tornAndCorruptTails(Path file) throws IOException {
+        Path original = file.resolveSibling("tails.original");
+        History history = writeHistory(original);
+        byte[] bytes = Files.readAllBytes(original);
+        Files.delete(original);
+        Random random = new Random(9);
+
+        List<Integer> cuts = new ArrayList<>();
+        for (long end : history.ends) {
+            cuts.add((int) end);
+            cuts.add((int) end - 1);
+            cuts.add((int) end + 3);
+        }
+        for (int i = 0; i < 30; i++) {
+            cuts.add(HEADER_SIZE + random.nextInt(bytes.length - HEADER_SIZE));
+        }
+        for (int cut : cuts) {
+            if (cut < HEADER_SIZE || cut > bytes.length) continue;
+            Files.write(file, Arrays.copyOf(bytes, cut));
+            checkDamaged(file, history, recordsBefore(history, cut), "cut at " + cut);
+        }
+
+        for (int record = 1; record < history.ends.size(); record++) {
+            int start = (int) (long) history.ends.get(record - 1);
+            int end = (int) (long) history.ends.get(record);
+            for (int at : new int[]{start, start + 4, start + 8, end - 1}) {
+                byte[] damaged = bytes.clone();
+                damaged[at] ^= 0x10;
+                Files.write(file, damaged);
+                checkDamaged(file, history, record - 1, "record " + record + " damaged at " + at);
+            }
+        }
+    }
+
+    // the records before the given offset that are whole
+    private static int recordsBefore(History history, long offset) {
+        int records = 0;
+        while (records + 1 < history.ends.size() && history.ends.get(records + 1) <= offset) {
+            records++;
+        }
+        return records;
+    }
+
+    private static void checkDamaged(Path file, History history, int intact, String what) throws IOException {
+        AVLTree replayed = new AVLTree();
+        Check.equal(intact, ContactJournal.replay(file, replayed), what + " records replayed");
+        Check.sameList(history.states.get(intact), state(replayed), what + " contents");
+        Check.equal(history.ends.get(intact), Files.size(file), what + " truncated to the last whole record");
+
+        // appending after the cut is reachable on the next replay
+        try (ContactJournal journal = new ContactJournal(file, 0)) {
+            replayed.setJournal(journal);
+            replayed.addContact("After Cut", "5559990003", "after@example.com");
+            replayed.setJournal(null);
+        }
+        AVLTree again = new AVLTree();
+        Check.equal(intact + 1, ContactJournal.replay(file, again), what + " records after appending");
+        Check.sameList(state(replayed), state(again), what + " contents after appending");
+    }
+
+    // strings past writeUTF's 64 KB limit, in one- to four-byte UTF-8
+    private static void longFields(Path file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String[] pieces = {"a", "é", "€", "😀"};
+        for (int i = 0; text.length() < 100_000; i++) {
+            text.append(pieces[i % pieces.length]);
+        }
+        Contact contact = new Contact("Long " + text, "5551234567", "long@example.com");
+        contact.groups = "Group " + text;
+        contact.photoPath = "/photos/" + text;
+        Contact empty = new Contact("", "", "");
+        AVLTree tree = new AVLTree();
+        try (ContactJournal journal = new ContactJournal(file, 0)) {
+            tree.setJournal(journal);
+            tree.applyBatch(new AVLTree.Batch().insert(contact).insert(empty));
+            tree.setJournal(null);
+        }
+        AVLTree replayed = new AVLTree();
+        Check.equal(1, ContactJournal.replay(file, replayed), "long record replayed");
+        Check.sameList(state(tree), state(replayed), "long fields");
+    }
+
+    // in durable mode every write is in the file when it returns, and a failed sync is thrown
+    private static void durableWrites(Path file) throws IOException {
+        AVLTree tree = new AVLTree();
+        ContactJournal journal = new ContactJournal(file, 60_000);
+        tree.setJournal(journal);
+        tree.setDurable(true);
+        for (int i = 0; i < 20; i++) {
+            Contact contact = Fixtures.contact(i);
+            tree.addContact(contact.name, contact.phoneNumber, contact.email);
+            AVLTree replayed = new AVLTree();
+            Check.equal(i + 1, ContactJournal.replay(file, replayed), "durable write " + i + " on disk");
+            Check.sameList(state(tree), state(replayed), "durable write " + i + " contents");
+        }
+        journal.close();
+        Contact late = Fixtures.contact(20);
+        Check.fails(UncheckedIOException.class, () -> tree.addContact(late.name, late.phoneNumber, late.email),
+            "durable write to a closed journal");
+        Check.equal(21, tree.size(), "the failed write is still applied in memory");
+        Check.fails(IOException.class, tree::sync, "sync of a closed journal");
+        tree.setJournal(null);
+    }
+
+    private static void resetEmptiesTheJournal(Path file) throws IOException {
+        AVLTree tree = new AVLTree();
+        try (ContactJournal journal = new ContactJournal(file, 60_000)) {
+            tree.setJournal(journal);
+            tree.bulkLoad(Fixtures.contacts(50));
+            journal.reset();
+            tree.addContact("After Reset", "5559990004", "reset@example.com");
+            tree.setJournal(null);
+        }
+        AVLTree replayed = new AVLTree();
+        Check.equal(1, ContactJournal.replay(file, replayed), "records after a reset");
+        Check.equal(1, replayed.size(), "contacts after a reset");
+    }
+
+    // a journal written with writeUTF strings replays as it is, and is rewritten as version 2 on open
+    private static void versionOneJournals(Path file) throws IOException {
+        Contact favorite = Fixtures.contact(3);
+        favorite.favorite = true;
+        favorite.groups = "Friends";
+        favorite.photoPath = "/photos/3.png";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x434A4E4C);
+        out.writeInt(1);
+        writeVersionOneFrame(out, Collections.<Contact>emptyList(), Fixtures.contacts(5));
+        writeVersionOneFrame(out, Collections.singletonList(Fixtures.contact(3)), Collections.singletonList(favorite));
+        writeVersionOneFrame(out, Collections.singletonList(Fixtures.contact(0)), Collections.<Contact>emptyList());
+        byte[] journal = bytes.toByteArray();
+        Files.write(file, Arrays.copyOf(journal, journal.length - 2));
+
+        AVLTree fromVersionOne = new AVLTree();
+        Check.equal(2, ContactJournal.replay(file, fromVersionOne), "version 1 records before a torn tail");
+        Files.write(file, journal);
+        fromVersionOne = new AVLTree();
+        Check.equal(3, ContactJournal.replay(file, fromVersionOne), "version 1 records");
+        Check.sameList(Fixtures.contacts(5).subList(1, 5), fromVersionOne.getContactList(), "version 1 contents");
+        Contact replayedFavorite = fromVersionOne.select(2);
+        Check.isTrue(replayedFavorite.favorite, "version 1 favorite");
+        Check.equal("Friends", replayedFavorite.groups, "version 1 groups");
+        Check.equal("/photos/3.png", replayedFavorite.photoPath, "version 1 photo");
+
+        new ContactJournal(file, 0).close();
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            in.readInt();
+            Check.equal(2, in.readInt(), "version after opening");
+        }
+        Check.isTrue(!Files.exists(file.resolveSibling(file.getFileName() + ".upgrade")), "upgrade file renamed");
+        AVLTree upgraded = new AVLTree();
+        Check.equal(3, ContactJournal.replay(file, upgraded), "upgraded records");
+        Check.sameList(state(fromVersionOne), state(upgraded), "upgraded contents");
+    }
+
+    private static void writeVersionOneFrame(DataOutputStream out, List<Contact> deleted, List<Contact> added) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeInt(deleted.size() + added.size());
+        for (Contact contact : deleted) {
+            payload.writeByte(2);
+            payload.writeUTF(contact.name);
+            payload.writeUTF(contact.phoneNumber);
+            payload.writeUTF(contact.email);
+        }
+        for (Contact contact : added) {
+            payload.writeByte(1);
+            payload.writeUTF(contact.name);
+            payload.writeUTF(contact.phoneNumber);
+            payload.writeUTF(contact.email);
+            payload.writeBoolean(contact.favorite);
+            payload.writeUTF(contact.groups);
+            payload.writeBoolean(contact.photoPath != null);
+            if (contact.photoPath != null) {
+                payload.writeUTF(contact.photoPath);
+            }
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    // files without the journal header are refused, not replayed or overwritten
+    private static void notAJournal(Path file) throws IOException {
+        Files.write(file, "name,phone,email\n".getBytes("UTF-8"));
+        Check.fails(IOException.class, () -> ContactJournal.replay(file, new AVLTree()), "replay of a CSV file");
+        Check.fails(IOException.class, () -> new ContactJournal(file, 0), "opening a CSV file");
+        Check.equal(17L, Files.size(file), "CSV file left as it was");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(8).putInt(0x434A4E4C).putInt(3);
+            header.flip();
+            channel.write(header);
+        }
+        Check.fails(IOException.class, () -> ContactJournal.replay(file, new AVLTree()), "replay of a newer version");
+    }
+
+    // every stored field, in order, so replay is compared on more than the key
+    private static List<String> state(AVLTree tree) {
+        List<String> state = new ArrayList<>();
+        for (Contact contact : tree.getContactList()) {
+            state.add(contact.name + "|" + contact.phoneNumber + "|" + contact.email + "|" + contact.favorite
+                + "|" + contact.groups + "|" + contact.photoPath);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the hand-written name, phone and email checks against the regular
+ * expressions they replaced, on generated inputs built to hit their edges:
+ * whitespace and control characters around and inside the value, non-ASCII
+ * letters and digits, and emails one character away from valid.
+ */
+public class ContactValidatorTest {
+    // the checks as Contact made them before ContactValidator, each applied to the trimmed value
+    private static final Pattern NAME = Pattern.compile("^[A-Za-z\\s]+$");
+    private static final Pattern PHONE = Pattern.compile("^\\d{10}$");
+    private static final Pattern EMAIL = Pattern.compile("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$");
+
+    // ASCII edge cases, every character trim() removes or \s matches, and look-alikes that neither do
+    private static final String ALPHABET = "aZz09._%+-@ \t\n\u000B\f\r\u0000\u001F\u007F!#,/:[`{"
+        + "\u00A0\u2003\u00E9\u0130\u0661\uFF11\uFF41";
+    private static final String TRIMMED = " \t\n\u000B\f\r\u0000\u001F";
+
+    public static void main(String[] args) {
+        fixedCases();
+        Random random = new Random(13);
+        for (int round = 0; round < 50_000; round++) {
+            checkAll(randomText(random, random.nextInt(14)));
+            checkAll(pad(random, String.format("%010d", random.nextInt(Integer.MAX_VALUE)), round));
+            checkAll(pad(random, mutate(randomEmail(random), random), round));
+        }
+        validatorResults();
+        System.out.println("ok");
+    }
+
+    private static void fixedCases() {
+        String[] values = {
+            null, "", " ", "a", "ab", " ab ", "a b", "a\tb", "\u00A0ab", "Jos\u00E9",
+            "5551234567", " 5551234567\n", "555123456", "55512345678", "555-123-4567", "\uFF15551234567",
+            "a@b.co", "a@b.c", "a@b.c0", "a.b%c+d-e_f@x-y.example.com", "@b.co", "a@.co", "a@b..co",
+            "a@@b.co", "a@b.co.", "a@b.\u0130o", " a@b.co\r\n", "a b@c.de",
+        };
+        for (String value : values) {
+            checkAll(value);
+        }
+    }
+
+    private static void checkAll(String value) {
+        Check.equal(baseline(NAME, value) && value.trim().length() >= 2, ContactValidator.isValidName(value), "name " + show(value));
+        Check.equal(baseline(NAME, value), ContactValidator.isNameText(value), "name text " + show(value));
+        Check.equal(baseline(PHONE, value), ContactValidator.isValidPhone(value), "phone " + show(value));
+        Check.equal(baseline(EMAIL, value), ContactValidator.isValidEmail(value), "email " + show(value));
+    }
+
+    private static boolean baseline(Pattern pattern, String value) {
+        return value != null && pattern.matcher(value.trim()).matches();
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+    private static String randomEmail(Random random) {
+        String[] locals = {"a", "john.smith", "x_y%z+tag", "-", "A9"};
+        String[] domains = {"b", "example", "mail.example", "x-y", "1.2"};
+        String[] tlds = {"co", "com", "c", "C0M", "museum"};
+        return locals[random.nextInt(locals.length)] + "@" + domains[random.nextInt(domains.length)]
+            + "." + tlds[random.nextInt(tlds.length)];
+    }
+
+    // inserts, deletes or replaces a few characters, or none
+    private static String mutate(String text, Random random) {
+        StringBuilder mutated = new StringBuilder(text);
+        for (int edits = random.nextInt(3); edits > 0; edits--) {
+            int at = random.nextInt(mutated.length() + 1);
+            char ch = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            switch (random.nextInt(3)) {
+                case 0:
+                    mutated.insert(at, ch);
+                    break;
+                case 1:
+                    if (at < mutated.length()) mutated.deleteCharAt(at);
+                    break;
+                default:
+                    if (at < mutated.length()) mutated.setCharAt(at, ch);
+                    break;
+            }
+        }
+        return mutated.toString();
+    }
+
+    // characters trim() removes, some of which \s does not match, on either side of every other value
+    private static String pad(Random random, String value, int round) {
+        if (round % 2 == 0) return value;
+        return padding(random) + value + padding(random);
+    }
+
+    private static String padding(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = random.nextInt(3); i > 0; i--) {
+            text.append(TRIMMED.charAt(random.nextInt(TRIMMED.length())));
+        }
+        return text.toString();
+    }
+
+    private static String show(String value) {
+        if (value == null) return "null";
+        StringBuilder shown = new StringBuilder("'");
+        for (char ch : value.toCharArray()) {
+            if (ch >= 0x20 && ch < 0x7F) shown.append(ch);
+            else shown.append(String.format("\\u%04X", (int) ch));
+        }
+        return shown.append("'").toString();
+    }
+
+    // findInvalid keeps input order and gives each contact the reasons of the baseline checks, rule by rule
+    private static void validatorResults() {
+        Random random = new Random(14);
+        List<Contact> contacts = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            Contact valid = Fixtures.contact(i);
+            contacts.add(new Contact(
+                random.nextInt(4) == 0 ? randomText(random, random.nextInt(6)) : valid.name,
+                random.nextInt(4) == 0 ? mutate(valid.phoneNumber, random) : valid.phoneNumber,
+                random.nextInt(4) == 0 ? mutate(valid.email, random) : valid.email));
+        }
+        ContactValidator.Rule noZed = c -> c.name.startsWith("Z") ? "Starts with Z" : null;
+        ContactValidator validator = ContactValidator.defaults().addRule(noZed);
+
+        List<Contact> expectedInvalid = new ArrayList<>();
+        List<List<String>> expectedReasons = new ArrayList<>();
+        for (Contact contact : contacts) {
+            List<String> reasons = new ArrayList<>();
+            if (!(baseline(NAME, contact.name) && contact.name.trim().length() >= 2)) reasons.add("Invalid name");
+            if (!baseline(PHONE, contact.phoneNumber)) reasons.add("Invalid phone");
+            if (!baseline(EMAIL, contact.email)) reasons.add("Invalid email");
+            Check.equal(reasons.isEmpty(), contact.isValid(), "isValid of " + contact);
+            if (contact.name.startsWith("Z")) reasons.add("Starts with Z");
+            Check.sameList(reasons, validator.validate(contact), "reasons for " + contact);
+            if (!reasons.isEmpty()) {
+                expectedInvalid.add(contact);
+                expectedReasons.add(reasons);
+            }
+        }
+        Check.isTrue(!expectedInvalid.isEmpty() && expectedInvalid.size() < contacts.size(), "a mix of valid and invalid contacts");
+
+        List<ContactValidator.Result> results = validator.findInvalid(contacts);
+        Check.equal(expectedInvalid.size(), results.size(), "invalid contacts found");
+        for (int i = 0; i < results.size(); i++) {
+            Check.isTrue(results.get(i).contact == expectedInvalid.get(i), "result " + i + " in input order");
+            Check.sameList(expectedReasons.get(i), results.get(i).reasons, "reasons of result " + i);
+        }
+        Check.equal(0, ContactValidator.defaults().findInvalid(Fixtures.contacts(1000)).size(), "valid fixtures");
+    }
+}
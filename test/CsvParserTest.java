@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Tests CsvParser on quoting, line endings, byte order marks and records longer
+ * than its buffer, and that CSVReader.splitOnRecords never cuts a record, even
+ * where a quoted line break falls on a chunk boundary.
+ */
+public class CsvParserTest {
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    public static void main(String[] args) throws IOException {
+        quotedLineBreaks();
+        doubledQuotes();
+        byteOrderMark();
+        lineEndings();
+        malformedRecords();
+        longRecords();
+        splitKeepsRecordsWhole();
+        System.out.println("ok");
+    }
+
+    // one parsed record: its fields, the line it starts on, and its error
+    private static final class Record {
+        final List<String> fields = new ArrayList<>();
+        long line;
+        String error;
+        String raw;
+
+        @Override
+        public String toString() {
+            return line + ":" + fields + (error == null ? "" : " (" + error + ")");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Record && toString().equals(obj.toString()) && Objects.equals(raw, ((Record) obj).raw);
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+    }
+
+    private static List<Record> parse(String text) throws IOException {
+        return parse(text.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+    }
+
+    // parses bytes handed over at most readSize at a time, as a slow stream would
+    private static List<Record> parse(byte[] bytes, int readSize) throws IOException {
+        return parse(new CsvParser(trickle(ByteBuffer.wrap(bytes), readSize)));
+    }
+
+    private static List<Record> parse(CsvParser parser) throws IOException {
+        List<Record> records = new ArrayList<>();
+        while (parser.next()) {
+            Record record = new Record();
+            for (int i = 0; i < parser.fieldCount(); i++) {
+                record.fields.add(parser.field(i));
+            }
+            record.line = parser.lineNumber();
+            record.error = parser.error();
+            record.raw = parser.rawRecord();
+            records.add(record);
+        }
+        return records;
+    }
+
+    // a channel over a buffer that returns at most readSize bytes per read
+    private static ReadableByteChannel trickle(ByteBuffer source, int readSize) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer target) {
+                if (!source.hasRemaining()) return -1;
+                int n = Math.min(Math.min(readSize, source.remaining()), target.remaining());
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + n);
+                target.put(slice);
+                source.position(source.position() + n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static void checkFields(Record record, String what, String... expected) {
+        Check.sameList(Arrays.asList(expected), record.fields, what);
+        Check.equal(null, record.error, what + " error");
+    }
+
+    private static void quotedLineBreaks() throws IOException {
+        List<Record> records = parse("a,\"line one\r\nline two\",c\r\nd,\"x\ny\",f\r\ng,h,i");
+        Check.equal(3, records.size(), "records with quoted line breaks");
+        checkFields(records.get(0), "quoted CRLF", "a", "line one\r\nline two", "c");
+        checkFields(records.get(1), "quoted LF", "d", "x\ny", "f");
+        checkFields(records.get(2), "last record without a line break", "g", "h", "i");
+        Check.equal(1L, records.get(0).line, "first record line");
+        Check.equal(3L, records.get(1).line, "line after a quoted CRLF");
+        Check.equal(5L, records.get(2).line, "line after a quoted LF");
+        Check.equal("a,\"line one\r\nline two\",c", records.get(0).raw, "raw record keeps its quotes");
+    }
+
+    private static void doubledQuotes() throws IOException {
+        List<Record> records = parse("\"He said \"\"hi\"\"\",\"\"\"\",\"\",plain\n\"a,b\",\"\"\"x\"\"\"\"y\"\n");
+        checkFields(records.get(0), "doubled quotes", "He said \"hi\"", "\"", "", "plain");
+        checkFields(records.get(1), "quoted comma and runs of quotes", "a,b", "\"x\"\"y");
+    }
+
+    private static void byteOrderMark() throws IOException {
+        byte[] text = "name,phone\nAnn,555\n".getBytes(StandardCharsets.UTF_8);
+        byte[] withBom = concat(BOM, text);
+        for (int readSize : new int[]{1, 2, 3, 1000}) {
+            List<Record> records = parse(withBom, readSize);
+            checkFields(records.get(0), "header after a BOM, " + readSize + " bytes per read", "name", "phone");
+            checkFields(records.get(1), "row after a BOM", "Ann", "555");
+        }
+        // only a leading mark is skipped
+        List<Record> records = parse(concat("x\n".getBytes(StandardCharsets.UTF_8), withBom), 1000);
+        Check.equal("\uFEFFname", records.get(1).fields.get(0), "BOM after the first line");
+    }
+
+    private static void lineEndings() throws IOException {
+        List<Record> records = parse("a,1\r\nb,2\nc,3\rd,4\r\n\r\n\ne,5");
+        Check.equal(5, records.size(), "records with mixed line endings, blank lines skipped");
+        String[] names = {"a", "b", "c", "d", "e"};
+        long[] lines = {1, 2, 3, 4, 7};
+        for (int i = 0; i < names.length; i++) {
+            checkFields(records.get(i), "mixed endings " + i, names[i], String.valueOf(i + 1));
+            Check.equal(lines[i], records.get(i).line, "line of record " + i);
+        }
+        checkFields(parse("\"\"\n").get(0), "an empty quoted field is a record", "");
+    }
+
+    // a bad record is reported and skipped to its line end, and the rows after it still parse
+    private static void malformedRecords() throws IOException {
+        List<Record> records = parse("\"abc\"x,1\nok,2\n\"never closed,3\n");
+        Check.isTrue(records.get(0).error != null, "text after a closing quote is an error");
+        checkFields(records.get(1), "row after a malformed one", "ok", "2");
+        Check.equal(2L, records.get(1).line, "line after a malformed row");
+        Check.isTrue(records.get(records.size() - 1).error != null, "an unclosed quote at the end is an error");
+    }
+
+    // records several times the parser's 64 KB buffer, read whole and a few bytes at a time
+    private static void longRecords() throws IOException {
+        StringBuilder plain = new StringBuilder();
+        StringBuilder quoted = new StringBuilder();
+        for (int i = 0; plain.length() < 200_000; i++) {
+            plain.append((char) ('a' + i % 26));
+            quoted.append(i % 1000 == 0 ? "\"\"" : i % 777 == 0 ? "\r\n" : i % 500 == 0 ? "é" : String.valueOf((char) ('a' + i % 26)));
+        }
+        String expectedQuoted = quoted.toString().replace("\"\"", "\"");
+        String text = "short,1\n" + plain + ",2\n\"" + quoted + "\",3\nlast,4\n";
+        for (int readSize : new int[]{Integer.MAX_VALUE, 65536, 4099}) {
+            String what = "long records, " + readSize + " bytes per read";
+            List<Record> records = parse(text.getBytes(StandardCharsets.UTF_8), readSize);
+            Check.equal(4, records.size(), what);
+            checkFields(records.get(1), what + " plain", plain.toString(), "2");
+            checkFields(records.get(2), what + " quoted", expectedQuoted, "3");
+            checkFields(records.get(3), what + " after", "last", "4");
+            Check.equal(3L, records.get(2).line, what + " line of the quoted record");
+            Check.equal(3L + quoted.toString().split("\r\n", -1).length, records.get(3).line, what + " line after it");
+        }
+    }
+
+    // at every chunk size, parsing the ranges one by one gives exactly the records of the whole file
+    private static void splitKeepsRecordsWhole() throws IOException {
+        String text = "name,phone,email\n"
+            + "Ann,555,\"a\nb\"\n"
+            + "\"Bob\r\nJr\",556,\"x,\"\"y\"\"\"\n"
+            + "Cy,557,c@example.com\r\n"
+            + "\"\n\",558,\"\r\n\"\n"
+            + "\"bad\"x,1\n"
+            + "Di,559,d@example.com";
+        Path file = Files.createTempFile("split", ".csv");
+        try {
+            for (byte[] prefix : new byte[][]{new byte[0], BOM}) {
+                byte[] bytes = concat(prefix, text.getBytes(StandardCharsets.UTF_8));
+                Files.write(file, bytes);
+                List<Record> whole = parse(bytes, Integer.MAX_VALUE);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    for (int chunkSize = 1; chunkSize <= bytes.length + 1; chunkSize++) {
+                        String what = "split at " + chunkSize + (prefix.length > 0 ? " with a BOM" : "");
+                        List<CSVReader.Range> ranges = CSVReader.splitOnRecords(channel, chunkSize);
+                        List<Record> pieces = new ArrayList<>();
+                        long expectedStart = prefix.length;
+                        for (CSVReader.Range range : ranges) {
+                            Check.equal(expectedStart, range.start, what + " ranges are contiguous");
+                            expectedStart = range.end;
+                            pieces.addAll(parse(new CsvParser(CSVReader.channelOf(range.map(channel)), range.firstLine)));
+                        }
+                        Check.equal((long) bytes.length, expectedStart, what + " ranges cover the file");
+                        Check.sameList(whole, pieces, what);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.*;
+
+/**
+ * Tests the banded edit distance against a plain Levenshtein table, and the
+ * near-duplicate threshold at scores that land exactly on it.
+ */
+public class EditDistanceTest {
+    public static void main(String[] args) {
+        fixedCases();
+        randomStrings();
+        exactThreshold();
+        System.out.println("ok");
+    }
+
+    private static void fixedCases() {
+        String[][] pairs = {
+            {"", ""}, {"", "abc"}, {"abc", ""}, {"kitten", "sitting"}, {"flaw", "lawn"},
+            {"smith", "smyth"}, {"john smith", "jon smith"}, {"abcdef", "fedcba"}, {"aaaa", "aaaaaaaa"},
+        };
+        for (String[] pair : pairs) {
+            checkAllLimits(pair[0], pair[1]);
+        }
+        Check.equal(3, NearDuplicateFinder.editDistance("kitten", "sitting", Integer.MAX_VALUE), "kitten/sitting");
+        Check.equal(3, NearDuplicateFinder.editDistance("kitten", "sitting", 2), "kitten/sitting past a limit of 2");
+        Check.equal(1, NearDuplicateFinder.editDistance("abc", "abcdefgh", 0), "length gap past a limit of 0");
+    }
+
+    // short strings over a small alphabet, so distances of every size come up
+    private static void randomStrings() {
+        Random random = new Random(8);
+        for (int round = 0; round < 3000; round++) {
+            String a = randomString(random, random.nextInt(14));
+            String b = random.nextBoolean() ? mutate(a, random) : randomString(random, random.nextInt(14));
+            checkAllLimits(a, b);
+        }
+    }
+
+    // the banded result equals the full distance when it is within the limit, and limit + 1 otherwise
+    private static void checkAllLimits(String a, String b) {
+        int full = levenshtein(a, b);
+        int longest = Math.max(a.length(), b.length());
+        for (int limit = 0; limit <= longest + 2; limit++) {
+            int expected = full <= limit ? full : limit + 1;
+            Check.equal(expected, NearDuplicateFinder.editDistance(a, b, limit),
+                "distance of '" + a + "' and '" + b + "' with limit " + limit);
+        }
+        Check.equal(full, NearDuplicateFinder.editDistance(a, b, Integer.MAX_VALUE), "unlimited distance of '" + a + "' and '" + b + "'");
+        Check.equal(full, NearDuplicateFinder.editDistance(b, a, Integer.MAX_VALUE), "distance is symmetric for '" + a + "' and '" + b + "'");
+    }
+
+    // the whole dynamic-programming table, with no band or early exit
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+        for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(3)));
+        }
+        return text.toString();
+    }
+
+    // a few random inserts, deletes and substitutions
+    private static String mutate(String text, Random random) {
+        StringBuilder mutated = new StringBuilder(text);
+        for (int edits = random.nextInt(4); edits > 0; edits--) {
+            int at = random.nextInt(mutated.length() + 1);
+            switch (random.nextInt(3)) {
+                case 0:
+                    mutated.insert(at, (char) ('a' + random.nextInt(3)));
+                    break;
+                case 1:
+                    if (at < mutated.length()) mutated.deleteCharAt(at);
+                    break;
+                default:
+                    if (at < mutated.length()) mutated.setCharAt(at, (char) ('a' + random.nextInt(3)));
+                    break;
+            }
+        }
+        return mutated.toString();
+    }
+
+    // 1 - 1/5 and 1 - 1/10 are a hair off 0.8 and 0.9 in floating point, and must still count as reaching them
+    private static void exactThreshold() {
+        List<NearDuplicateFinder.Match> matches = find(NearDuplicateFinder.DEFAULT_THRESHOLD, "Smith", "Smyth");
+        Check.equal(1, matches.size(), "Smith/Smyth at the default threshold");
+        Check.isTrue(Math.abs(matches.get(0).score - 0.8) < 1e-9, "Smith/Smyth score " + matches.get(0).score);
+        Check.equal("Edit distance 1", matches.get(0).reason, "Smith/Smyth reason");
+
+        Check.equal(1, find(0.9, "Anna Smith", "Anna Smyth").size(), "one edit in ten at 0.9");
+        Check.equal(0, find(0.9, "Smith", "Smyth").size(), "one edit in five at 0.9");
+        Check.equal(0, find(NearDuplicateFinder.DEFAULT_THRESHOLD, "Smith", "Smyte").size(), "two edits in five");
+    }
+
+    private static List<NearDuplicateFinder.Match> find(double threshold, String nameA, String nameB) {
+        List<Contact> contacts = Arrays.asList(
+            new Contact(nameA, "5550000001", "first@example.com"),
+            new Contact(nameB, "5550000002", "second@example.com"));
+        return new NearDuplicateFinder(NearDuplicateFinder.DEFAULT_WINDOW, threshold).find(contacts);
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.*;
+
+/**
+ * Contacts and tree checks shared by the tests.
+ */
+final class Fixtures {
+    /** The tree's order: name, then phone number, then email. */
+    static final Comparator<Contact> ORDER = Comparator.<Contact, String>comparing(c -> c.name)
+        .thenComparing(c -> c.phoneNumber).thenComparing(c -> c.email);
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns a valid contact; contacts sort by their number.
+     * @param i The contact's number, below 26^5
+     * @return A new contact
+     */
+    static Contact contact(int i) {
+        char[] letters = new char[5];
+        for (int k = letters.length - 1, rest = i; k >= 0; k--, rest /= 26) {
+            letters[k] = (char) ('a' + rest % 26);
+        }
+        return new Contact("Person " + new String(letters), String.format("555%07d", i), "p" + i + "@example.com");
+    }
+
+    /**
+     * Returns contacts 0 to n - 1, in order.
+     * @param n How many
+     * @return New contacts
+     */
+    static List<Contact> contacts(int n) {
+        List<Contact> contacts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            contacts.add(contact(i));
+        }
+        return contacts;
+    }
+
+    /**
+     * Returns contacts 0 to n - 1 in a shuffled order.
+     * @param n How many
+     * @param seed Seed for the shuffle
+     * @return New contacts
+     */
+    static List<Contact> shuffled(int n, long seed) {
+        List<Contact> contacts = contacts(n);
+        Collections.shuffle(contacts, new Random(seed));
+        return contacts;
+    }
+
+    /**
+     * Checks that every node of a snapshot has the right height and size, is
+     * AVL-balanced, and that its contacts are in strictly increasing order.
+     * @param snapshot The snapshot to check
+     * @param what What is being checked, for the failure message
+     */
+    static void checkShape(AVLTree.Snapshot snapshot, String what) {
+        checkNode(snapshot.root(), what);
+        List<Contact> contacts = snapshot.getContactList();
+        for (int i = 1; i < contacts.size(); i++) {
+            Check.isTrue(ORDER.compare(contacts.get(i - 1), contacts.get(i)) < 0, what + ": out of order at " + i);
+        }
+    }
+
+    // checks a subtree and returns its height
+    private static int checkNode(AVLNode node, String what) {
+        if (node == null) return 0;
+        int left = checkNode(node.left, what);
+        int right = checkNode(node.right, what);
+        Check.isTrue(Math.abs(left - right) <= 1, what + ": unbalanced at " + node.contact);
+        Check.equal(1 + Math.max(left, right), node.height, what + ": height of " + node.contact);
+        int size = 1 + (node.left == null ? 0 : node.left.size) + (node.right == null ? 0 : node.right.size);
+        Check.equal(size, node.size, what + ": size of " + node.contact);
+        return node.height;
+    }
+}
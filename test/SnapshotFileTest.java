@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Tests that a snapshot file reads back exactly the contacts written, across
+ * block boundaries, and that damaged files fail with an IOException instead of
+ * loading wrong contacts or throwing something else.
+ */
+public class SnapshotFileTest {
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 12;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("contacts.snapshot");
+        try {
+            int block = SnapshotFile.BLOCK_SIZE;
+            for (int size : new int[]{0, 1, 2, 1000, block, block + 1, 2 * block + 100}) {
+                roundTrip(contacts(size), file, size + " contacts");
+            }
+            longStrings(file);
+            Check.sameList(Collections.singletonList(file), listFiles(dir), "no temporary files left behind");
+            truncated(file);
+            checksum(file);
+            damagedWithValidChecksum(file);
+            notASnapshot(file);
+        } finally {
+            for (Path left : listFiles(dir)) {
+                Files.delete(left);
+            }
+            Files.delete(dir);
+        }
+        System.out.println("ok");
+    }
+
+    // contacts with every field in use: favorites, shared and unique groups, some photos, non-ASCII names
+    private static List<Contact> contacts(int n) {
+        List<Contact> contacts = Fixtures.contacts(n);
+        String[] groups = {"", "Work", "Family", "Work, Family", "Über, Café"};
+        for (int i = 0; i < n; i++) {
+            Contact contact = contacts.get(i);
+            contact.favorite = i % 3 == 0;
+            contact.groups = i % 97 == 0 ? "Group " + i : groups[i % groups.length];
+            contact.photoPath = i % 5 == 0 ? "/photos/" + (i % 50) + ".png" : null;
+        }
+        if (n > 1) {
+            contacts.set(n - 1, new Contact("Żółć 李 😀", "5550000000", "zolc@example.com"));
+        }
+        return contacts;
+    }
+
+    private static void roundTrip(List<Contact> contacts, Path file, String what) throws IOException {
+        AVLTree.Snapshot written = AVLTree.Snapshot.of(contacts);
+        SnapshotFile.write(written, file);
+        AVLTree.Snapshot read = SnapshotFile.read(file);
+        Fixtures.checkShape(read, what);
+        Check.sameList(state(written), state(read), what);
+    }
+
+    // strings larger than the writer's 1 MB buffer go straight to the channel
+    private static void longStrings(Path file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 1_500_000; i++) {
+            text.append(i % 2 == 0 ? "é" : "x");
+        }
+        Contact contact = new Contact("Long " + text.substring(0, 100_000), "5551234567", "long@example.com");
+        contact.groups = "Group " + text;
+        contact.photoPath = "/photos/" + text;
+        List<Contact> contacts = contacts(100);
+        contacts.add(contact);
+        roundTrip(contacts, file, "strings over the buffer size");
+    }
+
+    // every length short of the whole file is refused
+    private static void truncated(Path file) throws IOException {
+        SnapshotFile.write(AVLTree.Snapshot.of(contacts(300)), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Random random = new Random(10);
+        List<Integer> lengths = new ArrayList<>(Arrays.asList(0, 1, HEADER_SIZE, HEADER_SIZE + TRAILER_SIZE, bytes.length - 1, bytes.length - 4));
+        for (int i = 0; i < 50; i++) {
+            lengths.add(random.nextInt(bytes.length));
+        }
+        for (int length : lengths) {
+            Files.write(file, Arrays.copyOf(bytes, length));
+            Check.fails(IOException.class, () -> SnapshotFile.read(file), "snapshot cut to " + length + " bytes");
+        }
+    }
+
+    // any flipped bit, including in the trailer, fails the checksum
+    private static void checksum(Path file) throws IOException {
+        SnapshotFile.write(AVLTree.Snapshot.of(contacts(300)), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Random random = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            byte[] damaged = bytes.clone();
+            int at = i < 8 ? bytes.length - 1 - i : random.nextInt(bytes.length);
+            damaged[at] ^= 1 << random.nextInt(8);
+            Files.write(file, damaged);
+            Check.fails(IOException.class, () -> SnapshotFile.read(file), "bit flipped at " + at);
+        }
+    }
+
+    // damage the checksum does not catch, because it was recomputed, is still refused before it can do harm
+    private static void damagedWithValidChecksum(Path file) throws IOException {
+        Contact only = new Contact("A", "1", "e");
+        SnapshotFile.write(AVLTree.Snapshot.of(Collections.singletonList(only)), file);
+        byte[] bytes = Files.readAllBytes(file);
+        int blockTable = (int) ByteBuffer.wrap(bytes).getLong(bytes.length - TRAILER_SIZE);
+        int record = (int) ByteBuffer.wrap(bytes).getLong(blockTable);
+
+        expectCorrupt(file, putInt(bytes, 8, Integer.MAX_VALUE), "huge contact count");
+        expectCorrupt(file, putInt(bytes, 8, -1), "negative contact count");
+        expectCorrupt(file, putInt(bytes, 8, 2), "contact count past the records");
+        expectCorrupt(file, putInt(bytes, 12, Integer.MAX_VALUE), "huge dictionary size");
+        expectCorrupt(file, putInt(bytes, 12, -5), "negative dictionary size");
+        expectCorrupt(file, putInt(bytes, 16, 7), "wrong block count");
+        expectCorrupt(file, putInt(bytes, 4, 2), "unknown version");
+        expectCorrupt(file, putLong(bytes, bytes.length - TRAILER_SIZE, 3), "block table inside the header");
+        expectCorrupt(file, putLong(bytes, bytes.length - TRAILER_SIZE, bytes.length), "block table past the end");
+        expectCorrupt(file, putLong(bytes, blockTable, 2), "block offset inside the header");
+        expectCorrupt(file, putLong(bytes, blockTable, blockTable + 1), "block offset past the block table");
+        expectCorrupt(file, set(bytes, record, 0x7F), "name longer than the block");
+        expectCorrupt(file, set(bytes, record, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F), "name length too long a number");
+        expectCorrupt(file, set(bytes, record, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF), "name length never ends");
+        // name, phone and email take two bytes each, then the flags byte
+        expectCorrupt(file, set(bytes, record + 7, 0x7F), "groups entry past the dictionary");
+        expectCorrupt(file, set(bytes, record + 8, 0x7F), "photo entry past the dictionary");
+
+        // random damage either loads some valid book or fails with an IOException, never anything else
+        SnapshotFile.write(AVLTree.Snapshot.of(contacts(500)), file);
+        byte[] larger = Files.readAllBytes(file);
+        Random random = new Random(12);
+        for (int i = 0; i < 300; i++) {
+            byte[] damaged = larger.clone();
+            for (int k = 1 + random.nextInt(4); k > 0; k--) {
+                damaged[random.nextInt(damaged.length - TRAILER_SIZE)] = (byte) random.nextInt(256);
+            }
+            Files.write(file, withChecksum(damaged));
+            try {
+                AVLTree.Snapshot read = SnapshotFile.read(file);
+                Check.equal(read.size(), read.getContactList().size(), "damaged snapshot " + i + " size");
+            } catch (IOException expected) {
+                // refused, as it should be
+            }
+        }
+    }
+
+    private static void notASnapshot(Path file) throws IOException {
+        Files.write(file, "name,phone,email\nAnn,555,ann@example.com\n".getBytes("UTF-8"));
+        Check.fails(IOException.class, () -> SnapshotFile.read(file), "CSV file");
+        Files.write(file, new byte[HEADER_SIZE + TRAILER_SIZE]);
+        Check.fails(IOException.class, () -> SnapshotFile.read(file), "zeros");
+        Check.fails(IOException.class, () -> SnapshotFile.read(file.resolveSibling("missing.snapshot")), "missing file");
+    }
+
+    private static void expectCorrupt(Path file, byte[] bytes, String what) throws IOException {
+        Files.write(file, withChecksum(bytes));
+        Check.fails(IOException.class, () -> SnapshotFile.read(file), what);
+    }
+
+    private static byte[] putInt(byte[] bytes, int at, int value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(at, value);
+        return copy;
+    }
+
+    private static byte[] putLong(byte[] bytes, int at, long value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putLong(at, value);
+        return copy;
+    }
+
+    private static byte[] set(byte[] bytes, int at, int... values) {
+        byte[] copy = bytes.clone();
+        for (int i = 0; i < values.length; i++) {
+            copy[at + i] = (byte) values[i];
+        }
+        return copy;
+    }
+
+    // recomputes the trailer's CRC, as a writer with a bug or an attacker would
+    private static byte[] withChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(copy.length - 4, (int) crc.getValue());
+        return copy;
+    }
+
+    private static List<Path> listFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (java.util.stream.Stream<Path> list = Files.list(dir)) {
+            list.forEach(files::add);
+        }
+        return files;
+    }
+
+    // every stored field, in order
+    private static List<String> state(AVLTree.Snapshot snapshot) {
+        List<String> state = new ArrayList<>();
+        for (Contact contact : snapshot) {
+            state.add(contact.name + "|" + contact.phoneNumber + "|" + contact.email + "|" + contact.favorite
+                + "|" + contact.groups + "|" + contact.photoPath);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+
+/**
+ * Tests union, intersection, difference and diff against the same operations on TreeSets.
+ */
+public class SnapshotSetOperationsTest {
+    public static void main(String[] args) {
+        Random random = new Random(6);
+        int[][] sizes = {{0, 0}, {0, 50}, {50, 0}, {1, 1}, {1, 1000}, {1000, 1}, {10, 5000}, {5000, 10}, {3000, 3000}};
+        for (int[] pair : sizes) {
+            for (double overlap : new double[]{0, 0.1, 0.5, 1}) {
+                check(pair[0], pair[1], overlap, random);
+            }
+        }
+        for (int round = 0; round < 100; round++) {
+            check(random.nextInt(500), random.nextInt(500), random.nextDouble(), random);
+        }
+        identicalAndSubset();
+        bookAddAll();
+        System.out.println("ok");
+    }
+
+    // two random sets of the given sizes sharing at least the given fraction of the smaller one
+    private static void check(int leftSize, int rightSize, double overlap, Random random) {
+        String what = leftSize + " vs " + rightSize + " at " + overlap;
+        int universe = 4 * (leftSize + rightSize) + 1;
+        TreeSet<Contact> left = new TreeSet<>(Fixtures.ORDER);
+        while (left.size() < leftSize) {
+            left.add(Fixtures.contact(random.nextInt(universe)));
+        }
+        TreeSet<Contact> right = new TreeSet<>(Fixtures.ORDER);
+        List<Contact> shared = new ArrayList<>(left);
+        Collections.shuffle(shared, random);
+        for (Contact contact : shared.subList(0, (int) (overlap * Math.min(leftSize, rightSize)))) {
+            right.add(copy(contact));
+        }
+        while (right.size() < rightSize) {
+            right.add(Fixtures.contact(random.nextInt(universe)));
+        }
+        AVLTree.Snapshot a = AVLTree.Snapshot.of(left);
+        AVLTree.Snapshot b = AVLTree.Snapshot.of(right);
+
+        TreeSet<Contact> union = new TreeSet<>(Fixtures.ORDER);
+        union.addAll(left);
+        union.addAll(right);
+        TreeSet<Contact> intersection = new TreeSet<>(Fixtures.ORDER);
+        intersection.addAll(left);
+        intersection.retainAll(right);
+        TreeSet<Contact> difference = new TreeSet<>(Fixtures.ORDER);
+        difference.addAll(left);
+        difference.removeAll(right);
+        TreeSet<Contact> added = new TreeSet<>(Fixtures.ORDER);
+        added.addAll(right);
+        added.removeAll(left);
+
+        checkResult(union, a.union(b), left, what + " union");
+        checkResult(intersection, a.intersection(b), left, what + " intersection");
+        checkResult(difference, a.difference(b), left, what + " difference");
+        checkResult(added, b.difference(a), right, what + " reverse difference");
+
+        AVLTree.Diff diff = a.diff(b);
+        checkResult(added, diff.added, right, what + " diff added");
+        checkResult(difference, diff.removed, left, what + " diff removed");
+        Check.equal(intersection.size(), diff.unchanged, what + " diff unchanged");
+
+        // the inputs are persistent and stay as they were
+        Check.sameList(new ArrayList<>(left), a.getContactList(), what + " left unchanged");
+        Check.sameList(new ArrayList<>(right), b.getContactList(), what + " right unchanged");
+    }
+
+    // same contacts in the same order, a valid tree, and where a key is in preferred the instance from there
+    private static void checkResult(TreeSet<Contact> expected, AVLTree.Snapshot actual, TreeSet<Contact> preferred, String what) {
+        Fixtures.checkShape(actual, what);
+        Check.sameList(new ArrayList<>(expected), actual.getContactList(), what);
+        for (Contact contact : actual) {
+            Contact own = preferred.floor(contact);
+            if (own != null && Fixtures.ORDER.compare(own, contact) == 0) {
+                Check.isTrue(own == contact, what + " kept the instance of the receiving snapshot for " + contact);
+            }
+        }
+    }
+
+    private static void identicalAndSubset() {
+        List<Contact> all = Fixtures.contacts(1000);
+        AVLTree.Snapshot whole = AVLTree.Snapshot.of(all);
+        AVLTree.Snapshot same = AVLTree.Snapshot.of(Fixtures.shuffled(1000, 7));
+        Check.sameList(all, whole.union(same).getContactList(), "union with itself");
+        Check.sameList(all, whole.intersection(same).getContactList(), "intersection with itself");
+        Check.equal(0, whole.difference(same).size(), "difference with itself");
+        AVLTree.Diff diff = whole.diff(same);
+        Check.equal(0, diff.added.size() + diff.removed.size(), "diff with itself");
+        Check.equal(1000, diff.unchanged, "diff with itself unchanged");
+
+        AVLTree.Snapshot part = AVLTree.Snapshot.of(all.subList(200, 300));
+        Check.sameList(all, whole.union(part).getContactList(), "union with a subset");
+        Check.sameList(all.subList(200, 300), whole.intersection(part).getContactList(), "intersection with a subset");
+        List<Contact> rest = new ArrayList<>(all.subList(0, 200));
+        rest.addAll(all.subList(300, 1000));
+        Check.sameList(rest, whole.difference(part).getContactList(), "difference with a subset");
+    }
+
+    // adding a file to the book goes through union and keeps the book's contacts
+    private static void bookAddAll() {
+        AVLTree tree = new AVLTree();
+        Contact favorite = Fixtures.contact(5);
+        favorite.favorite = true;
+        List<Contact> book = Fixtures.contacts(100);
+        book.set(5, favorite);
+        tree.bulkLoad(book);
+        int added = tree.addAll(AVLTree.Snapshot.of(Fixtures.contacts(150)));
+        Check.equal(50, added, "contacts added from the file");
+        Check.sameList(Fixtures.contacts(150), tree.getContactList(), "book after adding");
+        Check.isTrue(tree.select(5) == favorite, "book's contact kept");
+        Check.equal(1, tree.query(ContactQuery.favorite()).contacts.size(), "favorites after adding");
+    }
+
+    private static Contact copy(Contact contact) {
+        return new Contact(contact.name, contact.phoneNumber, contact.email);
+    }
+}
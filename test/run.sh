@@ -0,0 +1,13 @@
+#!/bin/sh
+# Compiles the application with the tests and runs every *Test class; stops at the first failure.
+set -e
+cd "$(dirname "$0")/.."
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -encoding UTF-8 -d "$out" *.java test/*.java
+for test in test/*Test.java; do
+    name=$(basename "$test" .java)
+    echo "$name"
+    java -ea -cp "$out" "$name"
+done
+echo "All tests passed."